@@ -0,0 +1,124 @@
+package ocean.RedWhale;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * メッセージ検索のインストルメンテーションテスト（実際のSQLiteで実行します）。
+ * 日本語のように単語を空白で区切らない文でも、文中の言葉で見つけられることを確認します。
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageSearchInstrumentedTest {
+
+    // 端末の他の会話と混ざらないよう、テスト用のアドレスで保存します
+    private static final String LOCAL = "TEST:LOCAL:" + System.nanoTime();
+    private static final String PEER = "TEST:PEER:" + System.nanoTime();
+    private static final long WAIT_MS = 5000;
+
+    private DatabaseHelper dbHelper;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dbHelper = DatabaseHelper.getInstance(appContext);
+        add("今日は東京で会議があります", true);
+        add("明日の天気はどうですか？", false);
+        add("カタカナのメッセージ：コーヒーを飲みましょう", false);
+        add("Meeting at 10:00, 100% confirmed", true);
+        // 保存は別スレッドで順番に行われるため、最後のメッセージが検索できるまで待ちます
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (search("confirmed").isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(search("confirmed").isEmpty());
+    }
+
+    @After
+    public void tearDown() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        String conversationId = DatabaseHelper.conversationId(LOCAL, PEER);
+        db.delete("messages", "conversation_id = ?", new String[]{conversationId});
+        db.delete("conversations", "conversation_id = ?", new String[]{conversationId});
+    }
+
+    private void add(String text, boolean isSent) {
+        ChatMessage message = new ChatMessage(text, isSent);
+        if (isSent) {
+            dbHelper.addMessage(message, LOCAL, PEER);
+        } else {
+            dbHelper.addMessage(message, PEER, LOCAL);
+        }
+    }
+
+    /**
+     * テスト用の会話の検索結果の本文を、新しい順に返します。
+     */
+    private List<String> search(String query) {
+        List<String> found = new ArrayList<>();
+        for (MessageSearchResult result : dbHelper.searchMessages(query, Long.MAX_VALUE, 50)) {
+            if (PEER.equals(result.getPeerAddress())) found.add(result.getMessage());
+        }
+        return found;
+    }
+
+    @Test
+    public void japaneseWordInsideSentence_isFound() {
+        List<String> found = search("東京");
+        assertEquals(1, found.size());
+        assertEquals("今日は東京で会議があります", found.get(0));
+
+        // ひらがな・カタカナ（長音記号を含む）でも、文の途中の言葉で見つけます
+        assertEquals(1, search("天気").size());
+        assertEquals(1, search("コーヒー").size());
+    }
+
+    @Test
+    public void multipleJapaneseTerms_mustAllMatch() {
+        assertEquals(1, search("東京 会議").size());
+        assertTrue(search("東京 天気").isEmpty());
+    }
+
+    @Test
+    public void results_areNewestFirst() {
+        List<String> found = search("の");
+        assertEquals(2, found.size());
+        assertEquals("カタカナのメッセージ：コーヒーを飲みましょう", found.get(0));
+        assertEquals("明日の天気はどうですか？", found.get(1));
+    }
+
+    @Test
+    public void englishWords_stillUseTheIndex() {
+        // 英語は前方一致なので、単語の途中からでは見つかりません
+        assertEquals(1, search("meet").size());
+        assertTrue(search("eeting").isEmpty());
+    }
+
+    @Test
+    public void japaneseCharacters_mustBeAdjacent() {
+        // 2文字ずつの語が本文と同じ順に隣り合っている時だけ見つけます
+        assertEquals(1, search("京で").size());
+        assertTrue(search("東会").isEmpty());
+        assertTrue(search("東京会議").isEmpty());
+    }
+
+    @Test
+    public void symbols_doNotMatchEverything() {
+        // 記号は索引でも区切りなので、% や _ が何にでも一致する記号として働くことはありません
+        assertEquals(1, search("東京 %").size());
+        assertEquals(1, search("今日_").size());
+        assertTrue(search("%").isEmpty());
+    }
+}
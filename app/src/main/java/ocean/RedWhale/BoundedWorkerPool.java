@@ -0,0 +1,97 @@
+package ocean.RedWhale;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 受信処理のパイプライン（組み立て → 復号 → 保存・画面通知）の1段を担う、上限付きのワーカープールです。
+ *
+ * 待ち行列の長さに上限があり、満杯の時は submit() を呼んだ前段のスレッドを一定時間だけ待たせます
+ * （バックプレッシャー）。それでも空かなければ仕事を捨てて false を返すため、
+ * 遅い段があってもメモリが際限なく増えることはありません。
+ * 待たせてはいけないスレッド（ルーターのイベントループなど）からは、待たずに結果を返す offer() を使います。
+ */
+public final class BoundedWorkerPool {
+    private static final String TAG = "BoundedWorkerPool";
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final long submitTimeoutMillis;
+
+    /**
+     * @param name                スレッド名とログに使う名前
+     * @param threads             ワーカースレッドの数（1なら投入順に処理されます）
+     * @param queueCapacity       待ち行列に置ける仕事の数
+     * @param submitTimeoutMillis 待ち行列が満杯の時に、submit()が空きを待つ最大時間（ミリ秒）
+     */
+    public BoundedWorkerPool(String name, int threads, int queueCapacity, long submitTimeoutMillis) {
+        this.name = name;
+        this.submitTimeoutMillis = submitTimeoutMillis;
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), factory);
+        // ワーカーを先に全て起動しておき、仕事は常に待ち行列経由で渡します
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * 仕事を投入します。待ち行列が満杯なら空くまで最大 submitTimeoutMillis だけ待ちます。
+     *
+     * @return 投入できた場合はtrue。満杯のまま時間切れになった、または停止済みの場合はfalse
+     */
+    public boolean submit(Runnable task) {
+        if (executor.isShutdown()) return false;
+        BlockingQueue<Runnable> queue = executor.getQueue();
+        try {
+            if (queue.offer(guard(task), submitTimeoutMillis, TimeUnit.MILLISECONDS)) return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.w(TAG, name + " が混雑しているため、処理を破棄しました");
+        return false;
+    }
+
+    /**
+     * 仕事を投入します。submit() と違い、待ち行列が満杯でも待たずにすぐ false を返します。
+     *
+     * @return 投入できた場合はtrue。満杯、または停止済みの場合はfalse
+     */
+    public boolean offer(Runnable task) {
+        if (executor.isShutdown()) return false;
+        if (executor.getQueue().offer(guard(task))) return true;
+        Log.w(TAG, name + " が混雑しているため、処理を受け付けませんでした");
+        return false;
+    }
+
+    private Runnable guard(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, name + " の処理中にエラーが発生しました", e);
+            }
+        };
+    }
+
+    /**
+     * 待ち行列に残っている仕事の数を返します。
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -6,6 +6,8 @@ package ocean.RedWhale;
 public class ChatMessage {
     private String message; // メッセージの本文（テキスト）
     private boolean isSentByUser; // 自分が送信したメッセージならtrue、相手から届いたならfalse
+    private long id;        // データベース上のID（まだ保存されていなければ0）
+    private long timestamp; // 送受信した時間（まだ保存されていなければ0）
 
     /**
      * メッセージオブジェクトを作るためのコンストラクタです。
@@ -17,6 +19,16 @@ public class ChatMessage {
         this.isSentByUser = isSentByUser;
     }
 
+    /**
+     * データベースから読み込んだメッセージ用のコンストラクタです。
+     * IDと時間は、履歴をページごとに読み込む時の位置として使います。
+     */
+    public ChatMessage(long id, String message, boolean isSentByUser, long timestamp) {
+        this(message, isSentByUser);
+        this.id = id;
+        this.timestamp = timestamp;
+    }
+
     /**
      * @return メッセージの本文を返します
      */
@@ -30,4 +42,18 @@ public class ChatMessage {
     public boolean isSentByUser() {
         return isSentByUser;
     }
+
+    /**
+     * @return データベース上のIDを返します
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return 送受信した時間（ミリ秒）を返します
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
 }
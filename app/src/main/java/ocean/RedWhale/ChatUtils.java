@@ -28,15 +28,19 @@ import android.os.ParcelUuid;
 import android.util.Base64;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Bluetooth Low Energy (BLE) を使用したメッシュネットワークエンジンです。
@@ -58,13 +62,52 @@ public class ChatUtils {
 
     private final List<BluetoothGatt> connectedClients = new CopyOnWriteArrayList<>();
     private final List<BluetoothDevice> connectedServerDevices = new CopyOnWriteArrayList<>();
+    // 隣接ノード（MACアドレス）毎の対応ヘッダー形式。未登録の相手は旧形式のみとみなします
+    private final Map<String, Integer> linkVersions = new ConcurrentHashMap<>();
+    // 短縮形式のパケットを送ってきた（＝短縮形式を解釈できる）相手の短縮ID
+    private final Set<Long> compactCapablePeers = ConcurrentHashMap.newKeySet();
+    // 隣接ノード毎のリンク鍵と、フレームの認証タグ
+    private final LinkAuthenticator linkAuthenticator = new LinkAuthenticator();
+
+    // 転送中の状態（routePacket / routeFrame の synchronized 内でのみ使用）
+    private final byte[][] framesByVersion = new byte[LOCAL_HEADER_VERSION + 1][];
+    private byte[] routingFrame;
+    private int routingFrameVersion;
+    private MessagePacket routingPacket;
 
     private final MessageRouter messageRouter;
+    // 友達の公開鍵の索引（初期化スレッドで1度だけ読み込みます）
+    private final FriendKeyIndex friendKeys = FriendKeyIndex.getInstance();
+    // 相手毎のセッション鍵（メッセージ毎のRSA処理を省きます）
+    private final SessionManager sessions = new SessionManager();
+    // グループ毎の送信者鍵（本文を1度だけ暗号化し、鍵だけをメンバー毎に包みます）
+    private final GroupCipher groupCipher = new GroupCipher();
+    // 参加しているグループのID（Base64形式）
+    private final Set<String> joinedGroups = ConcurrentHashMap.newKeySet();
+
+    // 受信処理のパイプライン：ルーター（取り込み・組み立て）→ 復号・署名の検証 → 画面通知・受信確認
+    // 復号と署名の検証は重い処理なのでコア数分のスレッドで並列に行い、
+    // 結果は送信者毎に受信した順番へ並べ直してから、1スレッドで通知します
+    private final BoundedWorkerPool cryptoPool = new BoundedWorkerPool("RedWhale-crypto",
+            Math.max(1, Runtime.getRuntime().availableProcessors()), 64, 2000);
+    private final SenderSequencer sequencer = new SenderSequencer();
+    private final BoundedWorkerPool deliveryPool = new BoundedWorkerPool("RedWhale-delivery", 1, 64, 2000);
 
     // サービスのUUID
     public static final UUID SERVICE_UUID = UUID.fromString("0000B81D-0000-1000-8000-00805F9B34FB");
     public static final UUID CHAR_RX_UUID = UUID.fromString("0000B81E-0000-1000-8000-00805F9B34FB");
     public static final UUID CHAR_TX_UUID = UUID.fromString("0000B81F-0000-1000-8000-00805F9B34FB");
+    // 対応しているヘッダー形式を隣接ノード同士で交換するための特性
+    public static final UUID CHAR_VERSION_UUID = UUID.fromString("0000B820-0000-1000-8000-00805F9B34FB");
+    // リンク鍵の交換（使い捨て公開鍵と確認値）に使う特性
+    public static final UUID CHAR_LINK_KEY_UUID = UUID.fromString("0000B821-0000-1000-8000-00805F9B34FB");
+
+    // このノードが解釈できる最新のヘッダー形式
+    private static final byte LOCAL_HEADER_VERSION = MessagePacket.VERSION_EXTENDED;
+    // ACKの中身の形式（1バイト目）
+    private static final byte ACK_VERSION = 1;
+    // グループの送信者鍵の再送要求（ACKと同じ種類のパケットで、送信者に直接送ります）
+    private static final byte ACK_KEY_REQUEST = 2;
 
     public static final int STATE_NONE = 0;
     public static final int STATE_LISTEN = 1;
@@ -75,6 +118,8 @@ public class ChatUtils {
     private byte[] localAddressHash;
     private String localIdentityAddress;
     private byte[] remoteAddressHash;
+    // 開いているグループの会話（1対1の会話ではnull）
+    private volatile Group activeGroup;
     private PrivateKey privateKey;
     private boolean isReady = false;
 
@@ -92,13 +137,20 @@ public class ChatUtils {
 
         // 重い初期化処理をバックグラウンドで実行
         new Thread(() -> {
-            IdentityManager identityManager = new IdentityManager(context);
-            if (identityManager.exists()) {
-                localIdentityAddress = identityManager.getIdentityAddress();
-                localAddressHash = IdentityManager.getAddressHash(localIdentityAddress);
-                privateKey = identityManager.getPrivateKey();
+            // IDは起動時に1度だけ読み込まれたものを使います（読み込み中なら完了を待ちます）
+            IdentityCache.Identity identity = IdentityCache.getInstance().get();
+            if (identity != null) {
+                localIdentityAddress = identity.getAddress();
+                localAddressHash = identity.getHash();
+                privateKey = identity.getPrivateKey();
                 messageRouter.setLocalAddressHash(localAddressHash);
             }
+            friendKeys.ensureLoaded(context);
+            // 保存済みのグループ宛てのメッセージを受け取れるようにします
+            for (Group group : DatabaseHelper.getInstance(context).getAllGroups()) {
+                joinedGroups.add(group.getGroupAddress());
+                messageRouter.joinGroup(group.getGroupHash());
+            }
             setupMessageRouter();
             isReady = true;
             Log.i(TAG, "ChatUtilsの初期化が完了しました");
@@ -111,68 +163,316 @@ public class ChatUtils {
     private void setupMessageRouter() {
         messageRouter.setMessageListener(new MessageRouter.MessageListener() {
             @Override
-            public void onMessageReceived(String encryptedMessage, byte[] senderHash) {
-                // メッセージ受信時の復号処理
-                String decrypted = performE2EDecryption(encryptedMessage, senderHash);
-                if (decrypted != null) {
-                    if (handler != null) {
-                        handler.obtainMessage(MainActivity.MESSAGE_READ, decrypted.length(), -1, decrypted.getBytes())
-                                .sendToTarget();
+            public boolean onMessageReceived(byte[] encryptedMessage, int length, byte[] senderHash) {
+                if (senderHash.length == MessagePacket.COMPACT_ID_SIZE) {
+                    compactCapablePeers.add(IdentityManager.getCompactId(senderHash));
+                }
+                // 復号はルーターのスレッドでは行わず、復号用のプールに渡します。
+                // 再接続直後にまとめて届いた場合も、署名の検証が複数のコアで並列に進みます。
+                // プールが満杯でもルーターは待たずに（中継や受信確認を止めずに）このメッセージを諦め、再送を待ちます
+                long senderId = IdentityManager.getCompactId(senderHash);
+                long ticket = sequencer.reserve(senderId);
+                boolean submitted = cryptoPool.offer(() -> {
+                    SessionManager.Decrypted decrypted = null;
+                    try {
+                        decrypted = performE2EDecryption(encryptedMessage, length, senderHash);
+                    } finally {
+                        // 失敗した場合も番号を返し、同じ送信者の後続のメッセージを止めないようにします
+                        deliverInOrder(senderId, ticket, decrypted, senderHash);
+                    }
+                });
+                if (!submitted) deliverInOrder(senderId, ticket, null, senderHash);
+                return submitted;
+            }
+
+            @Override
+            public MessageRouter.ChunkSink onStreamStarted(byte[] senderHash, int totalChunks, byte firstByte) {
+                // 分割暗号化のメッセージは、全体を組み立てずにチャンク毎に復号します
+                if (!isReady || privateKey == null || !SessionManager.isStreamEnvelope(firstByte)) return null;
+                if (senderHash.length == MessagePacket.COMPACT_ID_SIZE) {
+                    compactCapablePeers.add(IdentityManager.getCompactId(senderHash));
+                }
+                return new InboundStreamSink(
+                        sessions.openStream(senderHash, localAddressHash, privateKey, friendKeys), senderHash);
+            }
+
+            @Override
+            public void onAckReceived(byte[] payload, byte[] senderHash) {
+                // 中身のあるACKは、相手がセッション形式を解釈できることを示します
+                if (payload.length >= 1 && payload[0] == ACK_VERSION) {
+                    sessions.markCapable(senderHash);
+                    // セッションの確定は、その相手のセッションの確認値が付いている時だけです
+                    if (payload.length >= 1 + 8 + SessionManager.ACK_TAG_SIZE) {
+                        long sessionId = ByteBuffer.wrap(payload, 1, 8).getLong();
+                        byte[] tag = Arrays.copyOfRange(payload, 1 + 8, 1 + 8 + SessionManager.ACK_TAG_SIZE);
+                        // 確認値の後ろの1バイトは相手が対応している機能です（以前の版のACKには付いていません）
+                        int features = payload.length > 1 + 8 + SessionManager.ACK_TAG_SIZE
+                                ? payload[1 + 8 + SessionManager.ACK_TAG_SIZE] & 0xFF : 0;
+                        sessions.onAcknowledged(friendKeys.findCandidates(senderHash), sessionId, tag, features);
                     }
-                    sendAck(senderHash); // 受信確認を送信
+                } else if (payload.length == 1 + GroupCipher.KEY_REFERENCE_SIZE && payload[0] == ACK_KEY_REQUEST) {
+                    groupCipher.onKeyRequested(Arrays.copyOfRange(payload, 1, payload.length), senderHash);
                 }
             }
 
             @Override
-            public void onRelayRequest(MessagePacket packet) {
-                // 他のノードへのメッセージ転送（リレー）
-                Log.i(TAG, "メッセージを転送します: msgId " + packet.msgId);
-                routePacket(packet);
+            public boolean onGroupInvitation(byte[] groupHash, byte[] senderHash, byte[] firstChunk) {
+                // 一覧は誰でも書けるため、ここでは受け取るかを決めるだけです。参加と保存は復号と署名の確認の後に行います
+                if (!isReady || localAddressHash == null || groupHash.length != MessagePacket.HASH_SIZE) return false;
+                // 友達以外からの招待は、復号（秘密鍵の処理）を試す前に断ります
+                if (friendKeys.findCandidates(senderHash).isEmpty()) return false;
+                long[] recipients = GroupCipher.readRecipients(firstChunk, 0, firstChunk.length, groupHash);
+                return recipients != null && containsLocalId(recipients);
+            }
+
+            @Override
+            public void onRelayRequest(byte[] frame, int msgId) {
+                // 他のノードへのメッセージ転送（リレー）。再エンコードせずにそのまま送ります
+                if (BuildConfig.DEBUG) Log.d(TAG, "メッセージを転送します: msgId " + msgId);
+                routeFrame(frame);
+            }
+        });
+    }
+
+    private boolean containsLocalId(long[] recipients) {
+        long localId = IdentityManager.getCompactId(localAddressHash);
+        for (long recipient : recipients) {
+            if (recipient == localId) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 未参加のグループのメッセージを復号できた時に、そのグループに参加して保存します。
+     * 署名を友達の公開鍵で確認できたメッセージで、メンバーの一覧に自分が含まれている場合だけです。
+     *
+     * @return 参加した（または参加済みの）場合はtrue。招待として認めない場合はfalse
+     */
+    private boolean acceptInvitation(SessionManager.Decrypted decrypted, byte[] packagedData, int length,
+                                     byte[] senderHash) {
+        String groupAddress = Base64.encodeToString(decrypted.groupId, Base64.NO_WRAP);
+        if (joinedGroups.contains(groupAddress)) return true;
+        if (decrypted.senderAddress == null) return false;
+        long[] recipients = GroupCipher.readRecipients(packagedData, 0, length, decrypted.groupId);
+        if (recipients == null || !containsLocalId(recipients)) return false;
+        if (joinedGroups.add(groupAddress)) {
+            messageRouter.joinGroup(decrypted.groupId);
+            // 新しいグループとして保存します。メッセージの通知と同じスレッドで先に行うため、通知より前に保存されます
+            deliveryPool.submit(() -> saveInvitedGroup(decrypted.groupId, senderHash, recipients));
+        }
+        return true;
+    }
+
+    /**
+     * 招待されたグループ（初めてメッセージが届いたグループ）を保存します。
+     * メンバーは送信者と、一覧にある短縮IDのうち友達として特定できる相手です。
+     */
+    private void saveInvitedGroup(byte[] groupHash, byte[] senderHash, long[] recipients) {
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+        String groupAddress = Base64.encodeToString(groupHash, Base64.NO_WRAP);
+        if (dbHelper.getGroup(groupAddress) != null) return;
+
+        List<String> members = new ArrayList<>();
+        addUniqueMember(members, friendKeys.findCandidates(senderHash));
+        long localId = IdentityManager.getCompactId(localAddressHash);
+        for (long recipient : recipients) {
+            if (recipient == localId) continue;
+            addUniqueMember(members, friendKeys.findCandidates(ByteBuffer.allocate(8).putLong(recipient).array()));
+        }
+        dbHelper.addGroup(new Group("グループ", groupAddress, members));
+        Log.i(TAG, "新しいグループに参加しました（メンバー " + members.size() + "人）");
+    }
+
+    private static void addUniqueMember(List<String> members, List<FriendKeyIndex.Entry> candidates) {
+        // 短縮IDが衝突していて1人に決まらない相手は加えません
+        if (candidates.size() != 1) return;
+        String identity = candidates.get(0).getIdentityAddress();
+        if (!members.contains(identity)) members.add(identity);
+    }
+
+    /**
+     * 復号の結果を、同じ送信者から先に受信したメッセージの結果が揃うのを待ってから通知します。
+     */
+    private void deliverInOrder(long senderId, long ticket, SessionManager.Decrypted decrypted, byte[] senderHash) {
+        sequencer.complete(senderId, ticket, decrypted != null ? () -> deliver(decrypted, senderHash) : null);
+    }
+
+    /**
+     * 復号できたメッセージを画面に通知し、受信確認を返します。
+     * 通知の順番を保つため、配送用の1スレッドのプールで行います。
+     */
+    private void deliver(SessionManager.Decrypted decrypted, byte[] senderHash) {
+        byte[] plaintext = decrypted.message;
+        deliveryPool.submit(() -> {
+            if (handler != null) {
+                Message msg = handler.obtainMessage(MainActivity.MESSAGE_READ, plaintext.length, -1, plaintext);
+                Bundle bundle = new Bundle();
+                bundle.putString(MainActivity.SENDER_ADDRESS, conversationAddress(senderHash));
+                if (decrypted.groupId != null) {
+                    bundle.putString(MainActivity.GROUP_ID, Base64.encodeToString(decrypted.groupId, Base64.NO_WRAP));
+                }
+                msg.setData(bundle);
+                msg.sendToTarget();
+            }
+            // グループのメッセージには受信確認を返しません（メンバー全員のACKでメッシュが溢れるため）
+            if (decrypted.groupId == null) {
+                sendAck(senderHash, decrypted.sessionId, decrypted.ackTag); // 受信確認を送信
             }
         });
     }
 
     /**
-     * 受信したメッセージをRSA/AESを使用して復号します。
+     * 送信者の会話を保存する時の相手のアドレスを返します。
+     * 友達なら、会話の画面と同じデバイスアドレスです。友達でない、または短縮IDが衝突して
+     * 特定できない場合は、送信者のIDのBase64形式を使います（他の送信者の会話に混ざらないようにするため）。
+     */
+    private String conversationAddress(byte[] senderHash) {
+        List<FriendKeyIndex.Entry> candidates = friendKeys.findCandidates(senderHash);
+        if (candidates.size() == 1 && candidates.get(0).getAddress() != null) {
+            return candidates.get(0).getAddress();
+        }
+        return Base64.encodeToString(senderHash, Base64.NO_WRAP);
+    }
+
+    /**
+     * ルーターから順番に渡されるチャンクを、復号用のプールで1つずつ復号する受け口です。
+     * ルーターのスレッドではキューに入れるだけで、同じメッセージの処理は常に1つのスレッドだけが行うため、
+     * プールが複数スレッドでもチャンクの順番は保たれます。
+     * 他のメッセージとの順番は、最後のチャンクが届いた時点で決めます。
      */
-    private String performE2EDecryption(String packagedData, byte[] senderHash) {
+    private final class InboundStreamSink implements MessageRouter.ChunkSink {
+        private final SessionManager.InboundStream stream;
+        private final byte[] senderHash;
+        private final long senderId;
+        private final ConcurrentLinkedQueue<byte[]> chunks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean settled = new AtomicBoolean();
+        private volatile boolean failed;
+        // 最後のチャンクが届いた時に予約した番号（まだなら-1）
+        private volatile long ticket = -1;
+
+        InboundStreamSink(SessionManager.InboundStream stream, byte[] senderHash) {
+            this.stream = stream;
+            this.senderHash = senderHash;
+            this.senderId = IdentityManager.getCompactId(senderHash);
+        }
+
+        @Override
+        public boolean onChunk(byte[] chunk, boolean last) {
+            if (failed) return false;
+            if (last) ticket = sequencer.reserve(senderId);
+            chunks.offer(chunk);
+            if (scheduled.compareAndSet(false, true) && !cryptoPool.offer(this::drain)) {
+                // プールが詰まっていて受け付けられない場合は、このメッセージを諦めます。
+                // 実行中の drain はないので、ここで復号の状態を破棄できます
+                failed = true;
+                stream.abort();
+                settle(null);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void onAbort() {
+            failed = true;
+            // 復号の状態は drain を実行するスレッドで破棄します。実行中の drain があれば、それが破棄します
+            if (scheduled.compareAndSet(false, true) && !cryptoPool.offer(this::drain)) {
+                stream.abort();
+                settle(null);
+            }
+        }
+
+        /**
+         * 番号を予約済みなら、結果を1度だけ返します。
+         */
+        private void settle(SessionManager.Decrypted decrypted) {
+            long ticket = this.ticket;
+            if (ticket < 0 || !settled.compareAndSet(false, true)) return;
+            deliverInOrder(senderId, ticket, decrypted, senderHash);
+        }
+
+        private void drain() {
+            while (true) {
+                byte[] chunk;
+                while ((chunk = chunks.poll()) != null) {
+                    if (failed) continue;
+                    if (!stream.update(chunk, 0, chunk.length)) {
+                        failed = true;
+                    } else if (stream.isComplete()) {
+                        // 最後のセグメントまで認証できた時点で、メッセージとして渡します
+                        settle(stream.finish());
+                    }
+                }
+                if (failed) {
+                    stream.abort();
+                    settle(null);
+                }
+                scheduled.set(false);
+                // フラグを下ろした直後に入ったチャンクを取りこぼさないよう、もう一度確認します
+                if (chunks.isEmpty() || !scheduled.compareAndSet(false, true)) return;
+            }
+        }
+    }
+
+    /**
+     * 受信したメッセージを復号します。
+     * セッション形式ならセッション鍵（AESのみ）で、従来形式ならRSA/AESで復号します。
+     */
+    private SessionManager.Decrypted performE2EDecryption(byte[] packagedData, int length, byte[] senderHash) {
         if (!isReady || privateKey == null) return null;
+        if (GroupCipher.isGroupEnvelope(packagedData, 0, length)) {
+            SessionManager.Decrypted decrypted = groupCipher.decrypt(packagedData, 0, length, senderHash,
+                    localAddressHash, privateKey, friendKeys);
+            if (decrypted == null) {
+                // 送信者鍵の一覧を省いたメッセージで鍵を知らない場合は、送信者に一覧の再送を求めます
+                byte[] reference = groupCipher.missingKeyReference(packagedData, 0, length);
+                if (reference != null) sendKeyRequest(senderHash, reference);
+                return null;
+            }
+            // 未参加のグループのメッセージは、招待として認められた場合だけ渡します
+            return acceptInvitation(decrypted, packagedData, length, senderHash) ? decrypted : null;
+        }
+        if (SessionManager.isSessionEnvelope(packagedData, 0, length)) {
+            return sessions.decrypt(packagedData, 0, length, senderHash, localAddressHash, privateKey, friendKeys);
+        }
+        byte[] decrypted = performLegacyDecryption(packagedData, length, senderHash);
+        return decrypted != null ? new SessionManager.Decrypted(decrypted, 0) : null;
+    }
+
+    /**
+     * 従来形式（メッセージ毎にRSAで包んだAESキーと署名を持つBase64文字列）のメッセージを復号します。
+     */
+    private byte[] performLegacyDecryption(byte[] packagedData, int length, byte[] senderHash) {
         try {
-            byte[] rawData = Base64.decode(packagedData, Base64.NO_WRAP);
+            byte[] rawData = Base64.decode(packagedData, 0, length, Base64.NO_WRAP);
             if (rawData.length < 512) return null;
 
-            byte[] encryptedAesKey = new byte[256];
-            byte[] signatureBytes = new byte[256];
-            byte[] encryptedPayload = new byte[rawData.length - 512];
-
-            System.arraycopy(rawData, 0, encryptedAesKey, 0, 256);
-            System.arraycopy(rawData, 256, signatureBytes, 0, 256);
-            System.arraycopy(rawData, 512, encryptedPayload, 0, encryptedPayload.length);
+            byte[] encryptedAesKey = Arrays.copyOfRange(rawData, 0, 256);
+            byte[] signatureBytes = Arrays.copyOfRange(rawData, 256, 512);
 
             // 共通鍵をRSAで復号
             byte[] aesKey = EncryptionManager.decryptAESKeyWithRSA(encryptedAesKey, privateKey);
             if (aesKey == null) return null;
 
-            // 本文をAESで復号
-            String decryptedString = EncryptionManager.decrypt(Base64.encodeToString(encryptedPayload, Base64.NO_WRAP), aesKey);
-            if (decryptedString == null) return null;
+            // 本文をAESで復号（[IV][暗号文]の部分を、コピーせずにそのまま渡します）
+            byte[] decrypted = EncryptionManager.decryptBytes(rawData, 512, rawData.length - 512, aesKey, null);
+            if (decrypted == null) return null;
 
             // 署名の検証
-            DatabaseHelper dbHelper = new DatabaseHelper(context);
-            List<Friend> friends = dbHelper.getAllFriends();
-            PublicKey senderPublicKey = null;
-            for (Friend f : friends) {
-                if (Arrays.equals(IdentityManager.getAddressHash(f.getIdentityAddress()), senderHash)) {
-                    senderPublicKey = IdentityManager.getPublicKeyFromAddress(f.getIdentityAddress());
+            // 短縮IDで届いた場合、先頭8バイトが同じ友達が複数いる（衝突）ことがあるため、
+            // 候補全員の公開鍵で署名を試し、検証できた相手を本当の送信者とみなします。
+            List<FriendKeyIndex.Entry> candidates = friendKeys.findCandidates(senderHash);
+            boolean isValid = false;
+            for (FriendKeyIndex.Entry candidate : candidates) {
+                if (EncryptionManager.verifySignature(decrypted, signatureBytes, candidate.getPublicKey())) {
+                    isValid = true;
                     break;
                 }
             }
 
-            if (senderPublicKey != null) {
-                boolean isValid = EncryptionManager.verifySignature(decryptedString.getBytes(), signatureBytes, senderPublicKey);
-                if (!isValid) return null;
-            }
-            return decryptedString;
+            if (!candidates.isEmpty() && !isValid) return null;
+            return decrypted;
         } catch (Exception e) {
             Log.e(TAG, "復号エラー", e);
             return null;
@@ -181,55 +481,111 @@ public class ChatUtils {
 
     /**
      * 送信メッセージを暗号化します。
+     * セッション形式はバイナリのまま、従来形式は古いノードが読めるようBase64文字列のバイト列で返します。
      */
-    private String performE2EEncryption(String message, byte[] destHash) {
+    private byte[] performE2EEncryption(byte[] message, byte[] destHash) {
         if (!isReady || privateKey == null) return null;
         try {
-            DatabaseHelper dbHelper = new DatabaseHelper(context);
-            List<Friend> friends = dbHelper.getAllFriends();
-            PublicKey destPublicKey = null;
-            for (Friend f : friends) {
-                if (Arrays.equals(IdentityManager.getAddressHash(f.getIdentityAddress()), destHash)) {
-                    destPublicKey = IdentityManager.getPublicKeyFromAddress(f.getIdentityAddress());
-                    break;
-                }
+            FriendKeyIndex.Entry dest = friendKeys.find(destHash);
+            if (dest == null) return null;
+            // セッション形式を解釈できる相手には、キャッシュしたセッション鍵で送ります。
+            // 楕円曲線のIDは従来形式（RSA前提の固定長）では表せないため、常にセッション形式を使います
+            if (sessions.isCapable(destHash) || EncryptionManager.isEllipticCurve(dest.getPublicKey())
+                    || EncryptionManager.isEllipticCurve(privateKey)) {
+                return sessions.encrypt(message, dest, privateKey);
             }
-            if (destPublicKey == null) return null;
+            PublicKey destPublicKey = dest.getPublicKey();
 
             byte[] aesKey = EncryptionManager.generateRandomKey();
-            String encryptedPayloadString = EncryptionManager.encrypt(message, aesKey);
-            byte[] encryptedPayload = Base64.decode(encryptedPayloadString, Base64.NO_WRAP);
             byte[] encryptedAesKey = EncryptionManager.encryptAESKeyWithRSA(aesKey, destPublicKey);
-            byte[] signatureBytes = EncryptionManager.signData(message.getBytes(), privateKey);
+            byte[] signatureBytes = EncryptionManager.signData(message, privateKey);
+            if (encryptedAesKey == null || signatureBytes == null) return null;
 
-            byte[] packagedData = new byte[512 + encryptedPayload.length];
-            System.arraycopy(encryptedAesKey, 0, packagedData, 0, 256);
-            System.arraycopy(signatureBytes, 0, packagedData, 256, 256);
-            System.arraycopy(encryptedPayload, 0, packagedData, 512, encryptedPayload.length);
+            // [RSAで包んだキー 256][署名 256][IV + 暗号文] を1つの配列に直接書き込みます
+            ByteBuffer packagedData = ByteBuffer.allocate(512 + EncryptionManager.getEncryptedSize(message.length));
+            packagedData.put(encryptedAesKey, 0, 256).put(signatureBytes, 0, 256);
+            if (EncryptionManager.encryptTo(message, 0, message.length, aesKey, null, packagedData) < 0) return null;
 
-            return Base64.encodeToString(packagedData, Base64.NO_WRAP);
+            return Base64.encode(packagedData.array(), Base64.NO_WRAP);
         } catch (Exception e) {
             Log.e(TAG, "暗号化エラー", e);
             return null;
         }
     }
 
+    /**
+     * 送信先のIDを8バイトに短縮してよいかを決めます。
+     * 相手が短縮IDを解釈でき、かつ友達の中に短縮IDが衝突する相手がいない場合のみ短縮します。
+     * 衝突がある場合は、完全なIDで送ることで相手を一意に特定します。
+     */
+    private boolean canUseCompactIds(byte[] destHash) {
+        if (destHash.length != MessagePacket.HASH_SIZE) return false;
+        long compactId = IdentityManager.getCompactId(destHash);
+        if (!compactCapablePeers.contains(compactId)) return false;
+        return friendKeys.countCompactMatches(compactId) <= 1;
+    }
+
     /**
      * 受信確認（ACK）パケットを送信します。
+     * ACKは常に短縮IDで送り、相手に「このノードは短縮IDを解釈できる」ことを知らせます。
+     * 中身には ACK_VERSION（セッション形式に対応している印）と、受け取ったセッションIDとその確認値、
+     * 対応している機能のビット（SessionManager.LOCAL_FEATURES）を入れます。
+     */
+    private void sendAck(byte[] destHash, long sessionId, byte[] ackTag) {
+        if (localAddressHash == null) return;
+        boolean session = sessionId != 0 && ackTag != null;
+        ByteBuffer payload = ByteBuffer.allocate(session ? 1 + 8 + ackTag.length + 1 : 1).put(ACK_VERSION);
+        if (session) payload.putLong(sessionId).put(ackTag).put((byte) SessionManager.LOCAL_FEATURES);
+        sendAckPacket(destHash, payload.array());
+    }
+
+    /**
+     * グループの送信者に、包んだ鍵の一覧の再送を求めます。
+     * 中身は ACK_KEY_REQUEST と、受け取れなかった送信者鍵を表す [グループID 32][鍵ID 8] です。
      */
-    private void sendAck(byte[] destHash) {
+    private void sendKeyRequest(byte[] destHash, byte[] keyReference) {
         if (localAddressHash == null) return;
-        MessagePacket ackPacket = new MessagePacket(MessagePacket.TYPE_ACK, 0, (short)0, (short)1, destHash, localAddressHash, (byte)10, System.currentTimeMillis(), new byte[0]);
+        sendAckPacket(destHash, ByteBuffer.allocate(1 + keyReference.length)
+                .put(ACK_KEY_REQUEST).put(keyReference).array());
+    }
+
+    private void sendAckPacket(byte[] destHash, byte[] payload) {
+        // msgIdは毎回変えます（固定だと、中継ノードの重複排除で2回目以降のACKが捨てられるため）
+        int msgId = messageRouter.nextMsgId();
+        MessagePacket ackPacket = new MessagePacket(MessagePacket.TYPE_ACK, msgId, (short)0, (short)1, destHash, localAddressHash, (byte)10, System.currentTimeMillis(), payload);
+        ackPacket.compactIds = true;
         routePacket(ackPacket);
     }
 
     /**
      * パケットを接続中の全ノードに転送します。
+     * 接続毎に、相手が解釈できる最も新しいヘッダー形式でエンコードします。
      */
-    private void routePacket(MessagePacket packet) {
-        byte[] payload = packet.toBytes();
+    private synchronized void routePacket(MessagePacket packet) {
+        routingFrame = null;
+        routingPacket = packet;
+        routeToLinks();
+    }
+
+    /**
+     * エンコード済みのフレームを接続中の全ノードに転送します。
+     * フレームの形式を解釈できる相手には同じ配列をそのまま渡し、
+     * 古い形式しか解釈できない相手にだけ変換したフレームを送ります。
+     */
+    private synchronized void routeFrame(byte[] frame) {
+        routingFrame = frame;
+        routingFrameVersion = MessagePacket.getFrameVersion(frame[0]);
+        routingPacket = null;
+        routeToLinks();
+    }
+
+    private void routeToLinks() {
+        Arrays.fill(framesByVersion, null);
         // クライアントとして接続しているデバイスへ送信
         for (BluetoothGatt gatt : connectedClients) {
+            byte[] payload = frameForLink(getLinkVersion(gatt.getDevice()));
+            if (payload == null) continue;
+            payload = linkAuthenticator.seal(gatt.getDevice().getAddress(), payload);
             BluetoothGattService service = gatt.getService(SERVICE_UUID);
             if (service != null) {
                 BluetoothGattCharacteristic rx = service.getCharacteristic(CHAR_RX_UUID);
@@ -245,13 +601,71 @@ public class ChatUtils {
             if (service != null) {
                 BluetoothGattCharacteristic tx = service.getCharacteristic(CHAR_TX_UUID);
                 if (tx != null) {
-                    tx.setValue(payload);
                     for (BluetoothDevice device : connectedServerDevices) {
+                        byte[] payload = frameForLink(getLinkVersion(device));
+                        if (payload == null) continue;
+                        tx.setValue(linkAuthenticator.seal(device.getAddress(), payload));
                         gattServer.notifyCharacteristicChanged(device, tx, false);
                     }
                 }
             }
         }
+        routingFrame = null;
+        routingPacket = null;
+    }
+
+    /**
+     * 指定した形式まで解釈できる接続に送るフレームを返します。
+     * 同じ形式のエンコード結果は1回の転送の中で使い回します。
+     *
+     * @return 送れるフレーム。その接続では表現できない（短縮IDを旧形式にできない等）場合はnull
+     */
+    private byte[] frameForLink(int linkVersion) {
+        if (routingFrame != null) {
+            // 中継の高速パス：そのまま解釈できる相手には受信した配列を渡します
+            if (linkVersion >= routingFrameVersion) return routingFrame;
+            // 古い形式への変換が必要な場合のみ、フレームを解析し直します
+            if (routingPacket == null) {
+                routingPacket = MessagePacket.fromBytes(routingFrame);
+                if (routingPacket == null) return null;
+            }
+        }
+        for (int version = linkVersion; version >= MessagePacket.VERSION_LEGACY; version--) {
+            if (framesByVersion[version] != null) return framesByVersion[version];
+            if (routingPacket.canEncode((byte) version)) {
+                // GATTの送信APIは配列全体を送るため、フレーム長ちょうどの配列にエンコードします
+                byte[] frame = new byte[routingPacket.getEncodedLength((byte) version)];
+                routingPacket.encodeTo(ByteBuffer.wrap(frame), (byte) version);
+                framesByVersion[version] = frame;
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 受信したフレームのリンク認証タグを確認し、正しいものだけをルーターに渡します。
+     * タグが合わないフレームは、解析・組み立て・転送のどれも行わずにここで捨てます。
+     */
+    private void submitLinkFrame(String address, byte[] value) {
+        if (value == null) return;
+        int length = linkAuthenticator.open(address, value);
+        if (length < 0) {
+            if (BuildConfig.DEBUG) Log.d(TAG, "リンク認証タグが正しくないフレームを破棄しました: " + address);
+            return;
+        }
+        messageRouter.submitFrame(length == value.length ? value : Arrays.copyOf(value, length));
+    }
+
+    private int getLinkVersion(BluetoothDevice device) {
+        Integer version = linkVersions.get(device.getAddress());
+        return version != null ? version : MessagePacket.VERSION_LEGACY;
+    }
+
+    private void setLinkVersion(BluetoothDevice device, byte[] value) {
+        if (value == null || value.length < 1) return;
+        // 自分が解釈できる形式までに制限します
+        linkVersions.put(device.getAddress(), Math.min(value[0] & 0xFF, LOCAL_HEADER_VERSION));
     }
 
     public synchronized int getState() {
@@ -272,6 +686,7 @@ public class ChatUtils {
         if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) return;
         setState(STATE_LISTEN);
 
+        messageRouter.start();
         startGattServer();
         startAdvertising();
         startScanning();
@@ -291,6 +706,7 @@ public class ChatUtils {
         }
         connectedClients.clear();
         connectedServerDevices.clear();
+        messageRouter.stop();
         setState(STATE_NONE);
     }
 
@@ -306,6 +722,18 @@ public class ChatUtils {
         this.remoteAddressHash = hash;
     }
 
+    /**
+     * グループの会話を開きます。以降の write() はグループのメンバー全員に送られます。
+     * nullを渡すと、1対1の会話（setRemoteAddressHash の相手）に戻ります。
+     */
+    public void setActiveGroup(Group group) {
+        this.activeGroup = group;
+        if (group != null) {
+            joinedGroups.add(group.getGroupAddress());
+            messageRouter.joinGroup(group.getGroupHash());
+        }
+    }
+
     /**
      * メッセージをパケットに分割してネットワークへ送信します。
      */
@@ -314,12 +742,23 @@ public class ChatUtils {
             Log.w(TAG, "ChatUtilsの準備ができていません");
             return;
         }
-        byte[] dest = (remoteAddressHash != null) ? remoteAddressHash : new byte[32];
-        String message = new String(out);
-        String encrypted = performE2EEncryption(message, dest);
+        Group group = activeGroup;
+        byte[] dest;
+        byte[] encrypted;
+        if (group != null) {
+            // グループ宛ては1度だけ暗号化し、グループIDを宛先にした1つのメッセージとして流します
+            dest = group.getGroupHash();
+            encrypted = privateKey != null
+                    ? groupCipher.encrypt(dest, out, group.getMembers(), friendKeys, privateKey) : null;
+        } else {
+            dest = (remoteAddressHash != null) ? remoteAddressHash : new byte[32];
+            encrypted = performE2EEncryption(out, dest);
+        }
 
         if (encrypted != null) {
-            List<MessagePacket> packets = messageRouter.preparePackets(encrypted, dest, localAddressHash);
+            // グループIDは相手のノードではないため、短縮できるかを判断できません（常に完全なIDで送ります）
+            boolean compactIds = group == null && canUseCompactIds(dest);
+            List<MessagePacket> packets = messageRouter.preparePackets(encrypted, dest, localAddressHash, compactIds);
             for (MessagePacket p : packets) {
                 routePacket(p);
             }
@@ -350,9 +789,17 @@ public class ChatUtils {
         BluetoothGattCharacteristic txChar = new BluetoothGattCharacteristic(CHAR_TX_UUID,
                 BluetoothGattCharacteristic.PROPERTY_NOTIFY,
                 BluetoothGattCharacteristic.PERMISSION_READ);
-        
+        BluetoothGattCharacteristic versionChar = new BluetoothGattCharacteristic(CHAR_VERSION_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        BluetoothGattCharacteristic linkKeyChar = new BluetoothGattCharacteristic(CHAR_LINK_KEY_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+
         service.addCharacteristic(rxChar);
         service.addCharacteristic(txChar);
+        service.addCharacteristic(versionChar);
+        service.addCharacteristic(linkKeyChar);
         gattServer.addService(service);
     }
 
@@ -436,6 +883,8 @@ public class ChatUtils {
                 setState(STATE_CONNECTED);
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 connectedServerDevices.remove(device);
+                linkVersions.remove(device.getAddress());
+                linkAuthenticator.remove(device.getAddress());
                 if (connectedServerDevices.isEmpty() && connectedClients.isEmpty()) {
                     setState(STATE_LISTEN);
                 }
@@ -445,10 +894,48 @@ public class ChatUtils {
         @Override
         public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
             if (CHAR_RX_UUID.equals(characteristic.getUuid())) {
-                messageRouter.handleIncomingPacket(value);
+                // 応答を先に返してから、フレームをルーターのキューに入れるだけで戻ります
+                // （ルーターは転送時にこの配列のTTLを書き換えるため、順番を逆にしてはいけません）
                 if (responseNeeded) {
                     gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
                 }
+                submitLinkFrame(device.getAddress(), value);
+            } else if (CHAR_LINK_KEY_UUID.equals(characteristic.getUuid())) {
+                // 8バイトなら確認値、それ以外はクライアントの使い捨て公開鍵です
+                String address = device.getAddress();
+                boolean accepted;
+                if (value != null && value.length == LinkAuthenticator.TAG_SIZE) {
+                    accepted = linkAuthenticator.acceptConfirmation(address, value);
+                } else {
+                    accepted = linkAuthenticator.begin(address, false) != null
+                            && linkAuthenticator.derive(address, value);
+                }
+                if (responseNeeded) {
+                    gattServer.sendResponse(device, requestId,
+                            accepted ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE, offset, null);
+                }
+            } else if (CHAR_VERSION_UUID.equals(characteristic.getUuid())) {
+                // クライアントが対応しているヘッダー形式を記録します
+                setLinkVersion(device, value);
+                if (responseNeeded) {
+                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+                }
+            }
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+            if (CHAR_VERSION_UUID.equals(characteristic.getUuid())) {
+                gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, new byte[]{LOCAL_HEADER_VERSION});
+            } else if (CHAR_LINK_KEY_UUID.equals(characteristic.getUuid())) {
+                // 公開鍵はMTUより長いことがあるため、読み出し位置（offset）に合わせて続きを返します
+                byte[] publicKey = linkAuthenticator.getPublicKey(device.getAddress());
+                if (publicKey == null || offset > publicKey.length) {
+                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
+                } else {
+                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset,
+                            Arrays.copyOfRange(publicKey, offset, publicKey.length));
+                }
             }
         }
     };
@@ -469,6 +956,8 @@ public class ChatUtils {
                 }
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 connectedClients.remove(gatt);
+                linkVersions.remove(gatt.getDevice().getAddress());
+                linkAuthenticator.remove(gatt.getDevice().getAddress());
                 gatt.close();
                 if (connectedServerDevices.isEmpty() && connectedClients.isEmpty()) {
                     setState(STATE_LISTEN);
@@ -490,10 +979,67 @@ public class ChatUtils {
             }
         }
 
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            // 相手が対応形式の交換に対応していれば、自分の対応形式を書き込みます（旧ノードには特性がありません）
+            BluetoothGattService service = gatt.getService(SERVICE_UUID);
+            if (service == null) return;
+            BluetoothGattCharacteristic versionChar = service.getCharacteristic(CHAR_VERSION_UUID);
+            if (versionChar != null) {
+                versionChar.setValue(new byte[]{LOCAL_HEADER_VERSION});
+                gatt.writeCharacteristic(versionChar);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            // 書き込みが終わってから、相手の対応形式を読み出します（GATT操作は1つずつしか行えません）
+            if (status != BluetoothGatt.GATT_SUCCESS) return;
+            if (CHAR_VERSION_UUID.equals(characteristic.getUuid())) {
+                gatt.readCharacteristic(characteristic);
+            } else if (CHAR_LINK_KEY_UUID.equals(characteristic.getUuid())) {
+                byte[] written = characteristic.getValue();
+                if (written != null && written.length == LinkAuthenticator.TAG_SIZE) {
+                    // 確認値が受け入れられたので、以降のフレームにはタグを付けます
+                    linkAuthenticator.activate(gatt.getDevice().getAddress());
+                } else {
+                    // 公開鍵を渡せたので、サーバーの公開鍵を読み出します
+                    gatt.readCharacteristic(characteristic);
+                }
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) return;
+            String address = gatt.getDevice().getAddress();
+            if (CHAR_VERSION_UUID.equals(characteristic.getUuid())) {
+                setLinkVersion(gatt.getDevice(), characteristic.getValue());
+                // 続けてリンク鍵を交換します（旧ノードには特性がないため、タグなしのまま通信します）
+                BluetoothGattCharacteristic linkKeyChar = characteristic.getService().getCharacteristic(CHAR_LINK_KEY_UUID);
+                byte[] publicKey = linkKeyChar != null ? linkAuthenticator.begin(address, true) : null;
+                if (publicKey != null) {
+                    linkKeyChar.setValue(publicKey);
+                    gatt.writeCharacteristic(linkKeyChar);
+                }
+            } else if (CHAR_LINK_KEY_UUID.equals(characteristic.getUuid())) {
+                byte[] confirmation = linkAuthenticator.derive(address, characteristic.getValue())
+                        ? linkAuthenticator.confirmation(address) : null;
+                if (confirmation != null) {
+                    characteristic.setValue(confirmation);
+                    gatt.writeCharacteristic(characteristic);
+                }
+            }
+        }
+
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             if (CHAR_TX_UUID.equals(characteristic.getUuid())) {
-                messageRouter.handleIncomingPacket(characteristic.getValue());
+                // getValue()の配列は次の通知で上書きされることがあるため、コピーしてからキューに入れます
+                byte[] value = characteristic.getValue();
+                if (value == null) return;
+                int length = linkAuthenticator.open(gatt.getDevice().getAddress(), value);
+                if (length >= 0) messageRouter.submitFrame(Arrays.copyOf(value, length));
             }
         }
     };
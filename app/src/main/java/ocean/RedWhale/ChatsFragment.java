@@ -56,7 +56,7 @@ public class ChatsFragment extends Fragment {
 
         emptyState = view.findViewById(R.id.tv_empty_chats);
 
-        dbHelper = new DatabaseHelper(getContext());
+        dbHelper = DatabaseHelper.getInstance(getContext());
 
         FloatingActionButton fab = view.findViewById(R.id.fab_new_chat);
         // フローティングアクションボタン（FAB）のクリックリスナー
@@ -0,0 +1,96 @@
+package ocean.RedWhale;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.Signature;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * 暗号処理で使うオブジェクトを、スレッド毎に使い回すためのクラスです。
+ *
+ * Androidでは Cipher.getInstance などのたびにプロバイダーの検索が行われ、メッセージ本体の暗号化より
+ * 時間がかかることもあります。Cipher・Mac・Signature はスレッドセーフではないため、
+ * スレッド毎に1つずつ作って保持し、呼び出しの度に init し直して使います。
+ * SecureRandom はスレッドセーフなので、アプリ全体で1つを共有します。
+ *
+ * Cipher や Signature のプロバイダーは最初の init で決まるため、Keystoreの秘密鍵で使うものと
+ * 端末外の公開鍵で使うものは、別々のインスタンスにしています。
+ */
+final class CryptoContext {
+    static final String AES_MODE = "AES/GCM/NoPadding";
+    static final String RSA_MODE = "RSA/ECB/PKCS1Padding";
+    static final String HMAC_ALGORITHM = "HmacSHA256";
+    static final String RSA_SIGNATURE_ALGORITHM = "SHA256withRSA";
+    static final String EC_SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<CryptoContext> CONTEXT = new ThreadLocal<CryptoContext>() {
+        @Override
+        protected CryptoContext initialValue() {
+            return new CryptoContext();
+        }
+    };
+
+    private Cipher aesGcm;
+    private Cipher rsaPublic;
+    private Cipher rsaPrivate;
+    private Mac hmac;
+    // [楕円曲線か][署名(秘密鍵)か検証(公開鍵)か]
+    private final Signature[][] signatures = new Signature[2][2];
+
+    private CryptoContext() {
+    }
+
+    /**
+     * 現在のスレッド用のコンテキストを返します。
+     */
+    static CryptoContext get() {
+        return CONTEXT.get();
+    }
+
+    /**
+     * アプリ全体で共有する乱数生成器を返します。
+     */
+    static SecureRandom random() {
+        return RANDOM;
+    }
+
+    Cipher aesGcm() throws GeneralSecurityException {
+        if (aesGcm == null) aesGcm = Cipher.getInstance(AES_MODE);
+        return aesGcm;
+    }
+
+    /**
+     * 公開鍵での暗号化（forPrivateKey=false）、または秘密鍵での復号（true）に使うRSAのCipherを返します。
+     */
+    Cipher rsa(boolean forPrivateKey) throws GeneralSecurityException {
+        if (forPrivateKey) {
+            if (rsaPrivate == null) rsaPrivate = Cipher.getInstance(RSA_MODE);
+            return rsaPrivate;
+        }
+        if (rsaPublic == null) rsaPublic = Cipher.getInstance(RSA_MODE);
+        return rsaPublic;
+    }
+
+    Mac hmac() throws GeneralSecurityException {
+        if (hmac == null) hmac = Mac.getInstance(HMAC_ALGORITHM);
+        return hmac;
+    }
+
+    /**
+     * 署名（forSigning=true、秘密鍵）または検証（false、公開鍵）に使うSignatureを返します。
+     */
+    Signature signature(boolean ellipticCurve, boolean forSigning) throws GeneralSecurityException {
+        int curve = ellipticCurve ? 1 : 0;
+        int purpose = forSigning ? 1 : 0;
+        Signature signature = signatures[curve][purpose];
+        if (signature == null) {
+            signature = Signature.getInstance(ellipticCurve ? EC_SIGNATURE_ALGORITHM : RSA_SIGNATURE_ALGORITHM);
+            signatures[curve][purpose] = signature;
+        }
+        return signature;
+    }
+}
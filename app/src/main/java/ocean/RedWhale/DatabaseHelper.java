@@ -5,16 +5,22 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * チャット履歴や連絡先（友達リスト）を端末の内部ストレージに安全に保存・管理するための
  * ローカルデータベースのヘルパークラスです。
  * SQLite（Android標準の軽量データベース）を使用しています。
+ *
+ * 接続はアプリ全体で1つだけ開き（getInstance）、閉じずに使い回します。
+ * 先行書き込みログ（WAL）を有効にしているため、読み込みは書き込みの完了を待たずに並行して行えます。
+ * メッセージ履歴の追加は MessageWriter の1スレッドでまとめて書き込みます。
  */
 public class DatabaseHelper extends SQLiteOpenHelper {
 
@@ -22,11 +28,20 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     // データベースとテーブルの設定
     // ---------------------------------------------------------
     private static final String DATABASE_NAME = "RedWhale.db"; // データベースのファイル名
-    private static final int DATABASE_VERSION = 1;             // バージョン。仕様が変わった時に上げます。
+    private static final int DATABASE_VERSION = 6;             // バージョン。仕様が変わった時に上げます。
+    // 2: グループチャット（chat_groups, group_members）を追加
+    // 3: メッセージ履歴に会話ID（conversation_id）と、その索引を追加
+    // 4: チャット一覧用に、会話ごとの最新状態をまとめたテーブル（conversations）を追加
+    // 5: メッセージ検索用の全文検索（FTS4）の索引（messages_fts）を追加
+    // 6: 日本語などを文の途中の言葉で探すための列（search_text）を追加し、検索の索引に含めました
 
     // テーブル（データを保存する表）の名前
     private static final String TABLE_FRIENDS = "friends";   // 連絡先用テーブル
     private static final String TABLE_MESSAGES = "messages"; // メッセージ履歴用テーブル
+    private static final String TABLE_GROUPS = "chat_groups";          // グループ用テーブル
+    private static final String TABLE_GROUP_MEMBERS = "group_members"; // グループのメンバー用テーブル
+    private static final String TABLE_CONVERSATIONS = "conversations"; // 会話ごとの最新状態（チャット一覧）用テーブル
+    private static final String TABLE_MESSAGES_FTS = "messages_fts";   // メッセージ検索用の全文検索の索引
 
     // 'friends' テーブルの列名（カラム）
     private static final String KEY_FRIEND_ID = "id";                     // 管理用の連番
@@ -41,12 +56,65 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String KEY_MESSAGE_CONTENT = "content";         // メッセージ内容（平文または暗号文）
     private static final String KEY_MESSAGE_TIMESTAMP = "timestamp";     // 送受信した時間
     private static final String KEY_MESSAGE_IS_SENT = "is_sent";         // 自分が送信したか（1:送信, 0:受信）
+    private static final String KEY_MESSAGE_CONVERSATION_ID = "conversation_id"; // 2人のアドレスから作る会話ID
+    private static final String KEY_MESSAGE_SEARCH_TEXT = "search_text"; // 検索用に2文字ずつに分けた本文（SearchText、日本語などを含む時だけ）
+
+    // 会話ID（conversation_id, timestamp）の索引名
+    private static final String INDEX_MESSAGES_CONVERSATION = "idx_messages_conversation";
+    // 会話IDで2つのアドレスをつなぐ文字。MACアドレスにもBase64にも含まれません
+    private static final String CONVERSATION_SEPARATOR = "|";
+
+    // 'conversations' テーブルの列名（カラム）
+    private static final String KEY_CONV_ID = "conversation_id";        // 会話ID（messages と同じ値、一意）
+    private static final String KEY_CONV_LOCAL_ADDRESS = "local_address"; // 自分のアドレス
+    private static final String KEY_CONV_PEER_ADDRESS = "peer_address";   // 相手（友達またはグループ）のアドレス
+    private static final String KEY_CONV_LAST_MESSAGE = "last_message";   // 最後のメッセージ内容
+    private static final String KEY_CONV_LAST_TIMESTAMP = "last_timestamp"; // 最後のメッセージの時間
+    private static final String KEY_CONV_UNREAD = "unread_count";         // まだ読んでいない受信メッセージの数
+    private static final String KEY_CONV_DISPLAY_NAME = "display_name";   // 一覧に表示する名前
+
+    // チャット一覧を新しい順に引くための索引名
+    private static final String INDEX_CONVERSATIONS_RECENT = "idx_conversations_recent";
+
+    // 'groups' テーブルの列名（カラム）
+    private static final String KEY_GROUP_ID = "id";                 // 管理用の連番
+    private static final String KEY_GROUP_ADDRESS = "group_address"; // グループID（Base64、一意）
+    private static final String KEY_GROUP_NAME = "name";             // 表示名
+
+    // 'group_members' テーブルの列名（カラム）
+    private static final String KEY_MEMBER_GROUP_ADDRESS = "group_address"; // 所属するグループのID
+    private static final String KEY_MEMBER_IDENTITY = "identity_address";   // メンバーの公開鍵（アイデンティティ）
+
+    // 相手のアドレスから表示名を引くSQL（%s に相手のアドレスの式が入ります）。
+    // 友達、グループの順に探し、どちらでもなければUnknownにします
+    private static final String DISPLAY_NAME_SQL = "COALESCE(" +
+            "(SELECT " + KEY_FRIEND_NAME + " FROM " + TABLE_FRIENDS + " WHERE " + KEY_FRIEND_ADDRESS + " = %1$s), " +
+            "(SELECT " + KEY_GROUP_NAME + " FROM " + TABLE_GROUPS + " WHERE " + KEY_GROUP_ADDRESS + " = %1$s), " +
+            "'Unknown')";
+
+    private static DatabaseHelper instance;
+
+    // メッセージ履歴の書き込みをまとめて行うスレッド
+    private final MessageWriter messageWriter;
 
     /**
-     * コンストラクタ
+     * アプリ全体で共有するインスタンスを返します。
      */
-    public DatabaseHelper(@Nullable Context context) {
+    public static synchronized DatabaseHelper getInstance(@Nullable Context context) {
+        if (instance == null) {
+            // 画面（Activity）を保持し続けないように、アプリケーションのContextを使います
+            instance = new DatabaseHelper(context != null ? context.getApplicationContext() : null);
+        }
+        return instance;
+    }
+
+    /**
+     * コンストラクタ（getInstance からのみ呼ばれます）
+     */
+    private DatabaseHelper(@Nullable Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+        messageWriter = new MessageWriter(this);
     }
 
     /**
@@ -72,26 +140,168 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 KEY_MESSAGE_TO_ADDRESS + " TEXT," +
                 KEY_MESSAGE_CONTENT + " TEXT," +
                 KEY_MESSAGE_TIMESTAMP + " INTEGER," +
-                KEY_MESSAGE_IS_SENT + " INTEGER" + // booleanの代わりに1と0を使います
+                KEY_MESSAGE_IS_SENT + " INTEGER," + // booleanの代わりに1と0を使います
+                KEY_MESSAGE_CONVERSATION_ID + " TEXT," +
+                KEY_MESSAGE_SEARCH_TEXT + " TEXT" +
                 ")";
 
         // 上記のSQLを実行してテーブルを作ります。
         db.execSQL(CREATE_FRIENDS_TABLE);
         db.execSQL(CREATE_MESSAGES_TABLE);
+        // 以降のバージョンで追加したテーブルや索引も作ります
+        createGroupTables(db);
+        createConversationIndex(db);
+        createConversationsTable(db);
+        createSearchIndex(db);
     }
 
     /**
      * アプリのバージョンアップなどで、データベースの構造（列など）が変わったときに呼ばれます。
+     * 古いバージョンから順番に、必要な変更だけを適用します（保存済みの友達や履歴は消しません）。
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (oldVersion != newVersion) {
-            // 現在は古いテーブルを一旦削除して、新しい設計で作り直すシンプルな処理にしています。
-            // ※本来はデータを消さずにALTER TABLEで列を追加したりします。
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE_FRIENDS);
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGES);
-            onCreate(db);
+        if (oldVersion < 2) {
+            createGroupTables(db);
+        }
+        if (oldVersion < 3) {
+            // 列を追加し、保存済みの履歴にも会話IDを埋めてから索引を作ります
+            // （conversationId() と同じ規則です。アドレスはASCIIなので、SQLiteとJavaの大小比較は一致します）
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + KEY_MESSAGE_CONVERSATION_ID + " TEXT");
+            String from = "IFNULL(" + KEY_MESSAGE_FROM_ADDRESS + ", '')";
+            String to = "IFNULL(" + KEY_MESSAGE_TO_ADDRESS + ", '')";
+            db.execSQL("UPDATE " + TABLE_MESSAGES + " SET " + KEY_MESSAGE_CONVERSATION_ID + " = " +
+                    "CASE WHEN " + from + " <= " + to +
+                    " THEN " + from + " || '" + CONVERSATION_SEPARATOR + "' || " + to +
+                    " ELSE " + to + " || '" + CONVERSATION_SEPARATOR + "' || " + from + " END");
+            createConversationIndex(db);
+        }
+        if (oldVersion < 4) {
+            createConversationsTable(db);
+            // 保存済みの履歴から、会話ごとに最新の1件を取り出して一覧を作ります
+            // （SQLiteでは MAX() と一緒に選んだ列は、最大値を持つ行の値になります）
+            db.execSQL("INSERT INTO " + TABLE_CONVERSATIONS + " (" + KEY_CONV_ID + ", " + KEY_CONV_LOCAL_ADDRESS + ", " +
+                    KEY_CONV_PEER_ADDRESS + ", " + KEY_CONV_LAST_MESSAGE + ", " + KEY_CONV_LAST_TIMESTAMP + ", " + KEY_CONV_UNREAD + ") " +
+                    "SELECT " + KEY_MESSAGE_CONVERSATION_ID + ", " +
+                    "CASE WHEN " + KEY_MESSAGE_IS_SENT + " = 1 THEN " + KEY_MESSAGE_FROM_ADDRESS + " ELSE " + KEY_MESSAGE_TO_ADDRESS + " END, " +
+                    "CASE WHEN " + KEY_MESSAGE_IS_SENT + " = 1 THEN " + KEY_MESSAGE_TO_ADDRESS + " ELSE " + KEY_MESSAGE_FROM_ADDRESS + " END, " +
+                    KEY_MESSAGE_CONTENT + ", MAX(" + KEY_MESSAGE_TIMESTAMP + "), 0 " +
+                    "FROM " + TABLE_MESSAGES + " GROUP BY " + KEY_MESSAGE_CONVERSATION_ID);
+            db.execSQL("UPDATE " + TABLE_CONVERSATIONS + " SET " + KEY_CONV_DISPLAY_NAME + " = " +
+                    String.format(DISPLAY_NAME_SQL, KEY_CONV_PEER_ADDRESS));
+        }
+        if (oldVersion < 6) {
+            // バージョン5の検索の索引は search_text の列がないため、作り直します
+            if (oldVersion == 5) dropSearchIndex(db);
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + KEY_MESSAGE_SEARCH_TEXT + " TEXT");
+            fillSearchText(db);
+            createSearchIndex(db);
+            // 保存済みの履歴から、検索の索引をまとめて作ります
+            db.execSQL("INSERT INTO " + TABLE_MESSAGES_FTS + "(" + TABLE_MESSAGES_FTS + ") VALUES('rebuild')");
+        }
+    }
+
+    /**
+     * 保存済みの履歴の search_text を埋めます（バージョン6で追加）。
+     * 変換（SearchText）はSQLでは書けないため、日本語などを含む本文を1件ずつ読んで更新します。
+     */
+    private static void fillSearchText(SQLiteDatabase db) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_MESSAGES + " SET " + KEY_MESSAGE_SEARCH_TEXT +
+                " = ? WHERE " + KEY_MESSAGE_ID + " = ?");
+        Cursor cursor = db.rawQuery("SELECT " + KEY_MESSAGE_ID + ", " + KEY_MESSAGE_CONTENT + " FROM " + TABLE_MESSAGES +
+                " WHERE " + KEY_MESSAGE_CONTENT + " IS NOT NULL", null);
+        while (cursor.moveToNext()) {
+            String searchText = SearchText.toIndexText(cursor.getString(1));
+            if (searchText == null) continue;
+            update.bindString(1, searchText);
+            update.bindLong(2, cursor.getLong(0));
+            update.executeUpdateDelete();
+        }
+        cursor.close();
+        update.close();
+    }
+
+    /**
+     * 会話ごとに時系列で履歴を引くための索引を作ります（バージョン3で追加）。
+     * 会話を開く時は、全件を調べずにこの索引の範囲だけを読みます。
+     */
+    private static void createConversationIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_MESSAGES_CONVERSATION + " ON " + TABLE_MESSAGES +
+                "(" + KEY_MESSAGE_CONVERSATION_ID + ", " + KEY_MESSAGE_TIMESTAMP + ")");
+    }
+
+    /**
+     * 会話ごとの最新のメッセージ、未読数、表示名をまとめたテーブルを作ります（バージョン4で追加）。
+     * メッセージを保存する時に同じトランザクションで更新するので、チャット一覧は索引を1回引くだけで読めます。
+     */
+    private static void createConversationsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CONVERSATIONS +
+                "(" +
+                KEY_CONV_ID + " TEXT PRIMARY KEY," +
+                KEY_CONV_LOCAL_ADDRESS + " TEXT," +
+                KEY_CONV_PEER_ADDRESS + " TEXT," +
+                KEY_CONV_LAST_MESSAGE + " TEXT," +
+                KEY_CONV_LAST_TIMESTAMP + " INTEGER," +
+                KEY_CONV_UNREAD + " INTEGER DEFAULT 0," +
+                KEY_CONV_DISPLAY_NAME + " TEXT" +
+                ")");
+        db.execSQL("CREATE INDEX " + INDEX_CONVERSATIONS_RECENT + " ON " + TABLE_CONVERSATIONS +
+                "(" + KEY_CONV_LOCAL_ADDRESS + ", " + KEY_CONV_LAST_TIMESTAMP + ")");
+    }
+
+    /**
+     * メッセージ本文の全文検索の索引を作ります（バージョン5で追加、6で search_text の列を追加）。
+     * 本文は messages テーブルから読むため（external content）、索引には単語の情報だけを持ちます。
+     * 索引はトリガーで messages と同じ内容に保つので、書き込み側は search_text を一緒に保存するだけです。
+     */
+    private static void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_MESSAGES_FTS + " USING fts4(" +
+                "content=\"" + TABLE_MESSAGES + "\", " + KEY_MESSAGE_CONTENT + ", " + KEY_MESSAGE_SEARCH_TEXT +
+                ", tokenize=unicode61)");
+        // 変更・削除の前に古い内容を索引から消し、追加・変更の後に新しい内容を索引に入れます
+        db.execSQL("CREATE TRIGGER " + TABLE_MESSAGES_FTS + "_bu BEFORE UPDATE ON " + TABLE_MESSAGES + " BEGIN " +
+                "DELETE FROM " + TABLE_MESSAGES_FTS + " WHERE docid = old." + KEY_MESSAGE_ID + "; END");
+        db.execSQL("CREATE TRIGGER " + TABLE_MESSAGES_FTS + "_bd BEFORE DELETE ON " + TABLE_MESSAGES + " BEGIN " +
+                "DELETE FROM " + TABLE_MESSAGES_FTS + " WHERE docid = old." + KEY_MESSAGE_ID + "; END");
+        String insertColumns = "INSERT INTO " + TABLE_MESSAGES_FTS + "(docid, " + KEY_MESSAGE_CONTENT + ", " +
+                KEY_MESSAGE_SEARCH_TEXT + ") VALUES (new." + KEY_MESSAGE_ID + ", new." + KEY_MESSAGE_CONTENT + ", new." +
+                KEY_MESSAGE_SEARCH_TEXT + "); END";
+        db.execSQL("CREATE TRIGGER " + TABLE_MESSAGES_FTS + "_au AFTER UPDATE ON " + TABLE_MESSAGES + " BEGIN " + insertColumns);
+        db.execSQL("CREATE TRIGGER " + TABLE_MESSAGES_FTS + "_ai AFTER INSERT ON " + TABLE_MESSAGES + " BEGIN " + insertColumns);
+    }
+
+    private static void dropSearchIndex(SQLiteDatabase db) {
+        for (String trigger : new String[]{"_bu", "_bd", "_au", "_ai"}) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_MESSAGES_FTS + trigger);
         }
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGES_FTS);
+    }
+
+    /**
+     * 2つのアドレスから会話IDを作ります。どちらが送信元でも同じ値になるよう、小さい方を先にします。
+     */
+    static String conversationId(String address1, String address2) {
+        String a = address1 != null ? address1 : "";
+        String b = address2 != null ? address2 : "";
+        return a.compareTo(b) <= 0 ? a + CONVERSATION_SEPARATOR + b : b + CONVERSATION_SEPARATOR + a;
+    }
+
+    /**
+     * グループと、そのメンバーのテーブルを作ります（バージョン2で追加）。
+     */
+    private static void createGroupTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_GROUPS +
+                "(" +
+                KEY_GROUP_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                KEY_GROUP_ADDRESS + " TEXT UNIQUE," +
+                KEY_GROUP_NAME + " TEXT" +
+                ")");
+        db.execSQL("CREATE TABLE " + TABLE_GROUP_MEMBERS +
+                "(" +
+                KEY_MEMBER_GROUP_ADDRESS + " TEXT," +
+                KEY_MEMBER_IDENTITY + " TEXT," +
+                "UNIQUE(" + KEY_MEMBER_GROUP_ADDRESS + ", " + KEY_MEMBER_IDENTITY + ")" +
+                ")");
     }
 
     // ---------------------------------------------------------
@@ -115,7 +325,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
         // CONFLICT_REPLACEを使うことで、アドレスが重複した時は「エラー」ではなく「上書き」にします。
         long id = db.insertWithOnConflict(TABLE_FRIENDS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
-        db.close(); // DBを閉じる
+        // チャット一覧に表示する名前も新しくします
+        updateDisplayName(db, friend.getAddress(), friend.getName());
+        // 暗号化で使う公開鍵の索引にも反映します
+        if (id != -1) FriendKeyIndex.getInstance().put(friend);
         return id;
     }
 
@@ -153,80 +366,351 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             } while (cursor.moveToNext()); // 次の行がある限り繰り返す
         }
         cursor.close();
-        db.close();
         return friends;
     }
 
+    // ---------------------------------------------------------
+    // グループの操作
+    // ---------------------------------------------------------
+
+    /**
+     * グループとメンバーをデータベースに保存します。
+     * 同じグループIDが既に登録されている場合は、名前とメンバーを上書き更新します。
+     *
+     * @param group 保存するグループ
+     * @return 追加・更新された行のID（失敗した場合は-1）
+     */
+    public long addGroup(Group group) {
+        SQLiteDatabase db = getWritableDatabase();
+        long id;
+        // グループとメンバーをまとめて1つのトランザクションで書き込みます
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(KEY_GROUP_ADDRESS, group.getGroupAddress());
+            values.put(KEY_GROUP_NAME, group.getName());
+            id = db.insertWithOnConflict(TABLE_GROUPS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+            db.delete(TABLE_GROUP_MEMBERS, KEY_MEMBER_GROUP_ADDRESS + " = ?", new String[]{group.getGroupAddress()});
+            for (String member : group.getMembers()) {
+                ContentValues memberValues = new ContentValues();
+                memberValues.put(KEY_MEMBER_GROUP_ADDRESS, group.getGroupAddress());
+                memberValues.put(KEY_MEMBER_IDENTITY, member);
+                db.insertWithOnConflict(TABLE_GROUP_MEMBERS, null, memberValues, SQLiteDatabase.CONFLICT_IGNORE);
+            }
+            updateDisplayName(db, group.getGroupAddress(), group.getName());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return id;
+    }
+
+    /**
+     * グループIDからグループを取得します。
+     *
+     * @return グループ（登録されていなければnull）
+     */
+    public Group getGroup(String groupAddress) {
+        SQLiteDatabase db = getReadableDatabase();
+        Group group = null;
+        Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE_GROUPS + " WHERE " + KEY_GROUP_ADDRESS + " = ?",
+                new String[]{groupAddress});
+        if (cursor.moveToFirst()) {
+            group = readGroup(db, cursor);
+        }
+        cursor.close();
+        return group;
+    }
+
+    /**
+     * 保存されているすべてのグループを取得します。
+     */
+    public List<Group> getAllGroups() {
+        List<Group> groups = new ArrayList<>();
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE_GROUPS, null);
+        if (cursor.moveToFirst()) {
+            do {
+                Group group = readGroup(db, cursor);
+                if (group != null) groups.add(group);
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+        return groups;
+    }
+
+    /**
+     * カーソルの現在の行と、メンバーのテーブルからグループを作ります。
+     */
+    private Group readGroup(SQLiteDatabase db, Cursor cursor) {
+        int idIndex = cursor.getColumnIndex(KEY_GROUP_ID);
+        int addressIndex = cursor.getColumnIndex(KEY_GROUP_ADDRESS);
+        int nameIndex = cursor.getColumnIndex(KEY_GROUP_NAME);
+        if (idIndex == -1 || addressIndex == -1 || nameIndex == -1) return null;
+
+        String groupAddress = cursor.getString(addressIndex);
+        List<String> members = new ArrayList<>();
+        Cursor memberCursor = db.rawQuery("SELECT " + KEY_MEMBER_IDENTITY + " FROM " + TABLE_GROUP_MEMBERS +
+                " WHERE " + KEY_MEMBER_GROUP_ADDRESS + " = ?", new String[]{groupAddress});
+        while (memberCursor.moveToNext()) {
+            members.add(memberCursor.getString(0));
+        }
+        memberCursor.close();
+        return new Group(cursor.getInt(idIndex), cursor.getString(nameIndex), groupAddress, members);
+    }
+
+    /**
+     * 相手のアドレスに対応する、チャット一覧の表示名を更新します。
+     */
+    private static void updateDisplayName(SQLiteDatabase db, String peerAddress, String name) {
+        if (peerAddress == null) return;
+        ContentValues values = new ContentValues();
+        values.put(KEY_CONV_DISPLAY_NAME, name != null ? name : "Unknown");
+        db.update(TABLE_CONVERSATIONS, values, KEY_CONV_PEER_ADDRESS + " = ?", new String[]{peerAddress});
+    }
+
     // ---------------------------------------------------------
     // メッセージの操作
     // ---------------------------------------------------------
 
     /**
      * 新しいチャットメッセージを履歴としてデータベースに保存します。
+     * 保存は書き込み用のスレッドで数ミリ秒分ずつまとめて行うため、この呼び出しはすぐに戻ります
+     * （UIスレッドから呼んでも構いません）。
      *
      * @param chatMessage 保存するメッセージの内容（自分の送信か相手の受信かを含む）
      * @param fromAddress 送信元のアドレス
      * @param toAddress   送信先のアドレス
      */
     public void addMessage(ChatMessage chatMessage, String fromAddress, String toAddress) {
+        // 時間は書き込んだ時ではなく、送受信した時のもの（メッセージに時間があればその時間）を保存します
+        long timestamp = chatMessage.getTimestamp() != 0 ? chatMessage.getTimestamp() : System.currentTimeMillis();
+        messageWriter.enqueue(new MessageWriter.Pending(fromAddress, toAddress, chatMessage.getMessage(),
+                timestamp, chatMessage.isSentByUser()));
+    }
+
+    /**
+     * 溜まったメッセージをまとめて1つのトランザクションで保存します（MessageWriter のスレッドから呼ばれます）。
+     * チャット一覧（conversations）と既読も、キューに入った順に同じトランザクションで更新します。
+     */
+    void insertMessages(List<MessageWriter.Pending> batch) {
         SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        
-        values.put(KEY_MESSAGE_FROM_ADDRESS, fromAddress);
-        values.put(KEY_MESSAGE_TO_ADDRESS, toAddress);
-        values.put(KEY_MESSAGE_CONTENT, chatMessage.getMessage());
-        values.put(KEY_MESSAGE_TIMESTAMP, System.currentTimeMillis()); // 現在の時間をミリ秒で保存
-        values.put(KEY_MESSAGE_IS_SENT, chatMessage.isSentByUser() ? 1 : 0); // 自分が送ったなら1
-
-        db.insert(TABLE_MESSAGES, null, values); // データを追加
-        db.close();
+        db.beginTransaction();
+        try {
+            // 同じSQLを使い回し、行毎の解析を省きます
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_MESSAGES + " (" +
+                    KEY_MESSAGE_FROM_ADDRESS + ", " + KEY_MESSAGE_TO_ADDRESS + ", " + KEY_MESSAGE_CONTENT + ", " +
+                    KEY_MESSAGE_TIMESTAMP + ", " + KEY_MESSAGE_IS_SENT + ", " + KEY_MESSAGE_CONVERSATION_ID + ", " +
+                    KEY_MESSAGE_SEARCH_TEXT + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+            // 会話が既にあれば最新のメッセージと未読数を更新し、無ければ新しく作ります
+            SQLiteStatement updateConversation = db.compileStatement("UPDATE " + TABLE_CONVERSATIONS + " SET " +
+                    KEY_CONV_LAST_MESSAGE + " = ?, " + KEY_CONV_LAST_TIMESTAMP + " = ?, " +
+                    KEY_CONV_UNREAD + " = " + KEY_CONV_UNREAD + " + ? WHERE " + KEY_CONV_ID + " = ?");
+            SQLiteStatement insertConversation = db.compileStatement("INSERT INTO " + TABLE_CONVERSATIONS + " (" +
+                    KEY_CONV_ID + ", " + KEY_CONV_LOCAL_ADDRESS + ", " + KEY_CONV_PEER_ADDRESS + ", " +
+                    KEY_CONV_LAST_MESSAGE + ", " + KEY_CONV_LAST_TIMESTAMP + ", " + KEY_CONV_UNREAD + ", " +
+                    KEY_CONV_DISPLAY_NAME + ") VALUES (?, ?, ?, ?, ?, ?, " + String.format(DISPLAY_NAME_SQL, "?") + ")");
+            SQLiteStatement markRead = db.compileStatement("UPDATE " + TABLE_CONVERSATIONS + " SET " +
+                    KEY_CONV_UNREAD + " = 0 WHERE " + KEY_CONV_ID + " = ? AND " + KEY_CONV_UNREAD + " > 0");
+            for (MessageWriter.Pending message : batch) {
+                String conversationId = conversationId(message.fromAddress, message.toAddress);
+                if (message.markRead) {
+                    markRead.bindString(1, conversationId);
+                    markRead.executeUpdateDelete();
+                    continue;
+                }
+                bindOrNull(insert, 1, message.fromAddress);
+                bindOrNull(insert, 2, message.toAddress);
+                bindOrNull(insert, 3, message.content);
+                insert.bindLong(4, message.timestamp);
+                insert.bindLong(5, message.isSent ? 1 : 0); // 自分が送ったなら1
+                insert.bindString(6, conversationId);
+                bindOrNull(insert, 7, SearchText.toIndexText(message.content));
+                insert.executeInsert();
+
+                int unread = message.isSent ? 0 : 1; // 受信したものだけを未読として数えます
+                bindOrNull(updateConversation, 1, message.content);
+                updateConversation.bindLong(2, message.timestamp);
+                updateConversation.bindLong(3, unread);
+                updateConversation.bindString(4, conversationId);
+                if (updateConversation.executeUpdateDelete() == 0) {
+                    String localAddress = message.isSent ? message.fromAddress : message.toAddress;
+                    String peerAddress = message.isSent ? message.toAddress : message.fromAddress;
+                    insertConversation.bindString(1, conversationId);
+                    bindOrNull(insertConversation, 2, localAddress);
+                    bindOrNull(insertConversation, 3, peerAddress);
+                    bindOrNull(insertConversation, 4, message.content);
+                    insertConversation.bindLong(5, message.timestamp);
+                    insertConversation.bindLong(6, unread);
+                    bindOrNull(insertConversation, 7, peerAddress);
+                    bindOrNull(insertConversation, 8, peerAddress);
+                    insertConversation.executeInsert();
+                }
+            }
+            insert.close();
+            updateConversation.close();
+            insertConversation.close();
+            markRead.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void bindOrNull(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
     }
 
     /**
-     * 自分と特定の相手との間のチャット履歴を、古い順にすべて取得します。
+     * 自分と特定の相手との会話を既読にし、チャット一覧の未読数を0に戻します。
+     * メッセージの保存と同じキューに入れるため、先に保存を頼んだメッセージも既読になります。すぐに戻ります。
      *
      * @param address1 自分または相手のアドレス
      * @param address2 自分または相手のアドレス
-     * @return チャットメッセージのリスト
      */
-    public List<ChatMessage> getMessages(String address1, String address2) {
-        List<ChatMessage> messages = new ArrayList<>();
-        
-        // 「Aさんが送りBさんが受け取った」または「Bさんが送りAさんが受け取った」メッセージを
-        // 時系列順（ASC: 昇順）で取得するSQL文です。
-        String selectQuery = "SELECT * FROM " + TABLE_MESSAGES + " WHERE " +
-                "(" + KEY_MESSAGE_FROM_ADDRESS + " = ? AND " + KEY_MESSAGE_TO_ADDRESS + " = ?) OR " +
-                "(" + KEY_MESSAGE_FROM_ADDRESS + " = ? AND " + KEY_MESSAGE_TO_ADDRESS + " = ?) " +
-                "ORDER BY " + KEY_MESSAGE_TIMESTAMP + " ASC";
+    public void markConversationRead(String address1, String address2) {
+        messageWriter.enqueue(MessageWriter.Pending.markRead(address1, address2));
+    }
+
+    /**
+     * 自分と特定の相手との間のチャット履歴のうち、指定した位置（時間とID）より【前】の最大 limit 件を、古い順に取得します。
+     * 最新のページを取得する時は、位置に Long.MAX_VALUE を指定します。
+     * 会話IDの索引を指定した位置から読むだけなので、履歴がどれだけ長くても1ページ分の時間で済みます。
+     *
+     * @param address1        自分または相手のアドレス
+     * @param address2        自分または相手のアドレス
+     * @param beforeTimestamp この時間より前のメッセージを取得します
+     * @param beforeId        同じ時間のメッセージは、このIDより前のものを取得します
+     * @param limit           取得する最大件数
+     * @return チャットメッセージのリスト（古い順）
+     */
+    public List<ChatMessage> getMessagesBefore(String address1, String address2, long beforeTimestamp, long beforeId, int limit) {
+        // 新しい順に limit 件を読み、表示用に古い順へ並べ直します
+        // （「時間 <= ? AND (時間 < ? OR ID < ?)」とすると、索引の範囲で絞り込めます）
+        String selectQuery = "SELECT * FROM " + TABLE_MESSAGES + " WHERE " + KEY_MESSAGE_CONVERSATION_ID + " = ? " +
+                "AND " + KEY_MESSAGE_TIMESTAMP + " <= ? AND (" + KEY_MESSAGE_TIMESTAMP + " < ? OR " + KEY_MESSAGE_ID + " < ?) " +
+                "ORDER BY " + KEY_MESSAGE_TIMESTAMP + " DESC, " + KEY_MESSAGE_ID + " DESC LIMIT " + limit;
+        List<ChatMessage> messages = queryMessages(selectQuery, address1, address2, beforeTimestamp, beforeId);
+        Collections.reverse(messages);
+        return messages;
+    }
 
+    /**
+     * 会話ID、時間、時間、IDの順に?を埋めてSQLを実行し、読み取った順にメッセージを返します。
+     */
+    private List<ChatMessage> queryMessages(String selectQuery, String address1, String address2, long timestamp, long id) {
+        List<ChatMessage> messages = new ArrayList<>();
         SQLiteDatabase db = getReadableDatabase();
-        
-        // ?の部分にアドレスを入れてSQLを実行します
-        Cursor cursor = db.rawQuery(selectQuery, new String[]{address1, address2, address2, address1});
+
+        // 「Aさんが送りBさんが受け取った」または「Bさんが送りAさんが受け取った」メッセージは同じ会話IDを持ちます
+        Cursor cursor = db.rawQuery(selectQuery, new String[]{conversationId(address1, address2),
+                String.valueOf(timestamp), String.valueOf(timestamp), String.valueOf(id)});
 
         if (cursor.moveToFirst()) {
+            int idIndex = cursor.getColumnIndex(KEY_MESSAGE_ID);
+            int contentIndex = cursor.getColumnIndex(KEY_MESSAGE_CONTENT);
+            int isSentIndex = cursor.getColumnIndex(KEY_MESSAGE_IS_SENT);
+            int timestampIndex = cursor.getColumnIndex(KEY_MESSAGE_TIMESTAMP);
             do {
-                int contentIndex = cursor.getColumnIndex(KEY_MESSAGE_CONTENT);
-                int isSentIndex = cursor.getColumnIndex(KEY_MESSAGE_IS_SENT);
-
-                if (contentIndex != -1 && isSentIndex != -1) {
-                    // データベースから読み取った情報でChatMessageオブジェクトを作ります
-                    ChatMessage message = new ChatMessage(
-                            cursor.getString(contentIndex),
-                            cursor.getInt(isSentIndex) == 1 // 1なら自分が送信（true）
-                    );
-                    messages.add(message);
-                }
+                // データベースから読み取った情報でChatMessageオブジェクトを作ります
+                messages.add(new ChatMessage(
+                        cursor.getLong(idIndex),
+                        cursor.getString(contentIndex),
+                        cursor.getInt(isSentIndex) == 1, // 1なら自分が送信（true）
+                        cursor.getLong(timestampIndex)
+                ));
             } while (cursor.moveToNext());
         }
         cursor.close();
-        db.close();
         return messages;
     }
 
+    // ---------------------------------------------------------
+    // メッセージの検索
+    // ---------------------------------------------------------
+
+    /**
+     * メッセージ本文を全文検索し、見つかったものを新しい順に最大 limit 件返します。
+     * 次のページは、前のページの最後の結果のIDを beforeId に指定して取得します（最初のページは Long.MAX_VALUE）。
+     * 入力した単語はすべて含み、各単語は前方一致で探します。
+     * 日本語などの単語を空白で区切らない文字を含む場合は、2文字ずつに分けた search_text の索引で、文の途中の言葉も探します。
+     *
+     * @param query    検索する文字（空白で区切ると複数の単語）
+     * @param beforeId このIDより前（古い）のメッセージから探します
+     * @param limit    取得する最大件数
+     * @return 検索結果のリスト（新しい順）
+     */
+    public List<MessageSearchResult> searchMessages(String query, long beforeId, int limit) {
+        List<MessageSearchResult> results = new ArrayList<>();
+        List<String> terms = toSearchTerms(query);
+        if (terms.isEmpty()) return results;
+
+        String columns = "SELECT m." + KEY_MESSAGE_ID + ", m." + KEY_MESSAGE_CONTENT + ", m." + KEY_MESSAGE_TIMESTAMP + ", m." +
+                KEY_MESSAGE_IS_SENT + ", c." + KEY_CONV_PEER_ADDRESS + ", c." + KEY_CONV_DISPLAY_NAME;
+        String conversations = " LEFT JOIN " + TABLE_CONVERSATIONS + " c ON c." + KEY_CONV_ID + " = m." + KEY_MESSAGE_CONVERSATION_ID;
+        // unicode61 は空白や記号でしか単語を区切らないため、日本語の文は本文の索引では1つの長い単語になります。
+        // その場合は、同じ規則で2文字ずつに分けた search_text の列だけを探します
+        boolean unsegmented = SearchText.containsUnsegmented(query);
+        String match = unsegmented ? SearchText.toMatchQuery(terms) : toMatchQuery(terms);
+        if (match.isEmpty()) return results;
+        // 索引は docid（メッセージのID）の順に読めるので、新しい順に limit 件だけ本文と会話の情報を読みます
+        String selectQuery = columns + " FROM " + TABLE_MESSAGES_FTS + " f JOIN " + TABLE_MESSAGES + " m ON m." + KEY_MESSAGE_ID + " = f.docid" +
+                conversations + " WHERE " + (unsegmented ? "f." + KEY_MESSAGE_SEARCH_TEXT : TABLE_MESSAGES_FTS) + " MATCH ? AND f.docid < ?" +
+                " ORDER BY f.docid DESC LIMIT " + limit;
+        Cursor cursor = getReadableDatabase().rawQuery(selectQuery, new String[]{match, String.valueOf(beforeId)});
+
+        if (cursor.moveToFirst()) {
+            do {
+                results.add(new MessageSearchResult(
+                        cursor.getLong(0),
+                        cursor.getString(1),
+                        cursor.getLong(2),
+                        cursor.getInt(3) == 1,
+                        cursor.getString(4),
+                        cursor.isNull(5) ? "Unknown" : cursor.getString(5)
+                ));
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+        return results;
+    }
+
     /**
-     * ホーム画面の「チャット一覧」に表示するための、各友達ごとの【最新のメッセージ】と
-     * 【友達情報】をまとめたリストを取得します。
+     * 入力された文字を、空白で区切った単語のリストにします。引用符は検索の命令にならないよう取り除きます。
+     */
+    static List<String> toSearchTerms(String query) {
+        List<String> terms = new ArrayList<>();
+        if (query == null) return terms;
+        for (String term : query.trim().split("\\s+")) {
+            term = term.replace("\"", "");
+            if (!term.isEmpty()) terms.add(term);
+        }
+        return terms;
+    }
+
+    /**
+     * 単語のリストを、全文検索（MATCH）の条件に変換します。
+     * 各単語を "単語*"（前方一致）として並べ、すべてを含むものを探します。
+     * 引用符で囲むので、入力に OR や - などが含まれても検索の命令としては扱われません。
+     */
+    static String toMatchQuery(List<String> terms) {
+        StringBuilder match = new StringBuilder();
+        for (String term : terms) {
+            if (match.length() > 0) match.append(' ');
+            match.append('"').append(term).append("*\"");
+        }
+        return match.toString();
+    }
+
+    /**
+     * ホーム画面の「チャット一覧」に表示するための、各会話の【最新のメッセージ】と
+     * 【相手の情報】をまとめたリストを、新しい順に取得します。
+     * conversations テーブルを索引から1回読むだけなので、会話の数が増えても速く表示できます。
      *
      * @param currentUserAddress 自分のアドレス
      * @return 最近やり取りしたチャットのリスト
@@ -235,66 +719,23 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         List<RecentChat> recentChats = new ArrayList<>();
         SQLiteDatabase db = getReadableDatabase();
 
-        // 1. まず、自分がメッセージを送受信したことがある「すべての相手のアドレス（重複なし）」を取得します。
-        // UNIONを使って、送信先（TO）と送信元（FROM）の両方から自分のアドレス以外のものを集めます。
-        String subQuery = "SELECT " + KEY_MESSAGE_FROM_ADDRESS + " FROM " + TABLE_MESSAGES + " WHERE " + KEY_MESSAGE_TO_ADDRESS + " = '" + currentUserAddress + "' " +
-                "UNION SELECT " + KEY_MESSAGE_TO_ADDRESS + " FROM " + TABLE_MESSAGES + " WHERE " + KEY_MESSAGE_FROM_ADDRESS + " = '" + currentUserAddress + "'";
-        Cursor friendAddressCursor = db.rawQuery(subQuery, null);
+        // 相手の公開鍵（アイデンティティ）は、友達テーブルから一緒に取得します（グループや未登録の相手は空）
+        String selectQuery = "SELECT c." + KEY_CONV_PEER_ADDRESS + ", c." + KEY_CONV_DISPLAY_NAME + ", c." +
+                KEY_CONV_LAST_MESSAGE + ", c." + KEY_CONV_LAST_TIMESTAMP + ", c." + KEY_CONV_UNREAD + ", f." + KEY_FRIEND_IDENTITY +
+                " FROM " + TABLE_CONVERSATIONS + " c LEFT JOIN " + TABLE_FRIENDS + " f ON f." + KEY_FRIEND_ADDRESS + " = c." + KEY_CONV_PEER_ADDRESS +
+                " WHERE c." + KEY_CONV_LOCAL_ADDRESS + " = ? ORDER BY c." + KEY_CONV_LAST_TIMESTAMP + " DESC";
+        Cursor cursor = db.rawQuery(selectQuery, new String[]{currentUserAddress != null ? currentUserAddress : ""});
 
-        if (friendAddressCursor.moveToFirst()){
+        if (cursor.moveToFirst()) {
             do {
-                int addressIndex = friendAddressCursor.getColumnIndex(KEY_MESSAGE_FROM_ADDRESS);
-                if(addressIndex != -1) {
-                    // 友達のアドレスを1つ取り出します
-                    String friendAddress = friendAddressCursor.getString(addressIndex);
-
-                    // 2. その友達とやり取りした【一番新しい（最新の）メッセージ】を1件だけ取得します。
-                    // ORDER BY ... DESC LIMIT 1 で、一番時間の新しいものを1つだけ選びます。
-                    String lastMessageQuery = "SELECT * FROM " + TABLE_MESSAGES + " WHERE " +
-                            "(" + KEY_MESSAGE_FROM_ADDRESS + " = ? AND " + KEY_MESSAGE_TO_ADDRESS + " = ?) OR " +
-                            "(" + KEY_MESSAGE_FROM_ADDRESS + " = ? AND " + KEY_MESSAGE_TO_ADDRESS + " = ?) " +
-                            "ORDER BY " + KEY_MESSAGE_TIMESTAMP + " DESC LIMIT 1";
-                    Cursor lastMessageCursor = db.rawQuery(lastMessageQuery, new String[]{currentUserAddress, friendAddress, friendAddress, currentUserAddress});
-
-                    if (lastMessageCursor.moveToFirst()) {
-                        int contentIndex = lastMessageCursor.getColumnIndex(KEY_MESSAGE_CONTENT);
-                        int timestampIndex = lastMessageCursor.getColumnIndex(KEY_MESSAGE_TIMESTAMP);
-
-                        if(contentIndex != -1 && timestampIndex != -1) {
-                            String lastMessage = lastMessageCursor.getString(contentIndex);
-                            long timestamp = lastMessageCursor.getLong(timestampIndex);
-
-                            // 3. 連絡先（friends）テーブルから、この友達の「表示名」と「アイデンティティ」を取得します。
-                            String friendInfoQuery = "SELECT " + KEY_FRIEND_NAME + ", " + KEY_FRIEND_IDENTITY + " FROM " + TABLE_FRIENDS + " WHERE " + KEY_FRIEND_ADDRESS + " = ?";
-                            Cursor friendInfoCursor = db.rawQuery(friendInfoQuery, new String[]{friendAddress});
-                            
-                            // まだ連絡先に登録されていない相手の場合はUnknownにします
-                            String friendName = "Unknown";
-                            String identityAddress = "";
-                            
-                            if (friendInfoCursor.moveToFirst()) {
-                                int nameIndex = friendInfoCursor.getColumnIndex(KEY_FRIEND_NAME);
-                                int identIndex = friendInfoCursor.getColumnIndex(KEY_FRIEND_IDENTITY);
-                                if (nameIndex != -1) {
-                                    friendName = friendInfoCursor.getString(nameIndex);
-                                }
-                                if (identIndex != -1) {
-                                    identityAddress = friendInfoCursor.getString(identIndex);
-                                }
-                            }
-                            friendInfoCursor.close();
-
-                            // 4. チャット一覧に表示するデータとしてリストにまとめます。
-                            recentChats.add(new RecentChat(friendName, lastMessage, timestamp, friendAddress, identityAddress));
-                        }
-                    }
-                    lastMessageCursor.close();
-                }
-            } while (friendAddressCursor.moveToNext()); // 次の友達へ
+                String friendName = cursor.isNull(1) ? "Unknown" : cursor.getString(1);
+                String identityAddress = cursor.isNull(5) ? "" : cursor.getString(5);
+                recentChats.add(new RecentChat(friendName, cursor.getString(2), cursor.getLong(3),
+                        cursor.getString(0), identityAddress, cursor.getInt(4)));
+            } while (cursor.moveToNext());
         }
-        friendAddressCursor.close();
-        db.close();
+        cursor.close();
 
         return recentChats;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+package ocean.RedWhale;
+
+/**
+ * 一定時間内に処理したIDを覚えておき、重複したパケットを捨てるためのフィルターです。
+ *
+ * 2つのLongHashSet（現在の世代と1つ前の世代）を交互に使います。
+ * 現在の世代が一定時間を過ぎるか満杯になると、古い世代を空にして入れ替えるため、
+ * 長時間動かし続けてもメモリ使用量は一定のままです。
+ * IDは少なくとも windowMillis の間（満杯による入れ替えがなければ）は記憶されます。
+ *
+ * ※スレッドセーフではありません。
+ */
+public final class DuplicateFilter {
+    private final long windowMillis;
+    private LongHashSet current;
+    private LongHashSet previous;
+    private long generationStart;
+
+    /**
+     * @param windowMillis           IDを記憶しておく時間（ミリ秒）
+     * @param maxEntriesPerGeneration 1世代あたりに保持できるIDの数
+     */
+    public DuplicateFilter(long windowMillis, int maxEntriesPerGeneration) {
+        this.windowMillis = windowMillis;
+        this.current = new LongHashSet(maxEntriesPerGeneration);
+        this.previous = new LongHashSet(maxEntriesPerGeneration);
+    }
+
+    /**
+     * IDが記憶されているかを確認します。
+     */
+    public boolean contains(long id, long nowMillis) {
+        rotateIfNeeded(nowMillis);
+        return current.contains(id) || previous.contains(id);
+    }
+
+    /**
+     * IDを記憶します。
+     */
+    public void add(long id, long nowMillis) {
+        rotateIfNeeded(nowMillis);
+        if (current.isFull()) rotate(nowMillis);
+        current.add(id);
+    }
+
+    /**
+     * 初めて見るIDであれば記憶してtrueを返します。既に記憶されていればfalseを返します。
+     */
+    public boolean addIfAbsent(long id, long nowMillis) {
+        if (contains(id, nowMillis)) return false;
+        add(id, nowMillis);
+        return true;
+    }
+
+    private void rotateIfNeeded(long nowMillis) {
+        if (nowMillis - generationStart >= windowMillis) {
+            rotate(nowMillis);
+        }
+    }
+
+    private void rotate(long nowMillis) {
+        LongHashSet oldest = previous;
+        oldest.clear();
+        previous = current;
+        current = oldest;
+        generationStart = nowMillis;
+    }
+}
@@ -1,14 +1,22 @@
 package ocean.RedWhale;
 
+import java.nio.ByteBuffer;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
+import java.security.interfaces.ECKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
+import javax.crypto.KeyAgreement;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.security.SecureRandom;
 import android.util.Base64;
 import android.util.Log;
 
@@ -21,9 +29,10 @@ public class EncryptionManager {
     private static final String TAG = "EncryptionManager";
     
     // 暗号化のアルゴリズムとモード（GCMは改ざん検知機能が含まれており安全です）
-    private static final String AES_MODE = "AES/GCM/NoPadding";
-    private static final String RSA_MODE = "RSA/ECB/PKCS1Padding";
-    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    // Cipherなどのインスタンスは CryptoContext がスレッド毎に使い回します
+    // P-256の署名は r と s（各32バイト）を並べた64バイトで送ります
+    private static final int EC_COORDINATE_SIZE = 32;
+    private static final byte[] WRAP_INFO = "RedWhale-wrap-v1".getBytes();
     
     // 初期化ベクトル（IV）の長さ。GCMモードでは通常12バイトを使用します。
     private static final int GCM_IV_LENGTH = 12;
@@ -31,6 +40,9 @@ public class EncryptionManager {
     // 認証タグ（改ざんチェック用データ）の長さ。
     private static final int GCM_TAG_LENGTH = 128;
 
+    // 分割暗号化のセグメントのIVの先頭に置く目印（"STR"）
+    private static final int SEGMENT_IV_PREFIX = 0x53545200;
+
     /**
      * 指定されたAESキー（共通鍵）を使用して、平文（テキスト）を暗号化します。
      * 本来のアプリでは、RSA公開鍵やECDH（鍵交換）を使ってこの共通鍵を共有します。
@@ -46,10 +58,10 @@ public class EncryptionManager {
             
             // 安全なランダムな値（IV: 初期化ベクトル）を生成します。
             byte[] iv = new byte[GCM_IV_LENGTH];
-            new SecureRandom().nextBytes(iv);
+            CryptoContext.random().nextBytes(iv);
 
             // 暗号化の準備（Cipherの初期化）を行います。
-            Cipher cipher = Cipher.getInstance(AES_MODE);
+            Cipher cipher = CryptoContext.get().aesGcm();
             GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
             cipher.init(Cipher.ENCRYPT_MODE, secretKey, spec);
 
@@ -90,7 +102,7 @@ public class EncryptionManager {
             System.arraycopy(combined, 0, iv, 0, iv.length);
 
             // 復号化の準備（Cipherの初期化）を行います。
-            Cipher cipher = Cipher.getInstance(AES_MODE);
+            Cipher cipher = CryptoContext.get().aesGcm();
             GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
             cipher.init(Cipher.DECRYPT_MODE, secretKey, spec);
 
@@ -106,28 +118,189 @@ public class EncryptionManager {
     }
 
     /**
-     * セッション（一度の通信）ごとに使う、ランダムなAESキーを生成します。
+     * バイト列をAES-GCMで暗号化します（Base64への変換を行わない版）。
+     * 戻り値は [IV (12 bytes)] + [暗号化データ + 認証タグ] の形です。
      *
-     * @return ランダムに生成された256ビット（32バイト）のキー
+     * @param aad 暗号化はしないが改ざんを検知したい追加データ（不要ならnull）
+     * @return 暗号化済みデータ、失敗時はnull
      */
-    public static byte[] generateRandomKey() {
+    public static byte[] encryptBytes(byte[] plaintext, byte[] keyBytes, byte[] aad) {
+        ByteBuffer combined = ByteBuffer.allocate(getEncryptedSize(plaintext.length));
+        if (encryptTo(plaintext, 0, plaintext.length, keyBytes, aad, combined) < 0) return null;
+        return combined.array();
+    }
+
+    /**
+     * 暗号化後の長さ（IV + 暗号文 + 認証タグ）を返します。
+     */
+    public static int getEncryptedSize(int plaintextLength) {
+        return GCM_IV_LENGTH + plaintextLength + GCM_TAG_LENGTH / 8;
+    }
+
+    /**
+     * IVを含めない場合の暗号化後の長さ（暗号文 + 認証タグ）を返します。
+     */
+    public static int getSealedSize(int plaintextLength) {
+        return plaintextLength + GCM_TAG_LENGTH / 8;
+    }
+
+    /**
+     * 平文（配列の一部）を暗号化し、[IV][暗号文 + 認証タグ] を呼び出し側のバッファの現在位置に書き込みます。
+     * ヘッダーと暗号文を1つの配列にまとめる際に、中間の配列を作らずに済みます。
+     *
+     * @return 書き込んだバイト数、失敗時は-1
+     */
+    public static int encryptTo(byte[] plaintext, int offset, int length, byte[] keyBytes, byte[] aad, ByteBuffer dst) {
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        CryptoContext.random().nextBytes(iv);
+        return encryptTo(plaintext, offset, length, keyBytes, aad, iv, dst);
+    }
+
+    /**
+     * 呼び出し側が決めたIVで暗号化します。
+     * 同じキーで同じIVを2回使うとGCMの安全性が失われるため、メッセージ毎にキーが変わる場合や、
+     * counterIv で作ったカウンターのIVのように、重複しないことが保証できる場合にだけ使ってください。
+     */
+    public static int encryptTo(byte[] plaintext, int offset, int length, byte[] keyBytes, byte[] aad, byte[] iv, ByteBuffer dst) {
+        int start = dst.position();
+        dst.put(iv);
+        if (sealTo(plaintext, offset, length, keyBytes, aad, iv, dst) < 0) return -1;
+        return dst.position() - start;
+    }
+
+    /**
+     * 呼び出し側が決めたIVで暗号化し、IVは書き込まずに [暗号文 + 認証タグ] だけをバッファの現在位置に書き込みます。
+     * counterIv のように受信側が同じIVを計算できる場合に、IVの分だけ暗号文を短くできます。
+     *
+     * @return 書き込んだバイト数、失敗時は-1
+     */
+    public static int sealTo(byte[] plaintext, int offset, int length, byte[] keyBytes, byte[] aad, byte[] iv, ByteBuffer dst) {
+        try {
+            Cipher cipher = CryptoContext.get().aesGcm();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"), new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            if (aad != null) cipher.updateAAD(aad);
+            return cipher.doFinal(ByteBuffer.wrap(plaintext, offset, length), dst);
+        } catch (Exception e) {
+            Log.e(TAG, "暗号化に失敗しました", e);
+            return -1;
+        }
+    }
+
+    /**
+     * セッション内のメッセージ番号から、12バイトのIVを作ります（乱数を使いません）。
+     * 先頭4バイトは送信方向などを区別する値、残り8バイトはメッセージ番号です。
+     */
+    public static byte[] counterIv(int prefix, long counter) {
+        return ByteBuffer.allocate(GCM_IV_LENGTH).putInt(prefix).putLong(counter).array();
+    }
+
+    /**
+     * encryptBytes で暗号化したデータ（配列の一部）を復号します。
+     *
+     * @return 復号されたデータ、キーが違うか改ざんされている場合はnull
+     */
+    public static byte[] decryptBytes(byte[] data, int offset, int length, byte[] keyBytes, byte[] aad) {
         try {
-            // AESアルゴリズムを使って256ビットの強力なキーを生成します。
-            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-            keyGen.init(256);
-            return keyGen.generateKey().getEncoded();
+            if (length < GCM_IV_LENGTH) return null;
+            Cipher cipher = CryptoContext.get().aesGcm();
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keyBytes, "AES"),
+                    new GCMParameterSpec(GCM_TAG_LENGTH, data, offset, GCM_IV_LENGTH));
+            if (aad != null) cipher.updateAAD(aad);
+            return cipher.doFinal(data, offset + GCM_IV_LENGTH, length - GCM_IV_LENGTH);
         } catch (Exception e) {
-            // 万が一生成に失敗した場合の保険（推奨はされません）
-            return new byte[32];
+            Log.e(TAG, "復号化に失敗しました。キーが違うか、データが破損しています", e);
+            return null;
         }
     }
 
+    /**
+     * sealTo で暗号化したデータ（配列の一部）を、同じIVで復号します。
+     *
+     * @return 復号されたデータ、キーが違うか改ざんされている場合はnull
+     */
+    public static byte[] open(byte[] data, int offset, int length, byte[] keyBytes, byte[] aad, byte[] iv) {
+        try {
+            Cipher cipher = CryptoContext.get().aesGcm();
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keyBytes, "AES"), new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            if (aad != null) cipher.updateAAD(aad);
+            return cipher.doFinal(data, offset, length);
+        } catch (Exception e) {
+            Log.e(TAG, "復号化に失敗しました。キーが違うか、データが破損しています", e);
+            return null;
+        }
+    }
+
+    /**
+     * 分割暗号化（STREAM方式）での、1セグメントあたりの暗号化による増加分（認証タグの長さ）です。
+     * セグメントのIVは番号から作るため、暗号文には含めません。
+     */
+    public static int getSegmentOverhead() {
+        return GCM_TAG_LENGTH / 8;
+    }
+
+    /**
+     * 長いメッセージを分割して暗号化する場合の、1つのセグメントを暗号化します。
+     * IVはセグメント番号と「最後のセグメントか」から作るため、セグメントの入れ替え・削除・末尾の切り捨ては
+     * 復号時の認証エラーになります。同じキーは1つのメッセージの中だけで使ってください。
+     *
+     * @return 書き込んだバイト数（平文の長さ + 認証タグ）、失敗時は-1
+     */
+    public static int sealSegment(byte[] plaintext, int offset, int length, byte[] keyBytes, byte[] aad,
+                                  int index, boolean last, ByteBuffer dst) {
+        try {
+            Cipher cipher = CryptoContext.get().aesGcm();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"),
+                    new GCMParameterSpec(GCM_TAG_LENGTH, segmentIv(index, last)));
+            if (aad != null) cipher.updateAAD(aad);
+            return cipher.doFinal(ByteBuffer.wrap(plaintext, offset, length), dst);
+        } catch (Exception e) {
+            Log.e(TAG, "セグメントの暗号化に失敗しました", e);
+            return -1;
+        }
+    }
+
+    /**
+     * sealSegment で暗号化したセグメントを復号し、平文を dst の指定位置に書き込みます。
+     *
+     * @return 書き込んだ平文の長さ。キーが違う、改ざん・入れ替えがあった場合は-1
+     */
+    public static int openSegment(byte[] data, int offset, int length, byte[] keyBytes, byte[] aad,
+                                  int index, boolean last, byte[] dst, int dstOffset) {
+        try {
+            Cipher cipher = CryptoContext.get().aesGcm();
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keyBytes, "AES"),
+                    new GCMParameterSpec(GCM_TAG_LENGTH, segmentIv(index, last)));
+            if (aad != null) cipher.updateAAD(aad);
+            return cipher.doFinal(data, offset, length, dst, dstOffset);
+        } catch (Exception e) {
+            Log.e(TAG, "セグメントの復号化に失敗しました。キーが違うか、データが破損しています", e);
+            return -1;
+        }
+    }
+
+    // [目印 3][最後なら1 1][セグメント番号 8]。counterIv の値（先頭が0）とは重なりません
+    private static byte[] segmentIv(int index, boolean last) {
+        return counterIv(SEGMENT_IV_PREFIX | (last ? 1 : 0), index);
+    }
+
+    /**
+     * セッション（一度の通信）ごとに使う、ランダムなAESキーを生成します。
+     *
+     * @return ランダムに生成された256ビット（32バイト）のキー
+     */
+    public static byte[] generateRandomKey() {
+        // AESのキーは256ビットの乱数そのものなので、KeyGeneratorを使わずに共有の乱数生成器から作ります。
+        byte[] key = new byte[32];
+        CryptoContext.random().nextBytes(key);
+        return key;
+    }
+
     /**
      * AESキーを相手のRSA公開鍵で暗号化します（キー交換用）。
      */
     public static byte[] encryptAESKeyWithRSA(byte[] aesKey, PublicKey publicKey) {
         try {
-            Cipher cipher = Cipher.getInstance(RSA_MODE);
+            Cipher cipher = CryptoContext.get().rsa(false);
             cipher.init(Cipher.ENCRYPT_MODE, publicKey);
             return cipher.doFinal(aesKey);
         } catch (Exception e) {
@@ -141,7 +314,7 @@ public class EncryptionManager {
      */
     public static byte[] decryptAESKeyWithRSA(byte[] encryptedAesKey, PrivateKey privateKey) {
         try {
-            Cipher cipher = Cipher.getInstance(RSA_MODE);
+            Cipher cipher = CryptoContext.get().rsa(true);
             cipher.init(Cipher.DECRYPT_MODE, privateKey);
             return cipher.doFinal(encryptedAesKey);
         } catch (Exception e) {
@@ -151,14 +324,82 @@ public class EncryptionManager {
     }
 
     /**
-     * 自分のRSA秘密鍵を使ってデータにデジタル署名を作成します（改ざん防止）。
+     * 鍵が楕円曲線鍵かを返します。
+     */
+    public static boolean isEllipticCurve(Key key) {
+        return key instanceof ECKey || "EC".equals(key.getAlgorithm());
+    }
+
+    /**
+     * セッション鍵などの共通鍵を、相手の公開鍵で包みます。
+     * RSAの相手にはRSAで、楕円曲線の相手には使い捨ての鍵とのECDH（ECIES）で包みます。
+     * ECIESの形式: [使い捨て公開鍵の長さ 1][使い捨て公開鍵][IV + 暗号化した共通鍵]
+     */
+    public static byte[] wrapKey(byte[] key, PublicKey publicKey) {
+        if (!isEllipticCurve(publicKey)) return encryptAESKeyWithRSA(key, publicKey);
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+            kpg.initialize(new ECGenParameterSpec("secp256r1"));
+            KeyPair ephemeral = kpg.generateKeyPair();
+            byte[] ephemeralPublic = ephemeral.getPublic().getEncoded();
+
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(ephemeral.getPrivate());
+            agreement.doPhase(publicKey, true);
+            byte[] kek = SymmetricRatchet.hkdf(ephemeralPublic, agreement.generateSecret(), WRAP_INFO, SymmetricRatchet.KEY_SIZE);
+            byte[] sealed = encryptBytes(key, kek, ephemeralPublic);
+            Arrays.fill(kek, (byte) 0);
+            if (sealed == null) return null;
+
+            byte[] wrapped = new byte[1 + ephemeralPublic.length + sealed.length];
+            wrapped[0] = (byte) ephemeralPublic.length;
+            System.arraycopy(ephemeralPublic, 0, wrapped, 1, ephemeralPublic.length);
+            System.arraycopy(sealed, 0, wrapped, 1 + ephemeralPublic.length, sealed.length);
+            return wrapped;
+        } catch (Exception e) {
+            Log.e(TAG, "ECDHによる共通鍵の暗号化に失敗しました", e);
+            return null;
+        }
+    }
+
+    /**
+     * wrapKey で包まれた共通鍵を、自分の秘密鍵で取り出します。
+     */
+    public static byte[] unwrapKey(byte[] wrapped, PrivateKey privateKey) {
+        if (!isEllipticCurve(privateKey)) return decryptAESKeyWithRSA(wrapped, privateKey);
+        try {
+            int ephemeralLength = wrapped[0] & 0xFF;
+            if (1 + ephemeralLength > wrapped.length) return null;
+            byte[] ephemeralPublic = Arrays.copyOfRange(wrapped, 1, 1 + ephemeralLength);
+            PublicKey ephemeral = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(ephemeralPublic));
+
+            // Keystoreの秘密鍵で鍵交換します（Android 12以降、PURPOSE_AGREE_KEY付きの鍵のみ）
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(privateKey);
+            agreement.doPhase(ephemeral, true);
+            byte[] kek = SymmetricRatchet.hkdf(ephemeralPublic, agreement.generateSecret(), WRAP_INFO, SymmetricRatchet.KEY_SIZE);
+            int sealedOffset = 1 + ephemeralLength;
+            byte[] key = decryptBytes(wrapped, sealedOffset, wrapped.length - sealedOffset, kek, ephemeralPublic);
+            Arrays.fill(kek, (byte) 0);
+            return key;
+        } catch (Exception e) {
+            Log.e(TAG, "ECDHによる共通鍵の復号化に失敗しました", e);
+            return null;
+        }
+    }
+
+    /**
+     * 自分の秘密鍵を使ってデータにデジタル署名を作成します（改ざん防止）。
+     * RSAなら256バイト、P-256なら r||s の64バイトの署名になります。
      */
     public static byte[] signData(byte[] data, PrivateKey privateKey) {
         try {
-            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            boolean ec = isEllipticCurve(privateKey);
+            Signature signature = CryptoContext.get().signature(ec, true);
             signature.initSign(privateKey);
             signature.update(data);
-            return signature.sign();
+            byte[] signed = signature.sign();
+            return ec ? derToRaw(signed) : signed;
         } catch (Exception e) {
             Log.e(TAG, "デジタル署名の作成に失敗しました", e);
             return null;
@@ -166,17 +407,69 @@ public class EncryptionManager {
     }
 
     /**
-     * 相手のRSA公開鍵を使って、データのデジタル署名を検証します。
+     * 相手の公開鍵を使って、データのデジタル署名を検証します。
      */
     public static boolean verifySignature(byte[] data, byte[] signatureBytes, PublicKey publicKey) {
         try {
-            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            boolean ec = isEllipticCurve(publicKey);
+            if (ec && signatureBytes.length != EC_COORDINATE_SIZE * 2) return false;
+            Signature signature = CryptoContext.get().signature(ec, false);
             signature.initVerify(publicKey);
             signature.update(data);
-            return signature.verify(signatureBytes);
+            return signature.verify(ec ? rawToDer(signatureBytes) : signatureBytes);
         } catch (Exception e) {
             Log.e(TAG, "デジタル署名の検証に失敗しました", e);
             return false;
         }
     }
+
+    /**
+     * ECDSAのDER形式の署名（SEQUENCE { INTEGER r, INTEGER s }）を、固定長の r||s に変換します。
+     */
+    static byte[] derToRaw(byte[] der) {
+        byte[] raw = new byte[EC_COORDINATE_SIZE * 2];
+        int offset = 2;
+        if ((der[1] & 0x80) != 0) offset += der[1] & 0x7F; // 長さが複数バイトの場合
+        for (int i = 0; i < 2; i++) {
+            int length = der[offset + 1] & 0xFF;
+            int start = offset + 2;
+            // 先頭の0x00（符号用）を除き、32バイトに右詰めします
+            while (length > EC_COORDINATE_SIZE && der[start] == 0) {
+                start++;
+                length--;
+            }
+            System.arraycopy(der, start, raw, i * EC_COORDINATE_SIZE + EC_COORDINATE_SIZE - length, length);
+            offset = start + length;
+        }
+        return raw;
+    }
+
+    /**
+     * 固定長の r||s を、ECDSAの検証に使うDER形式に戻します。
+     */
+    static byte[] rawToDer(byte[] raw) {
+        byte[][] parts = new byte[2][];
+        int total = 0;
+        for (int i = 0; i < 2; i++) {
+            int start = i * EC_COORDINATE_SIZE;
+            int end = start + EC_COORDINATE_SIZE;
+            while (start < end - 1 && raw[start] == 0) start++;
+            boolean pad = (raw[start] & 0x80) != 0;
+            byte[] part = new byte[(end - start) + (pad ? 1 : 0)];
+            System.arraycopy(raw, start, part, pad ? 1 : 0, end - start);
+            parts[i] = part;
+            total += 2 + part.length;
+        }
+        byte[] der = new byte[2 + total];
+        der[0] = 0x30;
+        der[1] = (byte) total;
+        int offset = 2;
+        for (byte[] part : parts) {
+            der[offset++] = 0x02;
+            der[offset++] = (byte) part.length;
+            System.arraycopy(part, 0, der, offset, part.length);
+            offset += part.length;
+        }
+        return der;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+package ocean.RedWhale;
+
+import android.content.Context;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 友達のIDハッシュから、解析済みの公開鍵をすぐに引けるようにするメモリ上の索引です。
+ *
+ * 友達リストはデータベースから1度だけ読み込み、各友達のSHA-256ハッシュと公開鍵の解析もその時に済ませます。
+ * 以降は DatabaseHelper.addFriend の度に索引も更新されるため、メッセージの送受信の度に
+ * 友達全員を読み込み直す必要はありません。
+ *
+ * 索引は短縮ID（ハッシュの先頭8バイト）をキーにしているため、完全なハッシュでも
+ * 短縮IDでも検索でき、短縮IDが衝突する友達もまとめて取り出せます。
+ * 読み取りはロックなしで行え、更新時は新しい索引を作って差し替えます。
+ */
+public final class FriendKeyIndex {
+
+    /**
+     * 索引に登録された友達1人分の情報です。
+     */
+    public static final class Entry {
+        final String address;
+        final String identityAddress;
+        final byte[] hash;
+        final PublicKey publicKey;
+
+        Entry(String address, String identityAddress, byte[] hash, PublicKey publicKey) {
+            this.address = address;
+            this.identityAddress = identityAddress;
+            this.hash = hash;
+            this.publicKey = publicKey;
+        }
+
+        /**
+         * 友達のデバイスアドレス（会話の相手として使うアドレス）です。
+         */
+        public String getAddress() {
+            return address;
+        }
+
+        public String getIdentityAddress() {
+            return identityAddress;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+    }
+
+    private static final FriendKeyIndex INSTANCE = new FriendKeyIndex();
+
+    // 短縮ID → その短縮IDを持つ友達（ほとんどの場合1人）
+    private volatile Map<Long, Entry[]> entries;
+
+    private FriendKeyIndex() {
+    }
+
+    public static FriendKeyIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * まだ読み込んでいなければ、データベースから友達リストを読み込んで索引を作ります。
+     */
+    public FriendKeyIndex ensureLoaded(Context context) {
+        if (entries == null) {
+            synchronized (this) {
+                if (entries == null) {
+                    Map<Long, Entry[]> loaded = new HashMap<>();
+                    for (Friend friend : DatabaseHelper.getInstance(context).getAllFriends()) {
+                        Entry entry = createEntry(friend);
+                        if (entry != null) append(loaded, entry);
+                    }
+                    entries = loaded;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 友達の追加・更新を索引に反映します（DatabaseHelper.addFriend から呼ばれます）。
+     * 同じデバイスアドレスの古い情報は置き換えます。まだ読み込んでいない場合は何もしません。
+     */
+    public synchronized void put(Friend friend) {
+        Map<Long, Entry[]> current = entries;
+        if (current == null) return;
+        Map<Long, Entry[]> updated = new HashMap<>();
+        for (Entry[] bucket : current.values()) {
+            for (Entry e : bucket) {
+                if (friend.getAddress() == null || !friend.getAddress().equals(e.address)) {
+                    append(updated, e);
+                }
+            }
+        }
+        Entry entry = createEntry(friend);
+        if (entry != null) append(updated, entry);
+        entries = updated;
+    }
+
+    /**
+     * 完全なIDハッシュ（32バイト）に一致する友達を返します。見つからなければnull。
+     */
+    public Entry find(byte[] hash) {
+        Map<Long, Entry[]> current = entries;
+        if (current == null || hash == null || hash.length != MessagePacket.HASH_SIZE) return null;
+        Entry[] bucket = current.get(IdentityManager.getCompactId(hash));
+        if (bucket == null) return null;
+        for (Entry e : bucket) {
+            if (Arrays.equals(e.hash, hash)) return e;
+        }
+        return null;
+    }
+
+    /**
+     * 受信したID（完全なハッシュ、または8バイトの短縮ID）に当てはまる友達をすべて返します。
+     */
+    public List<Entry> findCandidates(byte[] id) {
+        Map<Long, Entry[]> current = entries;
+        if (current == null || id == null || id.length < MessagePacket.COMPACT_ID_SIZE) return Collections.emptyList();
+        Entry[] bucket = current.get(IdentityManager.getCompactId(id));
+        if (bucket == null) return Collections.emptyList();
+        if (bucket.length == 1) {
+            return IdentityManager.matchesId(bucket[0].hash, id)
+                    ? Collections.singletonList(bucket[0]) : Collections.<Entry>emptyList();
+        }
+        List<Entry> result = new ArrayList<>(bucket.length);
+        for (Entry e : bucket) {
+            if (IdentityManager.matchesId(e.hash, id)) result.add(e);
+        }
+        return result;
+    }
+
+    /**
+     * 同じ短縮IDを持つ友達の数を返します。
+     */
+    public int countCompactMatches(long compactId) {
+        Map<Long, Entry[]> current = entries;
+        if (current == null) return 0;
+        Entry[] bucket = current.get(compactId);
+        return bucket != null ? bucket.length : 0;
+    }
+
+    private static Entry createEntry(Friend friend) {
+        String identity = friend.getIdentityAddress();
+        if (identity == null || identity.isEmpty()) return null;
+        PublicKey publicKey = IdentityManager.getPublicKeyFromAddress(identity);
+        if (publicKey == null) return null;
+        return new Entry(friend.getAddress(), identity, IdentityManager.getAddressHash(identity), publicKey);
+    }
+
+    private static void append(Map<Long, Entry[]> map, Entry entry) {
+        long key = IdentityManager.getCompactId(entry.hash);
+        Entry[] bucket = map.get(key);
+        if (bucket == null) {
+            map.put(key, new Entry[]{entry});
+        } else {
+            Entry[] grown = Arrays.copyOf(bucket, bucket.length + 1);
+            grown[bucket.length] = entry;
+            map.put(key, grown);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ocean.RedWhale;
+
+import android.util.Base64;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * グループチャット（複数人の会話）を表すクラスです。
+ * グループIDはランダムな32バイトで、メッシュ上ではメッセージの宛先としてそのまま使われます。
+ */
+public class Group {
+    private int id; // データベース上のID
+    private String name; // 表示名
+    private String groupAddress; // グループID（Base64形式）
+    private List<String> members; // メンバーの公開鍵（アイデンティティ）。自分は含みません
+
+    /**
+     * すべての項目を指定するコンストラクタです。
+     */
+    public Group(int id, String name, String groupAddress, List<String> members) {
+        this.id = id;
+        this.name = name;
+        this.groupAddress = groupAddress;
+        this.members = members;
+    }
+
+    /**
+     * IDを指定しないコンストラクタ（データベースに保存する前の新規作成用）です。
+     */
+    public Group(String name, String groupAddress, List<String> members) {
+        this.name = name;
+        this.groupAddress = groupAddress;
+        this.members = members;
+    }
+
+    /**
+     * 新しいグループIDで、グループを作ります。
+     */
+    public static Group create(String name, List<String> members) {
+        String groupAddress = Base64.encodeToString(GroupCipher.newGroupId(), Base64.NO_WRAP);
+        return new Group(name, groupAddress, new ArrayList<>(members));
+    }
+
+    // Getters
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getGroupAddress() {
+        return groupAddress;
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * メッシュ上の宛先として使う、32バイトのグループIDを返します。
+     */
+    public byte[] getGroupHash() {
+        return Base64.decode(groupAddress, Base64.NO_WRAP);
+    }
+
+    // Setters
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setMembers(List<String> members) {
+        this.members = members;
+    }
+
+    @Override
+    public String toString() {
+        return "Group{" +
+                "id=" + id +
+                ", name='" + name + '\'' +
+                ", groupAddress='" + groupAddress + '\'' +
+                ", members=" + members.size() +
+                '}';
+    }
+}
@@ -0,0 +1,439 @@
+package ocean.RedWhale;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * グループ宛てのメッセージを、メンバーの人数に関係なく1度だけ暗号化するクラスです。
+ *
+ * 本文は送信者がグループ毎に作る「送信者鍵」（AES）で1回だけ暗号化し、送信者鍵だけを
+ * メンバー1人ずつの公開鍵（RSA、または楕円曲線ならECIES）で包みます。暗号文はグループIDを宛先にした
+ * 1つのメッセージとしてメッシュに流れ、各メンバーは自分宛ての包んだ鍵だけを取り出して復号します。
+ * そのため送信量はメッセージの大きさにほぼ比例し、メンバー数の分だけ増えるのは包んだ鍵の部分だけです。
+ *
+ * 送信者鍵と包んだ鍵はグループ毎に記憶して使い回すので、公開鍵の処理は鍵の作成時
+ * （一定数のメッセージ毎、一定時間毎、メンバーが変わった時）だけです。受信側も取り出した鍵を記憶し、
+ * 同じ送信者鍵のメッセージでは秘密鍵の処理を行いません。
+ * 包んだ鍵の一覧はメンバー1人あたり数百バイトになるため、送るのは鍵を作ってから最初の KEY_ANNOUNCEMENTS 件と、
+ * 鍵を受け取れなかったメンバーから再送を求められた時だけです。それ以外のメッセージはメンバー数を0にして一覧を省きます。
+ * 署名は送信者のID鍵でメッセージ毎に行うため、メンバー同士でも他人になりすますことはできません。
+ *
+ * 形式（0xE5）:
+ * [グループID 32][鍵ID 8][メンバー数 1][メンバーの短縮ID 8 × N][(包んだ鍵の長さ 2, 包んだ鍵) × N]
+ * [番号 4][署名の長さ 2][署名][IV + 暗号文]
+ * 一覧を省いたメッセージは [メンバー数 1] が0で、その後ろにすぐ [番号 4] が続きます。
+ * 短縮IDの一覧を先頭のチャンクに収めるため、メンバーは MAX_MEMBERS 人までです。
+ */
+public final class GroupCipher {
+    private static final String TAG = "GroupCipher";
+
+    static final byte ENVELOPE_GROUP = (byte) 0xE5;
+    static final int GROUP_ID_SIZE = MessagePacket.HASH_SIZE;
+    // [種類 1][グループID 32][鍵ID 8][メンバー数 1] の後ろに短縮IDの一覧が続きます
+    private static final int RECIPIENTS_OFFSET = 1 + GROUP_ID_SIZE + 8 + 1;
+    static final int MAX_MEMBERS = (MessageRouter.MAX_PAYLOAD_SIZE - RECIPIENTS_OFFSET) / MessagePacket.COMPACT_ID_SIZE;
+    private static final byte[] GROUP_LABEL = "RedWhale-group-v1".getBytes();
+
+    // 1つの送信者鍵で送るメッセージ数の上限と、送信者鍵の寿命
+    private static final int MAX_MESSAGES_PER_KEY = 1000;
+    private static final long KEY_LIFETIME_MS = 24 * 60 * 60 * 1000L;
+    // 受信側は送信側より少し長く覚えておきます（切り替え直後に遅れて届くメッセージのため）
+    private static final long INBOUND_LIFETIME_MS = KEY_LIFETIME_MS + 60 * 60 * 1000L;
+    private static final int MAX_INBOUND_KEYS = 256;
+    // 新しい送信者鍵で、包んだ鍵の一覧を付けて送るメッセージ数（取りこぼしに備えて数件続けます）
+    static final int KEY_ANNOUNCEMENTS = 3;
+    // 同じ送信者鍵の再送を求める間隔
+    private static final long KEY_REQUEST_INTERVAL_MS = 10 * 1000L;
+    // [グループID 32][鍵ID 8]：再送を求める送信者鍵を表す値の長さ
+    static final int KEY_REFERENCE_SIZE = GROUP_ID_SIZE + 8;
+    // 一覧を省いたメッセージの [メンバー数 1]
+    private static final byte[] NO_RECIPIENTS = {0};
+
+    /**
+     * 自分がグループへ送るための送信者鍵です。
+     */
+    private static final class OutboundKey {
+        final long id;
+        final byte[] key;
+        // [メンバー数][短縮ID × N][包んだ鍵 × N] の部分。作成時に1度だけ計算します
+        final byte[] recipients;
+        // 作成時のメンバー（変わったら鍵を作り直します）と、その短縮ID
+        final List<String> members;
+        final long[] memberIds;
+        final long createdAt;
+        int counter;
+        // あと何件、包んだ鍵の一覧を付けて送るか
+        int announcements = KEY_ANNOUNCEMENTS;
+
+        OutboundKey(long id, byte[] key, byte[] recipients, List<String> members, long[] memberIds, long createdAt) {
+            this.id = id;
+            this.key = key;
+            this.recipients = recipients;
+            this.members = members;
+            this.memberIds = memberIds;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * 他のメンバーから受け取った送信者鍵です。
+     */
+    private static final class InboundKey {
+        final byte[] key;
+        final byte[] senderId;
+        final long createdAt;
+        // 受信済みの番号（再送されたメッセージを2度渡さないため）
+        final BitSet seen = new BitSet();
+
+        InboundKey(byte[] key, byte[] senderId, long createdAt) {
+            this.key = key;
+            this.senderId = senderId;
+            this.createdAt = createdAt;
+        }
+    }
+
+    // グループID（Base64）→ 送信者鍵
+    private final Map<String, OutboundKey> outbound = new ConcurrentHashMap<>();
+    // 鍵ID → 受け取った送信者鍵（古いものから捨てます）
+    private final Map<Long, InboundKey> inbound = new LinkedHashMap<Long, InboundKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, InboundKey> eldest) {
+            return size() > MAX_INBOUND_KEYS;
+        }
+    };
+    // 鍵ID → 最後に再送を求めた時間（同じ鍵を何度も求めないため）
+    private final Map<Long, Long> keyRequests = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_INBOUND_KEYS;
+        }
+    };
+
+    /**
+     * 新しいグループIDを作ります。
+     */
+    public static byte[] newGroupId() {
+        byte[] id = new byte[GROUP_ID_SIZE];
+        CryptoContext.random().nextBytes(id);
+        return id;
+    }
+
+    /**
+     * 暗号文がグループ形式かを返します。
+     */
+    public static boolean isGroupEnvelope(byte[] data, int offset, int length) {
+        return length >= RECIPIENTS_OFFSET && data[offset] == ENVELOPE_GROUP;
+    }
+
+    /**
+     * グループ形式の暗号文の先頭部分から、メンバーの短縮IDの一覧を読み出します。
+     * 復号はせず、未参加のグループのメッセージが自分宛てかを判断するために使います。
+     *
+     * @param groupId パケットの宛先（暗号文の中のグループIDと一致する必要があります）
+     * @return 短縮IDの一覧。形式が正しくない、一覧を省いたメッセージ、または一覧が途中で切れている場合はnull
+     */
+    public static long[] readRecipients(byte[] data, int offset, int length, byte[] groupId) {
+        if (!isGroupEnvelope(data, offset, length)) return null;
+        for (int i = 0; i < GROUP_ID_SIZE; i++) {
+            if (data[offset + 1 + i] != groupId[i]) return null;
+        }
+        int count = data[offset + RECIPIENTS_OFFSET - 1] & 0xFF;
+        if (count == 0 || count > MAX_MEMBERS
+                || RECIPIENTS_OFFSET + count * MessagePacket.COMPACT_ID_SIZE > length) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset + RECIPIENTS_OFFSET, count * MessagePacket.COMPACT_ID_SIZE);
+        long[] recipients = new long[count];
+        for (int i = 0; i < count; i++) {
+            recipients[i] = buffer.getLong();
+        }
+        return recipients;
+    }
+
+    /**
+     * メッセージをグループの送信者鍵で1度だけ暗号化します。
+     * 送信者鍵がないか、期限切れ・メンバーの変更があった場合はここで作り直します（公開鍵の処理はこの時だけです）。
+     *
+     * @param members 自分以外のメンバーのID（公開鍵のBase64形式）
+     * @return バイナリの暗号文、失敗時はnull
+     */
+    public byte[] encrypt(byte[] groupId, byte[] message, List<String> members, FriendKeyIndex friendKeys,
+                          PrivateKey privateKey) {
+        OutboundKey key;
+        int counter;
+        byte[] recipients;
+        synchronized (this) {
+            key = getOutboundKey(groupId, members, friendKeys);
+            if (key == null) return null;
+            counter = key.counter++;
+            // 包んだ鍵の一覧は、鍵を作った直後と再送を求められた時だけ付けます
+            if (key.announcements > 0) {
+                key.announcements--;
+                recipients = key.recipients;
+            } else {
+                recipients = NO_RECIPIENTS;
+            }
+        }
+        try {
+            int headerSize = 1 + GROUP_ID_SIZE + 8 + recipients.length + 4;
+            int bodySize = EncryptionManager.getEncryptedSize(message.length);
+            // 署名は本文の暗号文にも掛けるため、先に暗号化してから組み立てます
+            ByteBuffer body = ByteBuffer.allocate(bodySize);
+            if (EncryptionManager.encryptTo(message, 0, message.length, key.key, messageAad(groupId, key.id, counter),
+                    EncryptionManager.counterIv(0, counter), body) < 0) {
+                return null;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize)
+                    .put(ENVELOPE_GROUP).put(groupId).putLong(key.id).put(recipients).putInt(counter);
+            byte[] signature = EncryptionManager.signData(
+                    signedData(header.array(), 0, headerSize, body.array(), 0, bodySize), privateKey);
+            if (signature == null) return null;
+
+            return ByteBuffer.allocate(headerSize + 2 + signature.length + bodySize)
+                    .put(header.array())
+                    .putShort((short) signature.length).put(signature)
+                    .put(body.array())
+                    .array();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "グループメッセージの暗号化に失敗しました", e);
+            return null;
+        }
+    }
+
+    /**
+     * グループ形式の暗号文を復号します。
+     *
+     * @param senderId  送信元のID（完全なハッシュ、または短縮ID）
+     * @param localHash 自分のIDハッシュ
+     * @return 復号結果。自分宛ての鍵がない（一覧を省いたメッセージで、送信者鍵をまだ受け取っていない場合を含む）、
+     * 署名が正しくない、改ざん・再送された場合はnull
+     */
+    public SessionManager.Decrypted decrypt(byte[] data, int offset, int length, byte[] senderId, byte[] localHash,
+                                            PrivateKey privateKey, FriendKeyIndex friendKeys) {
+        try {
+            if (!isGroupEnvelope(data, offset, length)) return null;
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset + 1, length - 1);
+            byte[] groupId = new byte[GROUP_ID_SIZE];
+            buffer.get(groupId);
+            long keyId = buffer.getLong();
+
+            int count = buffer.get() & 0xFF;
+            if (count > MAX_MEMBERS) return null;
+            long localId = IdentityManager.getCompactId(localHash);
+            int mine = -1;
+            for (int i = 0; i < count; i++) {
+                if (buffer.getLong() == localId && mine < 0) mine = i;
+            }
+            if (count > 0 && mine < 0) return null; // 自分はこのメッセージのメンバーではありません
+            byte[] wrappedKey = null;
+            for (int i = 0; i < count; i++) {
+                int wrappedLength = buffer.getShort() & 0xFFFF;
+                if (i == mine) {
+                    wrappedKey = new byte[wrappedLength];
+                    buffer.get(wrappedKey);
+                } else {
+                    buffer.position(buffer.position() + wrappedLength);
+                }
+            }
+            int counter = buffer.getInt();
+            if (counter < 0 || counter >= MAX_MESSAGES_PER_KEY) return null;
+            int headerEnd = buffer.position();
+            byte[] signature = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(signature);
+            int bodyOffset = buffer.position();
+            int bodyLength = offset + length - bodyOffset;
+
+            // 短縮IDの衝突に備えて、当てはまる友達全員の公開鍵で署名を試します
+            byte[] signedData = signedData(data, offset, headerEnd - offset, data, bodyOffset, bodyLength);
+            List<FriendKeyIndex.Entry> candidates = friendKeys.findCandidates(senderId);
+            FriendKeyIndex.Entry signer = null;
+            for (FriendKeyIndex.Entry candidate : candidates) {
+                if (EncryptionManager.verifySignature(signedData, signature, candidate.getPublicKey())) {
+                    signer = candidate;
+                    break;
+                }
+            }
+            if (!candidates.isEmpty() && signer == null) {
+                Log.w(TAG, "グループメッセージの署名が正しくありません");
+                return null;
+            }
+            byte[] peerId = signer != null ? signer.getHash() : senderId;
+
+            InboundKey key = getInboundKey(keyId, peerId);
+            if (key == null) {
+                // 一覧を省いたメッセージは、先に送信者鍵を受け取っていなければ復号できません
+                if (wrappedKey == null) return null;
+                byte[] unwrapped = EncryptionManager.unwrapKey(wrappedKey, privateKey);
+                if (unwrapped == null) return null;
+                key = putInboundKey(keyId, new InboundKey(unwrapped, peerId, System.currentTimeMillis()));
+                if (key == null) return null;
+            }
+            synchronized (key) {
+                if (key.seen.get(counter)) {
+                    Log.w(TAG, "受信済みのグループメッセージです");
+                    return null;
+                }
+            }
+
+            byte[] plaintext = EncryptionManager.decryptBytes(data, bodyOffset, bodyLength, key.key,
+                    messageAad(groupId, keyId, counter));
+            if (plaintext == null) return null;
+            synchronized (key) {
+                // 並列に復号された同じメッセージは、先に記録した方だけを渡します
+                if (key.seen.get(counter)) return null;
+                key.seen.set(counter);
+            }
+            return new SessionManager.Decrypted(plaintext, 0, groupId,
+                    signer != null ? signer.getIdentityAddress() : null);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "グループメッセージの解析に失敗しました", e);
+            return null;
+        }
+    }
+
+    /**
+     * 包んだ鍵の一覧を省いたメッセージで、まだ受け取っていない送信者鍵の再送を求めるべきかを判断します。
+     * 同じ鍵について、KEY_REQUEST_INTERVAL_MS に1度だけ求めます。
+     *
+     * @return 再送を求める場合は [グループID 32][鍵ID 8]。一覧を含む、鍵を知っている、求めたばかりの場合はnull
+     */
+    public byte[] missingKeyReference(byte[] data, int offset, int length) {
+        if (!isGroupEnvelope(data, offset, length) || data[offset + RECIPIENTS_OFFSET - 1] != 0) return null;
+        long keyId = ByteBuffer.wrap(data, offset + 1 + GROUP_ID_SIZE, 8).getLong();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (inbound.containsKey(keyId)) return null;
+            Long requestedAt = keyRequests.get(keyId);
+            if (requestedAt != null && now - requestedAt < KEY_REQUEST_INTERVAL_MS) return null;
+            keyRequests.put(keyId, now);
+        }
+        return Arrays.copyOfRange(data, offset + 1, offset + 1 + KEY_REFERENCE_SIZE);
+    }
+
+    /**
+     * メンバーから送信者鍵の再送を求められた時に呼びます。
+     * 今の送信者鍵が求められた鍵で、求めた相手がそのメンバーなら、次のメッセージに包んだ鍵の一覧を付けます。
+     * 要求自体は署名されていないため、できることは一覧を1回余分に送らせることだけに限っています。
+     *
+     * @param reference   missingKeyReference で作られた [グループID 32][鍵ID 8]
+     * @param requesterId 要求の送信元のID（完全なハッシュ、または短縮ID）
+     * @return 次のメッセージで一覧を送る場合はtrue
+     */
+    public boolean onKeyRequested(byte[] reference, byte[] requesterId) {
+        if (reference.length != KEY_REFERENCE_SIZE || requesterId.length < MessagePacket.COMPACT_ID_SIZE) return false;
+        ByteBuffer buffer = ByteBuffer.wrap(reference);
+        byte[] groupId = new byte[GROUP_ID_SIZE];
+        buffer.get(groupId);
+        long keyId = buffer.getLong();
+        long requester = IdentityManager.getCompactId(requesterId);
+        synchronized (this) {
+            OutboundKey key = outbound.get(Base64.encodeToString(groupId, Base64.NO_WRAP));
+            if (key == null || key.id != keyId) return false;
+            for (long memberId : key.memberIds) {
+                if (memberId == requester) {
+                    key.announcements = Math.max(key.announcements, 1);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * グループの送信者鍵を捨てます（メンバーから外れた相手に、次のメッセージを読まれないようにします）。
+     */
+    public void reset(byte[] groupId) {
+        outbound.remove(Base64.encodeToString(groupId, Base64.NO_WRAP));
+    }
+
+    private OutboundKey getOutboundKey(byte[] groupId, List<String> members, FriendKeyIndex friendKeys) {
+        if (members.isEmpty() || members.size() > MAX_MEMBERS) {
+            Log.w(TAG, "グループのメンバー数が範囲外です: " + members.size());
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        String groupKey = Base64.encodeToString(groupId, Base64.NO_WRAP);
+        OutboundKey key = outbound.get(groupKey);
+        if (key != null && key.counter < MAX_MESSAGES_PER_KEY && now - key.createdAt < KEY_LIFETIME_MS
+                && key.members.equals(members)) {
+            return key;
+        }
+
+        // 新しい送信者鍵：メンバー1人ずつの公開鍵で包み、短縮IDの一覧と一緒に記憶します
+        byte[] secret = EncryptionManager.generateRandomKey();
+        byte[][] wrapped = new byte[members.size()][];
+        long[] ids = new long[members.size()];
+        int size = 1 + ids.length * MessagePacket.COMPACT_ID_SIZE;
+        for (int i = 0; i < ids.length; i++) {
+            String member = members.get(i);
+            byte[] hash = IdentityManager.getAddressHash(member);
+            FriendKeyIndex.Entry entry = friendKeys.find(hash);
+            PublicKey publicKey = entry != null ? entry.getPublicKey() : IdentityManager.getPublicKeyFromAddress(member);
+            if (publicKey == null) return null;
+            wrapped[i] = EncryptionManager.wrapKey(secret, publicKey);
+            if (wrapped[i] == null) return null;
+            ids[i] = IdentityManager.getCompactId(hash);
+            size += 2 + wrapped[i].length;
+        }
+        ByteBuffer recipients = ByteBuffer.allocate(size).put((byte) ids.length);
+        for (long id : ids) {
+            recipients.putLong(id);
+        }
+        for (byte[] w : wrapped) {
+            recipients.putShort((short) w.length).put(w);
+        }
+        key = new OutboundKey(CryptoContext.random().nextLong(), secret, recipients.array(), new ArrayList<>(members),
+                ids, now);
+        outbound.put(groupKey, key);
+        return key;
+    }
+
+    private synchronized InboundKey getInboundKey(long keyId, byte[] senderId) {
+        InboundKey key = inbound.get(keyId);
+        if (key == null) return null;
+        if (System.currentTimeMillis() - key.createdAt >= INBOUND_LIFETIME_MS) {
+            inbound.remove(keyId);
+            return null;
+        }
+        // 他のメンバーの鍵IDを名乗ったメッセージは受け付けません
+        if (!IdentityManager.matchesId(key.senderId, senderId) && !IdentityManager.matchesId(senderId, key.senderId)) {
+            return null;
+        }
+        return key;
+    }
+
+    /**
+     * 取り出した送信者鍵を記憶します。同じ鍵が並列に取り出された場合は、先に登録された方を使います。
+     */
+    private synchronized InboundKey putInboundKey(long keyId, InboundKey key) {
+        InboundKey existing = inbound.get(keyId);
+        if (existing != null) {
+            return Arrays.equals(existing.senderId, key.senderId) ? existing : null;
+        }
+        inbound.put(keyId, key);
+        return key;
+    }
+
+    private static byte[] signedData(byte[] header, int headerOffset, int headerLength,
+                                     byte[] body, int bodyOffset, int bodyLength) {
+        return ByteBuffer.allocate(GROUP_LABEL.length + headerLength + bodyLength)
+                .put(GROUP_LABEL).put(header, headerOffset, headerLength).put(body, bodyOffset, bodyLength)
+                .array();
+    }
+
+    private static byte[] messageAad(byte[] groupId, long keyId, int counter) {
+        return ByteBuffer.allocate(GROUP_ID_SIZE + 8 + 4).put(groupId).putLong(keyId).putInt(counter).array();
+    }
+}
@@ -1,11 +1,13 @@
 package ocean.RedWhale;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -24,6 +26,9 @@ import android.os.PowerManager;
 import android.provider.Settings;
 import android.net.Uri;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * アプリのメイン画面（ハブ）です。
  * ナビゲーションメニューと、チャット一覧・設定画面の切り替えを管理します。
@@ -117,19 +122,15 @@ public class HomeActivity extends AppCompatActivity implements NavigationView.On
             SharedPreferences prefs = getSharedPreferences("RedWhalePrefs", MODE_PRIVATE);
             String displayName = prefs.getString("display_name", "User");
             
-            IdentityManager identityManager = new IdentityManager(this);
+            IdentityCache.Identity identity = IdentityCache.getInstance().get();
             String nodeInfo;
-            if (identityManager.exists()) {
-                String address = identityManager.getIdentityAddress();
-                if (address != null) {
-                    if (address.length() > 16) {
-                        // 長いアドレスを短縮して表示
-                        nodeInfo = "Node ID: " + address.substring(0, 8) + "..." + address.substring(address.length() - 8);
-                    } else {
-                        nodeInfo = "Node ID: " + address;
-                    }
+            if (identity != null) {
+                String address = identity.getAddress();
+                if (address.length() > 16) {
+                    // 長いアドレスを短縮して表示
+                    nodeInfo = "Node ID: " + address.substring(0, 8) + "..." + address.substring(address.length() - 8);
                 } else {
-                    nodeInfo = "Node ID: Unknown";
+                    nodeInfo = "Node ID: " + address;
                 }
             } else {
                 nodeInfo = "Node ID: Not Set";
@@ -155,6 +156,11 @@ public class HomeActivity extends AppCompatActivity implements NavigationView.On
         } else if (itemId == R.id.nav_settings) {
             selectedFragment = new SettingsFragment();
             if (toolbar != null) toolbar.setTitle("設定");
+        } else if (itemId == R.id.nav_new_group) {
+            showCreateGroupDialog();
+        } else if (itemId == R.id.nav_search) {
+            // メッセージの検索画面を開く
+            startActivity(new Intent(this, SearchActivity.class));
         }
 
         if (selectedFragment != null && !isFinishing()) {
@@ -175,6 +181,80 @@ public class HomeActivity extends AppCompatActivity implements NavigationView.On
         return true;
     }
 
+    /**
+     * 友達を選んで新しいグループを作るためのダイアログを表示します。
+     */
+    private void showCreateGroupDialog() {
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(this);
+        new Thread(() -> {
+            // 公開鍵（アイデンティティ）が分かっている友達だけをメンバーの候補にします
+            List<Friend> candidates = new ArrayList<>();
+            for (Friend friend : dbHelper.getAllFriends()) {
+                String identity = friend.getIdentityAddress();
+                if (identity != null && IdentityManager.getPublicKeyFromAddress(identity) != null) {
+                    candidates.add(friend);
+                }
+            }
+
+            runOnUiThread(() -> {
+                if (isFinishing()) return;
+                if (candidates.isEmpty()) {
+                    Toast.makeText(this, "グループに追加できる友達がいません", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                String[] names = new String[candidates.size()];
+                boolean[] checked = new boolean[candidates.size()];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = candidates.get(i).getName();
+                }
+
+                // グループ名を入力するテキストボックス
+                final EditText input = new EditText(this);
+                input.setHint("グループ名");
+
+                AlertDialog.Builder builder = new AlertDialog.Builder(this);
+                builder.setTitle("グループを作成");
+                builder.setView(input);
+                builder.setMultiChoiceItems(names, checked, (dialog, which, isChecked) -> checked[which] = isChecked);
+                builder.setPositiveButton("作成", (dialog, which) ->
+                        createGroup(input.getText().toString().trim(), candidates, checked));
+                builder.setNegativeButton("キャンセル", null);
+                builder.show();
+            });
+        }).start();
+    }
+
+    /**
+     * 選ばれた友達でグループを作って保存し、そのグループの会話を開きます。
+     */
+    private void createGroup(String name, List<Friend> candidates, boolean[] checked) {
+        List<String> members = new ArrayList<>();
+        for (int i = 0; i < checked.length; i++) {
+            if (checked[i]) members.add(candidates.get(i).getIdentityAddress());
+        }
+        if (members.isEmpty()) {
+            Toast.makeText(this, "メンバーを1人以上選んでください", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (members.size() > GroupCipher.MAX_MEMBERS) {
+            Toast.makeText(this, "メンバーは" + GroupCipher.MAX_MEMBERS + "人までです", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        Group group = Group.create(name.isEmpty() ? "グループ" : name, members);
+        new Thread(() -> {
+            DatabaseHelper.getInstance(this).addGroup(group);
+            runOnUiThread(() -> {
+                if (isFinishing()) return;
+                // グループIDを相手のアドレスとして、チャット画面（MainActivity）を開始
+                Intent intent = new Intent(this, MainActivity.class);
+                intent.putExtra("deviceAddress", group.getGroupAddress());
+                intent.putExtra("CHAT_NAME", group.getName());
+                startActivity(intent);
+            });
+        }).start();
+    }
+
     @Override
     public void onBackPressed() {
         // メニューが開いていれば閉じる
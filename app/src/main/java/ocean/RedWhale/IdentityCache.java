@@ -0,0 +1,133 @@
+package ocean.RedWhale;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 自分の暗号化ID（公開鍵・IDハッシュ・秘密鍵のハンドル）をプロセス全体で1度だけ読み込んで保持するクラスです。
+ *
+ * Keystoreの読み込み（KeyStore.getInstance と load）は時間がかかるため、起動時にバックグラウンドで1度だけ行い、
+ * 公開鍵のBase64形式やSHA-256のIDハッシュもその時に計算しておきます。
+ * 画面やサービスは load() が返す Future で読み込みの完了を待つか、get() で結果を受け取ります。
+ * 新しいIDを生成した時は invalidate() で読み込み直します。
+ */
+public final class IdentityCache {
+    private static final String TAG = "IdentityCache";
+
+    /**
+     * 読み込んだIDです。
+     */
+    public static final class Identity {
+        final String address;
+        final byte[] hash;
+        final PublicKey publicKey;
+        final PrivateKey privateKey;
+
+        Identity(String address, byte[] hash, PublicKey publicKey, PrivateKey privateKey) {
+            this.address = address;
+            this.hash = hash;
+            this.publicKey = publicKey;
+            this.privateKey = privateKey;
+        }
+
+        /**
+         * 公開鍵（Node ID）のBase64形式を返します。
+         */
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * IDハッシュ（公開鍵のSHA-256）を返します。配列は共有しているため書き換えないでください。
+         */
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+
+        public PrivateKey getPrivateKey() {
+            return privateKey;
+        }
+    }
+
+    private static final IdentityCache INSTANCE = new IdentityCache();
+
+    // 読み込み済み（または読み込み中）の結果。IDがない場合はnullで完了します
+    private CompletableFuture<Identity> ready;
+    // 読み込み済みのKeystore（読み込み用のスレッドでのみ使用）
+    private KeyStore keyStore;
+
+    private IdentityCache() {
+    }
+
+    public static IdentityCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * IDの読み込みを（まだなら）バックグラウンドで開始し、完了を表すFutureを返します。
+     * 何度呼んでも読み込みは1度だけです。
+     */
+    public synchronized CompletableFuture<Identity> load() {
+        if (ready == null) {
+            CompletableFuture<Identity> future = new CompletableFuture<>();
+            ready = future;
+            Thread thread = new Thread(() -> future.complete(read()), "RedWhale-identity");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return ready;
+    }
+
+    /**
+     * 読み込んだIDを返します。読み込みが済んでいなければ完了まで待つため、UIスレッドからは呼ばないでください。
+     *
+     * @return ID、まだ作成されていない場合はnull
+     */
+    public Identity get() {
+        return load().join();
+    }
+
+    /**
+     * 読み込みが済んでいればIDを返します。待たずにすぐ戻ります。
+     */
+    public synchronized Identity peek() {
+        return ready != null && ready.isDone() ? ready.getNow(null) : null;
+    }
+
+    /**
+     * IDが作り直された時に呼び、次の load() / get() で読み込み直すようにします。
+     */
+    public synchronized void invalidate() {
+        ready = null;
+    }
+
+    private Identity read() {
+        try {
+            if (keyStore == null) {
+                KeyStore loaded = KeyStore.getInstance(IdentityManager.ANDROID_KEYSTORE);
+                loaded.load(null);
+                keyStore = loaded;
+            }
+            Certificate cert = keyStore.getCertificate(IdentityManager.KEY_ALIAS);
+            if (cert == null || cert.getPublicKey() == null) return null;
+
+            PublicKey publicKey = cert.getPublicKey();
+            String address = Base64.encodeToString(publicKey.getEncoded(), Base64.NO_WRAP);
+            PrivateKey privateKey = (PrivateKey) keyStore.getKey(IdentityManager.KEY_ALIAS, null);
+            return new Identity(address, IdentityManager.getAddressHash(address), publicKey, privateKey);
+        } catch (Exception e) {
+            Log.e(TAG, "IDの読み込みに失敗", e);
+            return null;
+        }
+    }
+}
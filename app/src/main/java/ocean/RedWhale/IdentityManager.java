@@ -1,6 +1,7 @@
 package ocean.RedWhale;
 
 import android.content.Context;
+import android.os.Build;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
 import android.util.Base64;
@@ -8,25 +9,28 @@ import android.util.Log;
 
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
-import java.security.KeyStore;
 import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.RSAKeyGenParameterSpec;
 
 import java.security.KeyFactory;
+import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 
-import java.security.cert.Certificate;
-
 /**
  * ユーザーの暗号化ID（公開鍵と秘密鍵）を管理するクラスです。
  * Android Keystoreを使用して、端末内の安全な領域に鍵を保存します。
+ *
+ * 新しいIDは、Keystoreで楕円曲線の鍵交換（ECDH）が使える端末（Android 12以降）では
+ * P-256の楕円曲線鍵、それ以外ではRSA 2048bitの鍵で作ります。
+ * 既に作成済みのRSAのIDや、RSAのIDを持つ友達もそのまま使えます（鍵の種類は公開鍵から判別します）。
  */
 public class IdentityManager {
     private static final String TAG = "IdentityManager";
-    private static final String KEY_ALIAS = "RedWhaleIdentityKey";
-    private static final String ANDROID_KEYSTORE = "AndroidKeyStore";
+    static final String KEY_ALIAS = "RedWhaleIdentityKey";
+    static final String ANDROID_KEYSTORE = "AndroidKeyStore";
 
     private final Context context;
 
@@ -36,16 +40,10 @@ public class IdentityManager {
 
     /**
      * 暗号化IDが既に作成されているか確認します。
+     * Keystoreの読み込みは IdentityCache で1度だけ行われ、済んでいなければ完了まで待ちます。
      */
     public boolean exists() {
-        try {
-            KeyStore keyStore = KeyStore.getInstance(ANDROID_KEYSTORE);
-            keyStore.load(null);
-            return keyStore.containsAlias(KEY_ALIAS) && keyStore.getCertificate(KEY_ALIAS) != null;
-        } catch (Exception e) {
-            Log.e(TAG, "IDの確認に失敗", e);
-            return false;
-        }
+        return IdentityCache.getInstance().get() != null;
     }
 
     /**
@@ -58,9 +56,45 @@ public class IdentityManager {
     }
 
     /**
-     * RSA 2048bitの鍵ペアを生成します（時間がかかる処理です）。
+     * 新しい鍵ペアを生成します。
+     * P-256の楕円曲線鍵は、RSA 2048bitに比べて生成が速く、公開鍵（91バイト）も署名（64バイト）も小さくなります。
      */
     public void generateNewIdentity() {
+        if (supportsEcIdentity()) {
+            try {
+                KeyPairGenerator kpg = KeyPairGenerator.getInstance(
+                        KeyProperties.KEY_ALGORITHM_EC, ANDROID_KEYSTORE);
+
+                kpg.initialize(new KeyGenParameterSpec.Builder(
+                        KEY_ALIAS,
+                        KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY | KeyProperties.PURPOSE_AGREE_KEY)
+                        .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
+                        .setDigests(KeyProperties.DIGEST_SHA256)
+                        .build());
+
+                kpg.generateKeyPair();
+                IdentityCache.getInstance().invalidate();
+                Log.i(TAG, "新しい暗号化ID（P-256）を生成しました");
+                return;
+            } catch (Exception e) {
+                Log.w(TAG, "楕円曲線のIDを生成できないため、RSAで生成します", e);
+            }
+        }
+        generateRsaIdentity();
+    }
+
+    /**
+     * Keystoreの楕円曲線鍵で鍵交換（ECDH）ができる端末かを返します。
+     * 鍵交換ができないと相手からセッション鍵を受け取れないため、その場合はRSAのIDを使います。
+     */
+    public static boolean supportsEcIdentity() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.S;
+    }
+
+    /**
+     * RSA 2048bitの鍵ペアを生成します（時間がかかる処理です）。
+     */
+    private void generateRsaIdentity() {
         try {
             KeyPairGenerator kpg = KeyPairGenerator.getInstance(
                     KeyProperties.KEY_ALGORITHM_RSA, ANDROID_KEYSTORE);
@@ -76,6 +110,7 @@ public class IdentityManager {
                     .build());
 
             kpg.generateKeyPair();
+            IdentityCache.getInstance().invalidate();
             Log.i(TAG, "新しい暗号化IDを生成しました");
         } catch (Exception e) {
             Log.e(TAG, "IDの生成に失敗", e);
@@ -86,32 +121,25 @@ public class IdentityManager {
      * 自分の公開鍵（Node IDとして使用）をBase64形式で取得します。
      */
     public String getIdentityAddress() {
-        try {
-            KeyStore keyStore = KeyStore.getInstance(ANDROID_KEYSTORE);
-            keyStore.load(null);
-            
-            Certificate cert = keyStore.getCertificate(KEY_ALIAS);
-            if (cert == null) return null;
-            
-            PublicKey publicKey = cert.getPublicKey();
-            if (publicKey == null) return null;
-            
-            return Base64.encodeToString(publicKey.getEncoded(), Base64.NO_WRAP);
-        } catch (Exception e) {
-            Log.e(TAG, "Node IDの取得に失敗", e);
-            return null;
-        }
+        IdentityCache.Identity identity = IdentityCache.getInstance().get();
+        return identity != null ? identity.getAddress() : null;
     }
 
     /**
      * 文字列形式の公開鍵をオブジェクトに変換します。
+     * 楕円曲線（P-256）とRSAのどちらの鍵にも対応しています。
      */
     public static PublicKey getPublicKeyFromAddress(String address) {
         try {
             byte[] keyBytes = Base64.decode(address, Base64.NO_WRAP);
             X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            return keyFactory.generatePublic(spec);
+            // 鍵の種類はX.509の中のアルゴリズムIDで決まるため、長さでは推測しません。
+            // まず楕円曲線鍵として読み、種類が違えばRSAとして読み直します
+            try {
+                return KeyFactory.getInstance(KeyProperties.KEY_ALGORITHM_EC).generatePublic(spec);
+            } catch (InvalidKeySpecException notEc) {
+                return KeyFactory.getInstance(KeyProperties.KEY_ALGORITHM_RSA).generatePublic(spec);
+            }
         } catch (Exception e) {
             Log.e(TAG, "公開鍵の変換に失敗", e);
             return null;
@@ -122,14 +150,8 @@ public class IdentityManager {
      * 保存されている秘密鍵を取得します。
      */
     public PrivateKey getPrivateKey() {
-        try {
-            KeyStore keyStore = KeyStore.getInstance(ANDROID_KEYSTORE);
-            keyStore.load(null);
-            return (PrivateKey) keyStore.getKey(KEY_ALIAS, null);
-        } catch (Exception e) {
-            Log.e(TAG, "秘密鍵の取得に失敗", e);
-            return null;
-        }
+        IdentityCache.Identity identity = IdentityCache.getInstance().get();
+        return identity != null ? identity.getPrivateKey() : null;
     }
 
     /**
@@ -143,4 +165,27 @@ public class IdentityManager {
             return new byte[32];
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * ハッシュ値の先頭8バイトを、短縮ノードIDとしてlong値で返します。
+     * 短縮形式のパケットヘッダーでは、このIDだけが送られます。
+     */
+    public static long getCompactId(byte[] hash) {
+        long id = 0;
+        for (int i = 0; i < MessagePacket.COMPACT_ID_SIZE; i++) {
+            id = (id << 8) | (hash[i] & 0xFF);
+        }
+        return id;
+    }
+
+    /**
+     * ハッシュ値の先頭が、受信したID（完全なハッシュ、または短縮ID）と一致するかを確認します。
+     */
+    public static boolean matchesId(byte[] hash, byte[] id) {
+        if (hash == null || id == null || id.length > hash.length) return false;
+        for (int i = 0; i < id.length; i++) {
+            if (hash[i] != id[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,294 @@
+package ocean.RedWhale;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.KeyAgreement;
+
+/**
+ * 隣接ノードとの接続（リンク）毎に、フレームへ短い認証タグを付けて確認するクラスです。
+ *
+ * 接続時に使い捨ての楕円曲線鍵で鍵交換（ECDH）し、方向毎のリンク鍵を導出します。
+ * 鍵が確定したリンクでは、送信するフレームの末尾に方向毎のフレーム番号（4バイト）と
+ * SipHash-2-4 の8バイトのタグを付け、受信したフレームはルーターに渡す前にタグと番号を確認します。
+ * 壊れたフレームや、リンクの外から差し込まれたフレーム、同じリンクで前に送られたフレームの再送は、
+ * 組み立てや転送の前にここで捨てられます。
+ * タグはフレーム（MessagePacket）のエンコードの外側に付くため、中継のたびに付け直されます。
+ *
+ * 手順（クライアント = 接続した側）:
+ * <ol>
+ *   <li>クライアントが使い捨て公開鍵をリンク鍵の特性に書き込みます</li>
+ *   <li>サーバーは自分の使い捨て鍵で鍵を導出し、読み出し要求に自分の公開鍵を返します</li>
+ *   <li>クライアントは鍵を導出し、鍵を持っていることを示す確認値を書き込みます</li>
+ *   <li>サーバーは確認値を受け入れた時点で、クライアントは書き込みが成功した時点でタグを付け始めます</li>
+ * </ol>
+ * 切り替えの瞬間に行き違ったフレームを捨てないよう、受信側は鍵交換の完了後も短い猶予の間だけ
+ * タグのないフレームを受け入れます。猶予が過ぎるか、相手から正しいタグ付きのフレームが届いた後は、タグを必須にします。
+ * 交換に対応していない（特性のない）古いノードとのリンクは、従来どおりタグなしで通信します。
+ * 鍵交換は識別情報（ID鍵）と結び付けていないため、リンク上の相手そのものの偽装は防げません。
+ */
+final class LinkAuthenticator {
+    private static final String TAG = "LinkAuthenticator";
+
+    static final int TAG_SIZE = 8;
+    // タグの前に付ける、方向毎のフレーム番号の長さ
+    static final int COUNTER_SIZE = 4;
+    // seal で増えるバイト数
+    static final int SEAL_OVERHEAD = COUNTER_SIZE + TAG_SIZE;
+    // 鍵交換の完了後に、タグのないフレームを受け入れる時間（ミリ秒）
+    static final long GRACE_PERIOD_MS = 2000;
+    private static final byte[] LINK_INFO = "RedWhale-link-v1".getBytes();
+    private static final byte[] CONFIRM_LABEL = "RedWhale-link-confirm".getBytes();
+
+    /**
+     * 1つのリンクの状態です。
+     */
+    private static final class Link {
+        final boolean initiator;
+        final byte[] ownPublic;
+        KeyPair ephemeral;
+        // 送信用と受信用の SipHash の鍵（[k0, k1]）
+        volatile long[] sendKey;
+        volatile long[] receiveKey;
+        // 送信するフレームにタグを付けるか
+        volatile boolean sealing;
+        // 相手からタグ付きのフレームが届いたか（以降はタグのないフレームを捨てます）
+        volatile boolean strict;
+        // 鍵交換が完了した時刻（SystemClock.elapsedRealtime）。まだなら-1
+        volatile long completedAt = -1;
+        // 次に送るフレームの番号と、最後に受け取ったフレームの番号（link で同期）
+        long sendCounter;
+        long lastReceived = -1;
+        // タグを付けたフレームを書き込む、使い回しの配列（link で同期）
+        byte[] sealBuffer;
+
+        Link(boolean initiator, KeyPair ephemeral) {
+            this.initiator = initiator;
+            this.ephemeral = ephemeral;
+            this.ownPublic = ephemeral.getPublic().getEncoded();
+        }
+    }
+
+    // 相手のMACアドレス → リンクの状態
+    private final Map<String, Link> links = new ConcurrentHashMap<>();
+
+    /**
+     * 鍵交換を始め、相手に渡す使い捨て公開鍵を返します。
+     * クライアントは接続時に、サーバーはクライアントの公開鍵を受け取った時に呼びます。
+     *
+     * @return X.509形式の公開鍵、鍵を作れなかった場合はnull
+     */
+    byte[] begin(String address, boolean initiator) {
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+            kpg.initialize(new ECGenParameterSpec("secp256r1"), CryptoContext.random());
+            KeyPair ephemeral = kpg.generateKeyPair();
+            Link link = new Link(initiator, ephemeral);
+            links.put(address, link);
+            return link.ownPublic;
+        } catch (Exception e) {
+            Log.e(TAG, "リンク鍵の生成に失敗しました", e);
+            return null;
+        }
+    }
+
+    /**
+     * 相手の使い捨て公開鍵から、リンク鍵を導出します。
+     *
+     * @return 導出できた場合はtrue
+     */
+    boolean derive(String address, byte[] peerPublic) {
+        Link link = links.get(address);
+        if (link == null || link.ephemeral == null || peerPublic == null) return false;
+        try {
+            PublicKey peer = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(peerPublic));
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(link.ephemeral.getPrivate());
+            agreement.doPhase(peer, true);
+
+            // 両者の公開鍵を（クライアント, サーバーの順で）含めて導出し、前半をクライアント→サーバー、後半を逆方向に使います
+            byte[] clientPublic = link.initiator ? link.ownPublic : peerPublic;
+            byte[] serverPublic = link.initiator ? peerPublic : link.ownPublic;
+            byte[] info = new byte[LINK_INFO.length + clientPublic.length + serverPublic.length];
+            System.arraycopy(LINK_INFO, 0, info, 0, LINK_INFO.length);
+            System.arraycopy(clientPublic, 0, info, LINK_INFO.length, clientPublic.length);
+            System.arraycopy(serverPublic, 0, info, LINK_INFO.length + clientPublic.length, serverPublic.length);
+            byte[] keys = SymmetricRatchet.hkdf(null, agreement.generateSecret(), info, 32);
+
+            long[] toServer = {SipHash.keyPart(keys, 0), SipHash.keyPart(keys, 8)};
+            long[] toClient = {SipHash.keyPart(keys, 16), SipHash.keyPart(keys, 24)};
+            Arrays.fill(keys, (byte) 0);
+            link.sendKey = link.initiator ? toServer : toClient;
+            link.receiveKey = link.initiator ? toClient : toServer;
+            link.ephemeral = null;
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "リンク鍵の導出に失敗しました", e);
+            return false;
+        }
+    }
+
+    /**
+     * 自分の使い捨て公開鍵を返します（サーバーが読み出し要求に答える時に使います）。
+     */
+    byte[] getPublicKey(String address) {
+        Link link = links.get(address);
+        return link != null ? link.ownPublic : null;
+    }
+
+    /**
+     * クライアントが、リンク鍵を持っていることを示す確認値を作ります。
+     */
+    byte[] confirmation(String address) {
+        Link link = links.get(address);
+        if (link == null || link.sendKey == null) return null;
+        return toBytes(SipHash.hash(link.sendKey[0], link.sendKey[1], CONFIRM_LABEL, 0, CONFIRM_LABEL.length));
+    }
+
+    /**
+     * サーバーが確認値を確かめ、正しければタグの付与と確認を始めます。
+     */
+    boolean acceptConfirmation(String address, byte[] value) {
+        return acceptConfirmation(address, value, SystemClock.elapsedRealtime());
+    }
+
+    boolean acceptConfirmation(String address, byte[] value, long nowMillis) {
+        Link link = links.get(address);
+        if (link == null || link.receiveKey == null || value == null || value.length != TAG_SIZE) return false;
+        long expected = SipHash.hash(link.receiveKey[0], link.receiveKey[1], CONFIRM_LABEL, 0, CONFIRM_LABEL.length);
+        if (!MessageDigest.isEqual(toBytes(expected), value)) return false;
+        link.sealing = true;
+        link.completedAt = nowMillis;
+        return true;
+    }
+
+    /**
+     * クライアントが、サーバーに確認値が受け入れられた時に呼びます。
+     */
+    void activate(String address) {
+        activate(address, SystemClock.elapsedRealtime());
+    }
+
+    void activate(String address, long nowMillis) {
+        Link link = links.get(address);
+        if (link != null && link.sendKey != null) {
+            link.sealing = true;
+            link.completedAt = nowMillis;
+        }
+    }
+
+    /**
+     * 送信するフレームに、フレーム番号とタグを付けます。
+     * GATTの送信APIは配列全体を送るため、長さが前回と同じ間はリンク毎の配列を使い回します。
+     *
+     * @return タグを付けた配列（同じリンクの次の seal まで有効です）。タグを使わないリンクでは元の配列そのもの
+     */
+    byte[] seal(String address, byte[] frame) {
+        Link link = links.get(address);
+        if (link == null || !link.sealing) return frame;
+        synchronized (link) {
+            byte[] sealed = link.sealBuffer;
+            if (sealed == null || sealed.length != frame.length + SEAL_OVERHEAD) {
+                sealed = new byte[frame.length + SEAL_OVERHEAD];
+                link.sealBuffer = sealed;
+            }
+            System.arraycopy(frame, 0, sealed, 0, frame.length);
+            writeInt(sealed, frame.length, (int) link.sendCounter++);
+            // 番号もタグで認証します
+            int signed = frame.length + COUNTER_SIZE;
+            writeLong(sealed, signed, SipHash.hash(link.sendKey[0], link.sendKey[1], sealed, 0, signed));
+            return sealed;
+        }
+    }
+
+    /**
+     * 受信したフレームのタグと番号を確認します。
+     *
+     * @return タグと番号を除いたフレームの長さ。タグを使わないリンクではフレーム全体の長さ、
+     *         タグが正しくない・番号が前に受け取ったもの以下・必要なタグがない場合は-1
+     */
+    int open(String address, byte[] frame) {
+        return open(address, frame, SystemClock.elapsedRealtime());
+    }
+
+    int open(String address, byte[] frame, long nowMillis) {
+        Link link = links.get(address);
+        long[] key = link != null ? link.receiveKey : null;
+        if (key == null) return frame.length;
+        int length = frame.length - SEAL_OVERHEAD;
+        int signed = frame.length - TAG_SIZE;
+        if (length > 0 && SipHash.hash(key[0], key[1], frame, 0, signed) == readLong(frame, signed)) {
+            long counter = readInt(frame, length) & 0xFFFFFFFFL;
+            synchronized (link) {
+                // 同じリンクで前に届いたフレームを差し込み直したもの（リプレイ）は捨てます
+                if (counter <= link.lastReceived) return -1;
+                link.lastReceived = counter;
+            }
+            link.strict = true;
+            return length;
+        }
+        return requiresTag(link, nowMillis) ? -1 : frame.length;
+    }
+
+    /**
+     * タグのないフレームを捨てるべきかを返します。
+     * 正しいタグ付きのフレームが届いた後と、鍵交換の完了から猶予が過ぎた後はタグが必須です。
+     */
+    private static boolean requiresTag(Link link, long nowMillis) {
+        if (link.strict) return true;
+        long completedAt = link.completedAt;
+        return completedAt >= 0 && nowMillis - completedAt >= GRACE_PERIOD_MS;
+    }
+
+    /**
+     * 切断されたリンクの状態を捨てます。
+     */
+    void remove(String address) {
+        links.remove(address);
+    }
+
+    private static byte[] toBytes(long value) {
+        byte[] bytes = new byte[TAG_SIZE];
+        writeLong(bytes, 0, value);
+        return bytes;
+    }
+
+    private static void writeLong(byte[] dst, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            dst[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static void writeInt(byte[] dst, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            dst[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static int readInt(byte[] src, int offset) {
+        int value = 0;
+        for (int i = 3; i >= 0; i--) {
+            value = (value << 8) | (src[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long readLong(byte[] src, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (src[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
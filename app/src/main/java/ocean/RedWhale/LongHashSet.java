@@ -0,0 +1,95 @@
+package ocean.RedWhale;
+
+/**
+ * long値をボックス化せずに保持する、固定容量のハッシュセットです（オープンアドレス法）。
+ * 配列は生成時に1度だけ確保し、追加や検索でメモリを割り当てることはありません。
+ *
+ * ※スレッドセーフではありません。
+ */
+public final class LongHashSet {
+    // 0は「空き」の印として使うため、値0の有無は別に持ちます
+    private static final long EMPTY = 0L;
+
+    private final long[] slots;
+    private final int mask;
+    private final int maxSize;
+    private boolean containsZero;
+    private int size;
+
+    /**
+     * @param maxSize 保持できる最大要素数。衝突を減らすため、内部の配列はこの2倍以上になります。
+     */
+    public LongHashSet(int maxSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, maxSize) * 2 - 1) << 1;
+        this.slots = new long[capacity];
+        this.mask = capacity - 1;
+        this.maxSize = maxSize;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) return containsZero;
+        int index = indexFor(value);
+        while (true) {
+            long slot = slots[index];
+            if (slot == EMPTY) return false;
+            if (slot == value) return true;
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * 値を追加します。
+     *
+     * @return 新しく追加された場合はtrue。既に含まれているか、満杯で追加できない場合はfalse
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsZero) return false;
+            if (isFull()) return false;
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int index = indexFor(value);
+        while (true) {
+            long slot = slots[index];
+            if (slot == value) return false;
+            if (slot == EMPTY) {
+                if (isFull()) return false;
+                slots[index] = value;
+                size++;
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    public boolean isFull() {
+        return size >= maxSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * すべての要素を削除します（配列は再利用します）。
+     */
+    public void clear() {
+        if (size == 0) return;
+        java.util.Arrays.fill(slots, EMPTY);
+        containsZero = false;
+        size = 0;
+    }
+
+    private int indexFor(long value) {
+        // 上位ビットまで混ぜてから配列の位置を決めます（MurmurHash3の最終ミキサー）
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53a7ed5L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+}
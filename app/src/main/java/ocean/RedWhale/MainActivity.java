@@ -14,6 +14,8 @@ import android.os.Message;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.widget.AbsListView;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.ListView;
@@ -27,6 +29,8 @@ import androidx.core.content.ContextCompat;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * チャットルームのメイン画面です。
@@ -47,7 +51,8 @@ public class MainActivity extends AppCompatActivity {
     private com.google.android.material.appbar.MaterialToolbar toolbar;
 
     private DatabaseHelper dbHelper;
-    private String remoteDeviceAddress; // 相手のBluetoothアドレス
+    private String remoteDeviceAddress; // 相手のBluetoothアドレス（グループの会話ではグループID）
+    private Group group;                // グループの会話なら、そのグループ
 
     private static final int SELECT_DEVICE = 102;
 
@@ -60,11 +65,26 @@ public class MainActivity extends AppCompatActivity {
 
     public static final String DEVICE_NAME = "deviceName";
     public static final String TOAST = "toast";
+    // グループ宛てのメッセージを受信した時に、どのグループかを示すキー
+    public static final String GROUP_ID = "groupId";
+    // メッセージを受信した時に、送信者の会話のアドレス（友達ならデバイスアドレス）を示すキー
+    public static final String SENDER_ADDRESS = "senderAddress";
 
     private String connectedDevice;
     private String localAddress;
     private byte[] localAddressHash;
 
+    // 履歴は1ページずつ読み込み、上にスクロールした時に古いページを追加します
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private long oldestTimestamp = Long.MAX_VALUE; // 読み込み済みで一番古いメッセージの時間
+    private long oldestId = Long.MAX_VALUE;        // 読み込み済みで一番古いメッセージのID
+    private boolean hasMoreHistory = true;         // まだ読み込んでいない古いメッセージがあるか
+    private boolean loadingHistory = true;         // 読み込み中か（最初のページを読むまではtrue。UIスレッドからのみ使います）
+
+    // この画面のデータベースの読み込みなどを順番に行うスレッド（画面を閉じる時に止めます）
+    private final ExecutorService backgroundExecutor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "MainActivity-background"));
+
     // 権限要求のハンドラ
     private final ActivityResultLauncher<String[]> permissionLauncher = registerForActivityResult(
             new ActivityResultContracts.RequestMultiplePermissions(),
@@ -101,22 +121,31 @@ public class MainActivity extends AppCompatActivity {
                 // 自分がメッセージを送信した時
                 byte[] writeBuf = (byte[]) message.obj;
                 String writeMessage = new String(writeBuf);
-                ChatMessage writeChatMessage = new ChatMessage(writeMessage, true);
+                ChatMessage writeChatMessage = new ChatMessage(0, writeMessage, true, System.currentTimeMillis());
                 chatMessages.add(writeChatMessage);
                 adapterMainChat.notifyDataSetChanged();
-                // データベースへ保存（非同期）
-                new Thread(() -> dbHelper.addMessage(writeChatMessage, localAddress, remoteDeviceAddress)).start();
+                // 古い履歴を見ていても、送信したメッセージが見えるように一番下へ移動します
+                listMainChat.setSelection(chatMessages.size() - 1);
+                // データベースへ保存（書き込み用のスレッドでまとめて保存されます）
+                dbHelper.addMessage(writeChatMessage, localAddress, remoteDeviceAddress);
                 break;
 
             case MESSAGE_READ:
                 // 相手からメッセージを受信した時
                 byte[] readBuf = (byte[]) message.obj;
                 String readMessage = new String(readBuf, 0, message.arg1);
-                ChatMessage readChatMessage = new ChatMessage(readMessage, false);
-                chatMessages.add(readChatMessage);
-                adapterMainChat.notifyDataSetChanged();
-                // データベースへ保存（非同期）
-                new Thread(() -> dbHelper.addMessage(readChatMessage, remoteDeviceAddress, localAddress)).start();
+                ChatMessage readChatMessage = new ChatMessage(0, readMessage, false, System.currentTimeMillis());
+                // グループのメッセージはグループIDを、1対1のメッセージは送信者を相手として保存します。
+                // 画面に表示するのは、開いている会話のメッセージだけです
+                String readGroupId = message.getData().getString(GROUP_ID);
+                String readFrom = readGroupId != null ? readGroupId : message.getData().getString(SENDER_ADDRESS);
+                if (readFrom == null) break;
+                if (readFrom.equals(remoteDeviceAddress)) {
+                    chatMessages.add(readChatMessage);
+                    adapterMainChat.notifyDataSetChanged();
+                }
+                // データベースへ保存（書き込み用のスレッドでまとめて保存されます）
+                dbHelper.addMessage(readChatMessage, readFrom, localAddress);
                 break;
 
             case MESSAGE_DEVICE_NAME:
@@ -137,7 +166,7 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         context = this;
-        dbHelper = new DatabaseHelper(context);
+        dbHelper = DatabaseHelper.getInstance(context);
         remoteDeviceAddress = getIntent().getStringExtra("deviceAddress");
         
         if (remoteDeviceAddress == null) {
@@ -148,19 +177,22 @@ public class MainActivity extends AppCompatActivity {
 
         initViews();
         
-        // 重い初期化処理を別スレッドで実行
-        new Thread(this::performAsyncInitialization).start();
+        // IDの読み込み（Keystore）はアプリの起動時に1度だけ行われます。
+        // 続きの処理はデータベースも読むため、読み込み済みの場合もこの画面のスレッドで実行し、
+        // 画面の操作だけをUIスレッドに戻します
+        IdentityCache.getInstance().load().thenAcceptAsync(this::performAsyncInitialization, backgroundExecutor);
     }
 
     /**
-     * 非同期でアイデンティティ情報の取得やサービスの開始を行います。
+     * 読み込まれたアイデンティティ情報を受け取り、サービスの開始を行います。
      */
-    private void performAsyncInitialization() {
-        IdentityManager identityManager = new IdentityManager(this);
-        if (identityManager.exists()) {
-            localAddress = identityManager.getIdentityAddress();
-            localAddressHash = IdentityManager.getAddressHash(localAddress);
+    private void performAsyncInitialization(IdentityCache.Identity identity) {
+        if (identity != null) {
+            localAddress = identity.getAddress();
+            localAddressHash = identity.getHash();
         }
+        // 相手のアドレスがグループIDなら、グループの会話として開きます
+        group = dbHelper.getGroup(remoteDeviceAddress);
 
         runOnUiThread(() -> {
             if (isFinishing()) return;
@@ -196,7 +228,8 @@ public class MainActivity extends AppCompatActivity {
         chatUtils = BluetoothMeshService.getChatUtils();
         if (chatUtils != null) {
             chatUtils.setRemoteAddressHash(remoteDeviceAddress != null ? IdentityManager.getAddressHash(remoteDeviceAddress) : null);
-            if (remoteDeviceAddress != null && BluetoothAdapter.checkBluetoothAddress(remoteDeviceAddress)) {
+            chatUtils.setActiveGroup(group);
+            if (group == null && remoteDeviceAddress != null && BluetoothAdapter.checkBluetoothAddress(remoteDeviceAddress)) {
                 try {
                     BluetoothDevice device = bluetoothAdapter.getRemoteDevice(remoteDeviceAddress);
                     chatUtils.connect(device);
@@ -216,6 +249,20 @@ public class MainActivity extends AppCompatActivity {
         adapterMainChat = new ChatAdapter(this, chatMessages);
         listMainChat.setAdapter(adapterMainChat);
 
+        // 一番上までスクロールしたら、1つ古いページを読み込みます
+        listMainChat.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (firstVisibleItem == 0 && totalItemCount > 0) {
+                    loadOlderHistory();
+                }
+            }
+        });
+
         // 送信ボタンのクリックイベント
         btnSendMessage.setOnClickListener(v -> {
             String message = edCreateMessage.getText().toString().trim();
@@ -227,20 +274,90 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * 過去のチャット履歴をデータベースから読み込みます（非同期）。
+     * 過去のチャット履歴のうち、最新の1ページをデータベースから読み込みます（非同期）。
      */
     @SuppressLint("MissingPermission")
     private void loadChatHistory() {
         if (remoteDeviceAddress != null && bluetoothAdapter != null) {
-            new Thread(() -> {
-                List<ChatMessage> messages = dbHelper.getMessages(localAddress != null ? localAddress : "", remoteDeviceAddress);
+            loadingHistory = true;
+            backgroundExecutor.execute(() -> {
+                String local = localAddress != null ? localAddress : "";
+                List<ChatMessage> messages = dbHelper.getMessagesBefore(local, remoteDeviceAddress,
+                        Long.MAX_VALUE, Long.MAX_VALUE, HISTORY_PAGE_SIZE);
+                dbHelper.markConversationRead(local, remoteDeviceAddress);
                 runOnUiThread(() -> {
+                    loadingHistory = false;
                     if (isFinishing()) return;
+                    // 読み込んでいる間に送受信して表示したメッセージのうち、ページにまだ含まれていないものは残します
+                    List<ChatMessage> live = new ArrayList<>(chatMessages);
                     chatMessages.clear();
                     chatMessages.addAll(messages);
+                    for (ChatMessage message : live) {
+                        if (!isInPage(messages, message)) chatMessages.add(message);
+                    }
+                    updateHistoryCursor(messages);
                     adapterMainChat.notifyDataSetChanged();
+                    listMainChat.setSelection(chatMessages.size() - 1);
                 });
-            }).start();
+            });
+        }
+    }
+
+    /**
+     * 読み込み済みの一番古いメッセージより前の1ページを読み込み、リストの先頭に追加します（非同期）。
+     * 追加した後も、見ていた位置がずれないようにします。
+     */
+    private void loadOlderHistory() {
+        if (loadingHistory || !hasMoreHistory || remoteDeviceAddress == null) return;
+        loadingHistory = true;
+        long beforeTimestamp = oldestTimestamp;
+        long beforeId = oldestId;
+        backgroundExecutor.execute(() -> {
+            List<ChatMessage> messages = dbHelper.getMessagesBefore(localAddress != null ? localAddress : "",
+                    remoteDeviceAddress, beforeTimestamp, beforeId, HISTORY_PAGE_SIZE);
+            runOnUiThread(() -> {
+                loadingHistory = false;
+                if (isFinishing()) return;
+                // 先頭に追加する前の、一番上に見えている行の位置を覚えておきます
+                int first = listMainChat.getFirstVisiblePosition();
+                View top = listMainChat.getChildAt(0);
+                int offset = top != null ? top.getTop() : 0;
+
+                chatMessages.addAll(0, messages);
+                updateHistoryCursor(messages);
+                adapterMainChat.notifyDataSetChanged();
+                listMainChat.setSelectionFromTop(first + messages.size(), offset);
+            });
+        });
+    }
+
+    /**
+     * 送受信した時に表示したメッセージが、データベースから読み込んだページ（古い順）に含まれているかを返します。
+     * 保存は送受信した順に行われるため、ページの一番新しいメッセージより古ければ保存済み、新しければ未保存です。
+     * 同じ時間の場合は、本文と送受信の向きで見分けます。
+     */
+    private static boolean isInPage(List<ChatMessage> page, ChatMessage live) {
+        if (page.isEmpty()) return false;
+        long newest = page.get(page.size() - 1).getTimestamp();
+        if (live.getTimestamp() != newest) return live.getTimestamp() < newest;
+        for (int i = page.size() - 1; i >= 0 && page.get(i).getTimestamp() == newest; i--) {
+            ChatMessage saved = page.get(i);
+            if (saved.isSentByUser() == live.isSentByUser() && live.getMessage().equals(saved.getMessage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 読み込んだページ（古い順）から、次に読み込む位置と、まだ古いメッセージがあるかを更新します。
+     */
+    private void updateHistoryCursor(List<ChatMessage> page) {
+        hasMoreHistory = page.size() == HISTORY_PAGE_SIZE;
+        if (!page.isEmpty()) {
+            ChatMessage oldest = page.get(0);
+            oldestTimestamp = oldest.getTimestamp();
+            oldestId = oldest.getId();
         }
     }
 
@@ -303,10 +420,22 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // 開いている間に受信した分も含め、この会話を既読にします。
+        // 保存待ちのメッセージと同じキューに入れるため、既読の後に未読数が増えることはありません
+        if (remoteDeviceAddress != null && localAddress != null) {
+            dbHelper.markConversationRead(localAddress, remoteDeviceAddress);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         // ハンドラの解除
         BluetoothMeshService.setUiHandler(null);
+        // 実行中の処理は最後まで行い、新しい処理は受け付けません
+        backgroundExecutor.shutdown();
     }
 }
\ No newline at end of file
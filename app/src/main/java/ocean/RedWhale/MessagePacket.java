@@ -5,25 +5,62 @@ import java.nio.ByteBuffer;
 /**
  * Bluetoothメッセージの通信単位である「パケット」を表現するクラスです。
  * 大容量のデータを送るために、メッセージはこのパケットに分割して送信されます。
+ *
+ * ヘッダーには次の3つの形式があり、受信側（MessagePacketView）はすべてを解釈できます。
+ * <ul>
+ *   <li>v0（旧形式）: 32バイトのノードIDを持つ84バイトの固定長ヘッダー</li>
+ *   <li>v1（短縮形式）: 8バイトに短縮したノードIDを持つ37バイトの固定長ヘッダー</li>
+ *   <li>v2（拡張形式）: バージョン・フラグ・可変長整数・TLV拡張ヘッダーを持つ可変長ヘッダー</li>
+ * </ul>
  */
 public class MessagePacket {
-    public static final byte TYPE_MSG = 0x01;   
-    public static final byte TYPE_RELAY = 0x02; 
-    public static final byte TYPE_ACK = 0x03;   
-    
+    public static final byte TYPE_MSG = 0x01;
+    public static final byte TYPE_RELAY = 0x02;
+    public static final byte TYPE_ACK = 0x03;
+
+    // ヘッダーの形式（バージョン）
+    // 旧形式（v0）は先頭バイトがそのままtypeです。typeは0x80未満なので、
+    // 先頭2ビットが立っているバイトは「バージョン付きヘッダー」の目印として使えます。
+    public static final byte VERSION_LEGACY = 0;   // 32バイトのノードIDを持つ従来の固定長ヘッダー
+    public static final byte VERSION_COMPACT = 1;  // 8バイトに短縮したノードIDを持つ固定長ヘッダー
+    public static final byte VERSION_EXTENDED = 2; // フラグとTLV拡張ヘッダーを持つ可変長ヘッダー
+    static final int VERSION_MARKER = 0xC0;
+
+    // v2ヘッダーのフラグ
+    public static final int FLAG_FULL_IDS = 0x01;   // ノードIDを32バイトのまま送る（なければ8バイト）
+    public static final int FLAG_EXTENSIONS = 0x02; // TLV拡張ヘッダーのブロックを含む
+
     // ヘッダーサイズ (1 + 4 + 2 + 2 + 32 + 32 + 1 + 8 + 2 = 84 bytes)
     public static final int HEADER_SIZE = 1 + 4 + 2 + 2 + 32 + 32 + 1 + 8 + 2;
+    // 短縮ヘッダーサイズ (1 + 1 + 4 + 2 + 2 + 8 + 8 + 1 + 8 + 2 = 37 bytes)
+    public static final int COMPACT_HEADER_SIZE = 1 + 1 + 4 + 2 + 2 + 8 + 8 + 1 + 8 + 2;
+    public static final int HASH_SIZE = 32;
+    public static final int COMPACT_ID_SIZE = 8;
+
+    // 旧形式における各フィールドのフレーム先頭からの位置（MessagePacketViewと共有）
+    // 短縮形式ではバージョンバイトの分だけ後ろにずれ、IDの長さが変わります。
+    static final int OFFSET_TYPE = 0;
+    static final int OFFSET_MSG_ID = 1;
+    static final int OFFSET_CHUNK_INDEX = 5;
+    static final int OFFSET_TOTAL_CHUNKS = 7;
+    static final int OFFSET_DEST_HASH = 9;
 
-    public byte type;          
-    public int msgId;          
-    public short chunkIndex;   
-    public short totalChunks;  
-    public byte[] destHash;    
-    public byte[] srcHash;     
-    public byte ttl;           
-    public long timestamp;     
+    public byte type;
+    public int msgId;
+    public short chunkIndex;
+    public short totalChunks;
+    public byte[] destHash;
+    public byte[] srcHash;
+    public byte ttl;
+    public long timestamp;
     public short payloadLength;
-    public byte[] payload;     
+    public byte[] payload;
+    // toBytes()などで使う既定のヘッダー形式
+    public byte headerVersion = VERSION_LEGACY;
+    // ノードIDを8バイトに短縮して送ってもよいか（宛先が短縮形式を解釈でき、IDの衝突がない場合のみtrue）
+    public boolean compactIds;
+    // エンコード済みのTLV拡張ヘッダー（v2でのみ送られます。なければnull）
+    public byte[] extensions;
 
     public MessagePacket(byte type, int msgId, short chunkIndex, short totalChunks, byte[] destHash, byte[] srcHash, byte ttl, long timestamp, byte[] payload) {
         this.type = type;
@@ -38,38 +75,182 @@ public class MessagePacket {
         this.payload = payload;
     }
 
+    /**
+     * TLV拡張ヘッダーを1つ追加します（v2で送る場合のみ相手に届きます）。
+     * 受信側は知らない種類の拡張を長さだけ見て読み飛ばすので、古いノードとも共存できます。
+     */
+    public void addExtension(int extType, byte[] value) {
+        int entrySize = 1 + varintSize(value.length) + value.length;
+        int oldSize = extensions != null ? extensions.length : 0;
+        byte[] merged = new byte[oldSize + entrySize];
+        if (extensions != null) System.arraycopy(extensions, 0, merged, 0, oldSize);
+        ByteBuffer buffer = ByteBuffer.wrap(merged, oldSize, entrySize);
+        buffer.put((byte) extType);
+        putVarint(buffer, value.length);
+        buffer.put(value);
+        extensions = merged;
+    }
+
+    /**
+     * 指定した形式でこのパケットを表現できるかを返します。
+     * 旧形式は完全なIDが必要で、短縮形式はIDの短縮が許可されている必要があります。
+     */
+    public boolean canEncode(byte version) {
+        switch (version) {
+            case VERSION_LEGACY:
+                return destHash.length == HASH_SIZE && srcHash.length == HASH_SIZE;
+            case VERSION_COMPACT:
+                return compactIds;
+            case VERSION_EXTENDED:
+                return compactIds || (destHash.length == HASH_SIZE && srcHash.length == HASH_SIZE);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * エンコード後のフレームの長さ（ヘッダー + ペイロード）を返します。
+     */
+    public int getEncodedLength() {
+        return getEncodedLength(headerVersion);
+    }
+
+    public int getEncodedLength(byte version) {
+        return getHeaderSize(version, msgId, chunkIndex, totalChunks, compactIds,
+                extensions != null ? extensions.length : 0, payload.length) + payload.length;
+    }
+
     public byte[] toBytes() {
-        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
-        buffer.put(type);
-        buffer.putInt(msgId);
-        buffer.putShort(chunkIndex);
-        buffer.putShort(totalChunks);
-        buffer.put(destHash);
-        buffer.put(srcHash);
-        buffer.put(ttl);
-        buffer.putLong(timestamp);
-        buffer.putShort(payloadLength);
-        buffer.put(payload);
-        return buffer.array();
+        return toBytes(headerVersion);
+    }
+
+    public byte[] toBytes(byte version) {
+        byte[] bytes = new byte[getEncodedLength(version)];
+        encodeTo(ByteBuffer.wrap(bytes), version);
+        return bytes;
+    }
+
+    /**
+     * 呼び出し側が用意したバッファの現在位置にパケットを書き込みます。
+     * 新しい配列を確保しないため、バッファを使い回すことができます。
+     *
+     * @return 書き込んだバイト数
+     */
+    public int encodeTo(ByteBuffer dst) {
+        return encodeTo(dst, headerVersion);
+    }
+
+    public int encodeTo(ByteBuffer dst, byte version) {
+        return encodeTo(dst, version, type, msgId, chunkIndex, totalChunks, destHash, srcHash, compactIds, ttl, timestamp,
+                extensions, payload, 0, payload.length);
+    }
+
+    /**
+     * MessagePacketオブジェクトを作らずに、フィールドとペイロードの一部から直接フレームを書き込みます。
+     * 大きなメッセージを分割する際に、チャンク毎の配列コピーを省くために使います。
+     *
+     * @return 書き込んだバイト数
+     */
+    public static int encodeTo(ByteBuffer dst, byte version, byte type, int msgId, short chunkIndex, short totalChunks,
+                               byte[] destHash, byte[] srcHash, boolean compactIds, byte ttl, long timestamp,
+                               byte[] extensions, byte[] payload, int payloadOffset, int payloadLength) {
+        int start = dst.position();
+        if (version == VERSION_EXTENDED) {
+            boolean hasExtensions = extensions != null && extensions.length > 0;
+            int flags = (compactIds ? 0 : FLAG_FULL_IDS) | (hasExtensions ? FLAG_EXTENSIONS : 0);
+            int idSize = compactIds ? COMPACT_ID_SIZE : HASH_SIZE;
+            dst.put((byte) (VERSION_MARKER | VERSION_EXTENDED));
+            dst.put((byte) flags);
+            dst.put(type);
+            putVarint(dst, msgId);
+            putVarint(dst, chunkIndex & 0xFFFF);
+            putVarint(dst, totalChunks & 0xFFFF);
+            dst.put(destHash, 0, idSize);
+            dst.put(srcHash, 0, idSize);
+            dst.put(ttl);
+            dst.putLong(timestamp);
+            if (hasExtensions) {
+                putVarint(dst, extensions.length);
+                dst.put(extensions);
+            }
+            putVarint(dst, payloadLength);
+            dst.put(payload, payloadOffset, payloadLength);
+            return dst.position() - start;
+        }
+
+        int idSize;
+        if (version == VERSION_COMPACT) {
+            dst.put((byte) (VERSION_MARKER | VERSION_COMPACT));
+            idSize = COMPACT_ID_SIZE;
+        } else {
+            idSize = HASH_SIZE;
+        }
+        dst.put(type);
+        dst.putInt(msgId);
+        dst.putShort(chunkIndex);
+        dst.putShort(totalChunks);
+        dst.put(destHash, 0, idSize);
+        dst.put(srcHash, 0, idSize);
+        dst.put(ttl);
+        dst.putLong(timestamp);
+        dst.putShort((short) payloadLength);
+        dst.put(payload, payloadOffset, payloadLength);
+        return dst.position() - start;
+    }
+
+    /**
+     * 指定した形式でのヘッダーの長さを返します。
+     * v2では可変長整数を使うため、各フィールドの値によって長さが変わります。
+     */
+    public static int getHeaderSize(byte version, int msgId, short chunkIndex, short totalChunks,
+                                    boolean compactIds, int extensionsLength, int payloadLength) {
+        switch (version) {
+            case VERSION_COMPACT:
+                return COMPACT_HEADER_SIZE;
+            case VERSION_EXTENDED:
+                int idSize = compactIds ? COMPACT_ID_SIZE : HASH_SIZE;
+                int size = 3 + varintSize(msgId) + varintSize(chunkIndex & 0xFFFF) + varintSize(totalChunks & 0xFFFF)
+                        + idSize * 2 + 1 + 8 + varintSize(payloadLength);
+                if (extensionsLength > 0) size += varintSize(extensionsLength) + extensionsLength;
+                return size;
+            default:
+                return HEADER_SIZE;
+        }
+    }
+
+    /**
+     * フレームの先頭バイトからヘッダー形式を判定します。
+     * 旧形式ならVERSION_LEGACY、バージョン付きならそのバージョン番号を返します。
+     */
+    public static int getFrameVersion(byte firstByte) {
+        if ((firstByte & VERSION_MARKER) != VERSION_MARKER) return VERSION_LEGACY;
+        return firstByte & ~VERSION_MARKER & 0xFF;
+    }
+
+    /**
+     * 32ビット値を符号なしの可変長整数（LEB128、7ビットずつ）で書き込みます。
+     * 小さな値ほど短くなり、チャンク番号などの多くは1バイトで済みます。
+     */
+    static void putVarint(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
     }
 
     public static MessagePacket fromBytes(byte[] bytes) {
-        if (bytes.length < HEADER_SIZE) return null;
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        byte type = buffer.get();
-        int msgId = buffer.getInt();
-        short chunkIndex = buffer.getShort();
-        short totalChunks = buffer.getShort();
-        byte[] destHash = new byte[32];
-        buffer.get(destHash);
-        byte[] srcHash = new byte[32];
-        buffer.get(srcHash);
-        byte ttl = buffer.get();
-        long timestamp = buffer.getLong();
-        short payloadLength = buffer.getShort();
-        if (bytes.length < HEADER_SIZE + payloadLength) return null;
-        byte[] payload = new byte[payloadLength];
-        buffer.get(payload);
-        return new MessagePacket(type, msgId, chunkIndex, totalChunks, destHash, srcHash, ttl, timestamp, payload);
+        MessagePacketView view = new MessagePacketView();
+        if (!view.wrap(bytes)) return null;
+        return view.toPacket();
     }
 }
@@ -0,0 +1,393 @@
+package ocean.RedWhale;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 受信したフレームを、オブジェクトや配列を新しく作らずに読み取るための「フライウェイト」ビューです。
+ * ヘッダーの各フィールドは、包んだバッファから必要になった時に直接読み出します。
+ * 1つのインスタンスを使い回すことで、パケット毎のメモリ確保（とGC）をなくします。
+ *
+ * 旧形式（v0）・短縮形式（v1）・拡張形式（v2）のすべてを1つのパーサーで扱います。
+ * v2の可変長整数はwrap時に1度だけ読み、TLV拡張ヘッダーは長さを見て丸ごと読み飛ばします。
+ *
+ * ※スレッドセーフではありません。スレッド毎、またはルーター毎に1つ用意してください。
+ */
+public final class MessagePacketView {
+    // ヒープ上の配列を包んでいる場合はこちらを直接読みます
+    private byte[] array;
+    private int arrayOffset;
+    // 配列を持たない（ダイレクト）バッファの場合はこちらを絶対位置で読みます
+    private ByteBuffer buffer;
+    private int bufferOffset;
+    private int length;
+
+    // wrap時にヘッダーから読み出す値と、各フィールドの位置
+    private int version;
+    private int flags;
+    private int idSize;
+    private byte type;
+    private int msgId;
+    private short chunkIndex;
+    private short totalChunks;
+    private int offsetDestHash;
+    private int offsetSrcHash;
+    private int offsetTtl;
+    private int offsetTimestamp;
+    private int offsetExtensions;
+    private int extensionsLength;
+    private int payloadLength;
+    private int headerSize;
+
+    // findExtensionで見つけた拡張ヘッダーの値の位置
+    private int extensionValueOffset;
+    private int extensionValueLength;
+
+    // 可変長整数の読み取り位置（解析中のみ使用）
+    private int cursor;
+
+    /**
+     * バイト配列全体をフレームとして包みます。
+     *
+     * @return フレームとして正しい長さを持っていればtrue
+     */
+    public boolean wrap(byte[] frame) {
+        return wrap(frame, 0, frame != null ? frame.length : 0);
+    }
+
+    /**
+     * バイト配列の一部をフレームとして包みます。
+     */
+    public boolean wrap(byte[] frame, int offset, int length) {
+        this.array = frame;
+        this.arrayOffset = offset;
+        this.buffer = null;
+        this.length = length;
+        return parseHeader();
+    }
+
+    /**
+     * ByteBufferの position から limit までをフレームとして包みます。
+     * バッファの position や limit は変更しません。
+     */
+    public boolean wrap(ByteBuffer frame) {
+        if (frame.hasArray()) {
+            return wrap(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        }
+        this.array = null;
+        this.buffer = frame;
+        this.bufferOffset = frame.position();
+        this.length = frame.remaining();
+        return parseHeader();
+    }
+
+    /**
+     * ヘッダー形式を判定して各フィールドの位置を求め、
+     * 宣言されたペイロード長がフレームに収まっているかを確認します。
+     */
+    private boolean parseHeader() {
+        if ((array == null && buffer == null) || length < 1) return false;
+        version = MessagePacket.getFrameVersion(getByte(0));
+        if (version == MessagePacket.VERSION_EXTENDED) {
+            return parseExtendedHeader();
+        }
+
+        int base;
+        if (version == MessagePacket.VERSION_LEGACY) {
+            base = 0;
+            idSize = MessagePacket.HASH_SIZE;
+        } else if (version == MessagePacket.VERSION_COMPACT) {
+            base = 1;
+            idSize = MessagePacket.COMPACT_ID_SIZE;
+        } else {
+            return false; // 未知の形式
+        }
+        flags = idSize == MessagePacket.HASH_SIZE ? MessagePacket.FLAG_FULL_IDS : 0;
+        offsetDestHash = base + MessagePacket.OFFSET_DEST_HASH;
+        offsetSrcHash = offsetDestHash + idSize;
+        offsetTtl = offsetSrcHash + idSize;
+        offsetTimestamp = offsetTtl + 1;
+        offsetExtensions = 0;
+        extensionsLength = 0;
+        headerSize = offsetTimestamp + 8 + 2;
+        if (length < headerSize) return false;
+        type = getByte(base + MessagePacket.OFFSET_TYPE);
+        msgId = getInt(base + MessagePacket.OFFSET_MSG_ID);
+        chunkIndex = getShort(base + MessagePacket.OFFSET_CHUNK_INDEX);
+        totalChunks = getShort(base + MessagePacket.OFFSET_TOTAL_CHUNKS);
+        payloadLength = getShort(headerSize - 2) & 0xFFFF;
+        return headerSize + payloadLength <= length;
+    }
+
+    private boolean parseExtendedHeader() {
+        if (length < 3) return false;
+        flags = getByte(1) & 0xFF;
+        type = getByte(2);
+        idSize = (flags & MessagePacket.FLAG_FULL_IDS) != 0 ? MessagePacket.HASH_SIZE : MessagePacket.COMPACT_ID_SIZE;
+        cursor = 3;
+        long value;
+        if ((value = readVarint()) < 0) return false;
+        msgId = (int) value;
+        if ((value = readVarint()) < 0 || value > 0xFFFF) return false;
+        chunkIndex = (short) value;
+        if ((value = readVarint()) < 0 || value > 0xFFFF) return false;
+        totalChunks = (short) value;
+        offsetDestHash = cursor;
+        offsetSrcHash = offsetDestHash + idSize;
+        offsetTtl = offsetSrcHash + idSize;
+        offsetTimestamp = offsetTtl + 1;
+        cursor = offsetTimestamp + 8;
+        if (cursor > length) return false;
+        if ((flags & MessagePacket.FLAG_EXTENSIONS) != 0) {
+            // 長さは int に変換する前に、残りのバイト数に収まるかを確認します（負の長さにしないため）
+            if ((value = readVarint()) < 0 || value > length - cursor) return false;
+            offsetExtensions = cursor;
+            extensionsLength = (int) value;
+            // 拡張ヘッダーの中身はここでは読まず、ブロックごと読み飛ばします
+            cursor += extensionsLength;
+        } else {
+            offsetExtensions = 0;
+            extensionsLength = 0;
+        }
+        if ((value = readVarint()) < 0 || value > length - cursor) return false;
+        payloadLength = (int) value;
+        headerSize = cursor;
+        return extensionsLength >= 0 && payloadLength >= 0 && headerSize + payloadLength <= length;
+    }
+
+    /**
+     * cursor の位置から可変長整数（最大5バイト）を読み、cursor を進めます。
+     *
+     * @return 読み取った値。フレームが途中で切れているか不正な場合は -1
+     */
+    private long readVarint() {
+        long result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (cursor >= length) return -1;
+            int b = getByte(cursor++) & 0xFF;
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result & 0xFFFFFFFFL;
+        }
+        return -1;
+    }
+
+    /**
+     * ヘッダー形式（MessagePacket.VERSION_*）を返します。
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * v2ヘッダーのフラグ（MessagePacket.FLAG_*）を返します。
+     * v0/v1では、IDの長さに応じてFLAG_FULL_IDSのみを返します。
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * フレームに含まれるノードIDの長さ（32または8バイト）を返します。
+     */
+    public int getIdSize() {
+        return idSize;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public int getMsgId() {
+        return msgId;
+    }
+
+    public short getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public short getTotalChunks() {
+        return totalChunks;
+    }
+
+    public byte getTtl() {
+        return getByte(offsetTtl);
+    }
+
+    public long getTimestamp() {
+        return getLong(offsetTimestamp);
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * ペイロードのフレーム先頭からの位置を返します。
+     */
+    public int getPayloadOffset() {
+        return headerSize;
+    }
+
+    /**
+     * フレームの長さ（ヘッダー + ペイロード）を返します。
+     */
+    public int getFrameLength() {
+        return headerSize + payloadLength;
+    }
+
+    /**
+     * 指定した種類のTLV拡張ヘッダーを探します。
+     * 見つかった場合は getExtensionOffset / getExtensionLength で値の位置を取得できます。
+     * 知らない種類の拡張は、長さだけを見て読み飛ばします。
+     */
+    public boolean findExtension(int extType) {
+        if (extensionsLength == 0) return false;
+        int end = offsetExtensions + extensionsLength;
+        cursor = offsetExtensions;
+        while (cursor < end) {
+            int entryType = getByte(cursor++) & 0xFF;
+            long entryLength = readVarint();
+            if (entryLength < 0 || cursor + entryLength > end) return false;
+            if (entryType == extType) {
+                extensionValueOffset = cursor;
+                extensionValueLength = (int) entryLength;
+                return true;
+            }
+            cursor += (int) entryLength;
+        }
+        return false;
+    }
+
+    public int getExtensionOffset() {
+        return extensionValueOffset;
+    }
+
+    public int getExtensionLength() {
+        return extensionValueLength;
+    }
+
+    /**
+     * フレーム先頭からの位置を指定して1バイト読み出します（拡張ヘッダーの値の読み取りなどに使います）。
+     */
+    public byte getByteAt(int offset) {
+        return getByte(offset);
+    }
+
+    /**
+     * 宛先IDが指定したハッシュと一致するかを、コピーせずに比較します。
+     * 短縮IDのフレームでは、ハッシュの先頭8バイトだけを比較します。
+     */
+    public boolean isDestinedTo(byte[] hash) {
+        return regionEquals(offsetDestHash, hash);
+    }
+
+    /**
+     * 送信元IDが指定したハッシュと一致するかを、コピーせずに比較します。
+     * 短縮IDのフレームでは、ハッシュの先頭8バイトだけを比較します。
+     */
+    public boolean isSentBy(byte[] hash) {
+        return regionEquals(offsetSrcHash, hash);
+    }
+
+    /**
+     * 送信元IDの先頭8バイトをlong値で返します（IdentityManager.getCompactIdと同じ値）。
+     * 完全なIDでも短縮IDでも同じ値になるため、重複排除のキーに使えます。
+     */
+    public long getSrcCompactId() {
+        return getLong(offsetSrcHash);
+    }
+
+    /**
+     * 宛先IDの先頭8バイトをlong値で返します（グループの宛先の判定に使います）。
+     */
+    public long getDestCompactId() {
+        return getLong(offsetDestHash);
+    }
+
+    /**
+     * 元のフレーム上のTTLバイトだけを書き換えます。
+     * 中継時に再エンコードせず、受信した配列をそのまま転送するために使います。
+     */
+    public void patchTtl(byte ttl) {
+        if (array != null) {
+            array[arrayOffset + offsetTtl] = ttl;
+        } else {
+            buffer.put(bufferOffset + offsetTtl, ttl);
+        }
+    }
+
+    public void copyDestHash(byte[] dst, int dstOffset) {
+        copyBytes(offsetDestHash, dst, dstOffset, idSize);
+    }
+
+    public void copySrcHash(byte[] dst, int dstOffset) {
+        copyBytes(offsetSrcHash, dst, dstOffset, idSize);
+    }
+
+    public void copyPayload(byte[] dst, int dstOffset) {
+        copyBytes(headerSize, dst, dstOffset, payloadLength);
+    }
+
+    /**
+     * フレーム先頭からの位置と長さを指定して、任意の範囲をコピーします。
+     */
+    public void copyBytes(int offset, byte[] dst, int dstOffset, int count) {
+        if (array != null) {
+            System.arraycopy(array, arrayOffset + offset, dst, dstOffset, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset + i] = buffer.get(bufferOffset + offset + i);
+            }
+        }
+    }
+
+    /**
+     * ビューの内容をMessagePacketとして取り出します（配列のコピーが発生します）。
+     * 短縮IDのフレームでは、destHash・srcHashは8バイトの配列になります。
+     * 受信メッセージとして保持する必要がある場合のみ使用してください。
+     */
+    public MessagePacket toPacket() {
+        byte[] destHash = new byte[idSize];
+        byte[] srcHash = new byte[idSize];
+        byte[] payload = new byte[payloadLength];
+        copyDestHash(destHash, 0);
+        copySrcHash(srcHash, 0);
+        copyPayload(payload, 0);
+        MessagePacket packet = new MessagePacket(type, msgId, chunkIndex, totalChunks,
+                destHash, srcHash, getTtl(), getTimestamp(), payload);
+        packet.headerVersion = (byte) version;
+        packet.compactIds = idSize == MessagePacket.COMPACT_ID_SIZE;
+        if (extensionsLength > 0) {
+            packet.extensions = new byte[extensionsLength];
+            copyBytes(offsetExtensions, packet.extensions, 0, extensionsLength);
+        }
+        return packet;
+    }
+
+    private boolean regionEquals(int offset, byte[] hash) {
+        if (hash == null || hash.length < idSize) return false;
+        for (int i = 0; i < idSize; i++) {
+            if (getByte(offset + i) != hash[i]) return false;
+        }
+        return true;
+    }
+
+    private byte getByte(int offset) {
+        return array != null ? array[arrayOffset + offset] : buffer.get(bufferOffset + offset);
+    }
+
+    // ByteBufferと同じビッグエンディアンで読み出します
+    private short getShort(int offset) {
+        return (short) (((getByte(offset) & 0xFF) << 8) | (getByte(offset + 1) & 0xFF));
+    }
+
+    private int getInt(int offset) {
+        return ((getByte(offset) & 0xFF) << 24)
+                | ((getByte(offset + 1) & 0xFF) << 16)
+                | ((getByte(offset + 2) & 0xFF) << 8)
+                | (getByte(offset + 3) & 0xFF);
+    }
+
+    private long getLong(int offset) {
+        return ((long) getInt(offset) << 32) | (getInt(offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -1,41 +1,279 @@
 package ocean.RedWhale;
 
+import android.os.SystemClock;
 import android.util.Log;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * チャンクの分割・組み立てと、他ノード宛てフレームの転送判定を行うクラスです。
+ *
+ * ルーティングの状態（重複排除・組み立て中のメッセージ）は専用のスレッド（イベントループ）だけが触ります。
+ * GATTのコールバックは submitFrame() で受信フレームをロックフリーのキューに入れてすぐに戻るため、
+ * Bluetoothのバインダースレッドを塞がず、状態の競合も起きません。
+ * リスナーの各メソッドもこのイベントループ上で呼ばれます。
+ *
+ * 参加しているグループ宛てのフレームは、自分宛てとして受け取ると同時に、他のメンバーのために転送も続けます。
+ * 未参加のグループへの参加（joinGroup）は、リスナーがメッセージを復号して署名を確認した後に行います。
+ */
 public class MessageRouter {
     private static final String TAG = "MessageRouter";
     // MTU is max 517, so 400 is safe
-    private static final int MAX_PAYLOAD_SIZE = 400;
+    static final int MAX_PAYLOAD_SIZE = 400;
 
-    private final Map<Integer, List<MessagePacket>> incomingChunks = new HashMap<>();
-    private final Set<Integer> processedMessageIds = new HashSet<>();
-    private byte[] localAddressHash;
+    // 重複排除用のIDを覚えておく時間と、1世代あたりの最大件数
+    private static final long DEDUP_WINDOW_MS = 10 * 60 * 1000;
+    private static final int DEDUP_MAX_ENTRIES = 4096;
+    // メッセージ全体（受信完了）を表すキーに使うチャンク番号。16ビットのチャンク番号の範囲外なので、実際のチャンクとは重なりません
+    private static final int MESSAGE_KEY_INDEX = 0x10000;
+
+    // 組み立ての上限：1メッセージあたりのチャンク数、組み立て中の合計バイト数、未完成メッセージの保持時間
+    private static final int MAX_CHUNKS_PER_MESSAGE = 256;
+    // 届いた順に受け渡す（全体を溜めない）メッセージは、保留中のチャンクしか保持しないため上限を大きくできます
+    static final int MAX_CHUNKS_PER_STREAM = 4096;
+    // 同時に届いた順に受け渡すメッセージ数の上限（受け取り側は復号した平文をメッセージ全体分保持します）
+    private static final int MAX_CONCURRENT_STREAMS = 8;
+    private static final long REASSEMBLY_BUDGET_BYTES = 1024 * 1024;
+    private static final long REASSEMBLY_TIMEOUT_MS = 60 * 1000;
+    // イベントループが処理しきれずに溜まった受信フレームの上限。超えた分は捨てます
+    private static final int MAX_PENDING_FRAMES = 1024;
+    // 参加できるグループ数の上限
+    private static final int MAX_GROUPS = 256;
+    // msgIdは送信元毎の連番で、v2ヘッダーの可変長整数が3バイトに収まる21ビットの範囲で一巡させます
+    static final int MSG_ID_MASK = (1 << 21) - 1;
+    // 再起動の直後に、前回送った番号を重複排除の期間内に使い直さないよう、開始値は時刻（1秒あたり16個分）から決めます
+    private static final int MSG_IDS_PER_SECOND = 16;
+
+    private final Reassembler reassembler = new Reassembler(MAX_PAYLOAD_SIZE, MAX_CHUNKS_PER_MESSAGE,
+            MAX_CHUNKS_PER_STREAM, MAX_CONCURRENT_STREAMS, REASSEMBLY_BUDGET_BYTES, REASSEMBLY_TIMEOUT_MS,
+            new Reassembler.StreamOpener() {
+                @Override
+                public ChunkSink open(byte[] srcHash, int totalChunks, byte firstByte) {
+                    return openStream(srcHash, totalChunks, firstByte);
+                }
+
+                @Override
+                public void onAbandoned(long key, long nowMillis) {
+                    // 諦めたメッセージの残りのチャンクで、全体の組み立てを始め直さないようにします
+                    processedMessageIds.add(key, nowMillis);
+                }
+            });
+    private final DuplicateFilter processedMessageIds = new DuplicateFilter(DEDUP_WINDOW_MS, DEDUP_MAX_ENTRIES);
+    // 受信フレームの解析に使い回すビュー（パケット毎の割り当てを避けます）
+    private final MessagePacketView view = new MessagePacketView();
+    private volatile byte[] localAddressHash;
+    // 参加しているグループIDの先頭8バイト（イベントループ上でのみ使用）
+    private final LongHashSet groups = new LongHashSet(MAX_GROUPS);
+
+    // イベントループへの入力。受信フレームと、ルーティング状態を触るその他の処理を別々に受け付けます
+    private final ConcurrentLinkedQueue<byte[]> inbox = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingFrames = new AtomicInteger();
+    private final AtomicInteger nextMsgId = new AtomicInteger(initialMsgId(System.currentTimeMillis()));
+    private volatile Thread loopThread;
+    private volatile boolean running;
+    // ループが待機中の時だけunparkすれば済むように、待機状態を公開します
+    private volatile boolean parked;
 
     public void setLocalAddressHash(byte[] hash) {
         this.localAddressHash = hash;
     }
 
     public interface MessageListener {
-        void onMessageReceived(String message, byte[] senderHash);
-        void onRelayRequest(MessagePacket packet);
+        /**
+         * 自分宛てのメッセージが揃った時に呼ばれます。
+         * message は組み立てに使った配列そのもので、有効な長さは length です（呼び出し後はリスナーが所有します）。
+         * senderHash は短縮形式で届いた場合、8バイトの短縮IDになります。
+         * イベントループ上で呼ばれるため、待たずに戻ってください。
+         *
+         * @return 受け取った場合はtrue。混雑などで受け取れなかった場合はfalse（同じメッセージが再送されれば、もう1度渡します）
+         */
+        boolean onMessageReceived(byte[] message, int length, byte[] senderHash);
+        /**
+         * 自分宛ての受信確認（ACK）が届いた時に呼ばれます。ACKは組み立てを経由しません。
+         */
+        void onAckReceived(byte[] payload, byte[] senderHash);
+        /**
+         * 他のノード宛てのフレームを転送するよう要求します。
+         * frame は受信した配列そのもので、TTLのみ書き換え済みです。
+         */
+        void onRelayRequest(byte[] frame, int msgId);
+        /**
+         * 複数チャンクからなる自分宛てメッセージの、最初のチャンク（番号0）が最初に届いた時に呼ばれます。
+         * 受け取り口を返すと、そのメッセージは全体を組み立てずに、チャンク番号の順に1つずつ渡されます
+         * （onMessageReceived は呼ばれません）。nullを返すと、従来どおり全体を組み立ててから渡します。
+         *
+         * @param firstByte ペイロードの先頭1バイト（暗号文の種類の判定に使えます）
+         */
+        ChunkSink onStreamStarted(byte[] senderHash, int totalChunks, byte firstByte);
+        /**
+         * 参加していないグループ宛てのグループメッセージの、最初のチャンク（番号0）を受信した時に呼ばれます。
+         * trueを返すと、このメッセージだけを自分宛てとしても受け取ります（グループには参加しません）。
+         * この時点では署名も暗号文も確認していないため、参加や保存は復号できた後に行ってください。
+         *
+         * @param firstChunk 最初のチャンクのペイロード（暗号文の先頭。メンバーの一覧を含みます）
+         */
+        boolean onGroupInvitation(byte[] groupHash, byte[] senderHash, byte[] firstChunk);
+    }
+
+    /**
+     * チャンク番号の順にチャンクを受け取る受け口です。イベントループ上で呼ばれます。
+     */
+    public interface ChunkSink {
+        /**
+         * 次のチャンクを受け取ります。配列の所有権はリスナーに移ります。
+         *
+         * @return 以降のチャンクも受け取る場合はtrue。falseを返すと残りのチャンクは捨てられます
+         */
+        boolean onChunk(byte[] chunk, boolean last);
+
+        /**
+         * 最後のチャンクが届く前に、期限切れなどで受け渡しを打ち切った時に呼ばれます。
+         * 受け取り側は途中までの状態を破棄してください（onChunk が false を返した場合は呼ばれません）。
+         */
+        void onAbort();
     }
 
-    private MessageListener listener;
+    private volatile MessageListener listener;
 
     public void setMessageListener(MessageListener listener) {
         this.listener = listener;
     }
 
+    /**
+     * イベントループを開始します。既に動いている場合は何もしません。
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        Thread thread = new Thread(this::runLoop, "MessageRouter");
+        thread.setDaemon(true);
+        loopThread = thread;
+        thread.start();
+    }
+
+    /**
+     * イベントループを停止します。まだ処理していない受信フレームは捨てます。
+     */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        Thread thread = loopThread;
+        loopThread = null;
+        LockSupport.unpark(thread);
+        inbox.clear();
+        pendingFrames.set(0);
+    }
+
+    /**
+     * 受信したフレームをイベントループに渡します。どのスレッドからでも呼べ、すぐに戻ります。
+     * フレームの配列はこの後ルーターが所有する（TTLを書き換える）ため、呼び出し側は再利用しないでください。
+     */
+    public void submitFrame(byte[] frame) {
+        if (frame == null || !running) return;
+        if (pendingFrames.incrementAndGet() > MAX_PENDING_FRAMES) {
+            // 後段が詰まっている間は新しいフレームを捨てます（送信元の再送や他の経路に任せます）
+            pendingFrames.decrementAndGet();
+            return;
+        }
+        inbox.offer(frame);
+        wakeUp();
+    }
+
+    /**
+     * ルーティング状態を触る処理を、イベントループ上で実行するよう依頼します。
+     */
+    private void post(Runnable task) {
+        tasks.offer(task);
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        if (parked) LockSupport.unpark(loopThread);
+    }
+
+    private void runLoop() {
+        while (running) {
+            boolean didWork = false;
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                runSafely(task, null);
+                didWork = true;
+            }
+            byte[] frame;
+            while ((frame = inbox.poll()) != null) {
+                pendingFrames.decrementAndGet();
+                runSafely(null, frame);
+                didWork = true;
+            }
+            if (didWork) continue;
+
+            // チャンクが届かなくなったメッセージも、期限が来たら破棄して予算と受け取り口を解放します
+            long now = SystemClock.elapsedRealtime();
+            long expiry = reassembler.nextExpiry();
+            if (expiry <= now) {
+                runSafely(() -> reassembler.expire(now), null);
+                continue;
+            }
+
+            parked = true;
+            // parkedを立てた後にもう一度確認し、その間に入ったフレームの取りこぼしを防ぎます
+            if (inbox.isEmpty() && tasks.isEmpty() && running) {
+                if (expiry == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(expiry - now));
+                }
+            }
+            parked = false;
+        }
+    }
+
+    /**
+     * グループに参加し、そのグループ宛てのフレームを自分宛てとしても受け取るようにします。
+     */
+    public void joinGroup(byte[] groupHash) {
+        long groupId = IdentityManager.getCompactId(groupHash);
+        if (running) {
+            post(() -> groups.add(groupId));
+        } else {
+            groups.add(groupId);
+        }
+    }
+
+    private ChunkSink openStream(byte[] senderHash, int totalChunks, byte firstByte) {
+        MessageListener listener = this.listener;
+        return listener != null ? listener.onStreamStarted(senderHash, totalChunks, firstByte) : null;
+    }
+
+    private void runSafely(Runnable task, byte[] frame) {
+        try {
+            if (task != null) {
+                task.run();
+            } else {
+                handleIncomingPacket(frame);
+            }
+        } catch (RuntimeException e) {
+            // 1つの壊れたフレームやリスナーの例外で、ループ全体が止まらないようにします
+            Log.e(TAG, "ルーティング中にエラーが発生しました", e);
+        }
+    }
+
     public List<MessagePacket> preparePackets(String message, byte[] destHash, byte[] srcHash) {
-        byte[] data = message.getBytes();
-        int msgId = new Random().nextInt();
+        return preparePackets(message.getBytes(), destHash, srcHash, false);
+    }
+
+    /**
+     * メッセージ（暗号化済みのバイナリ）をチャンクに分割します。
+     *
+     * @param compactIds ノードIDを8バイトに短縮して送ってよい場合はtrue
+     */
+    public List<MessagePacket> preparePackets(byte[] data, byte[] destHash, byte[] srcHash, boolean compactIds) {
+        int msgId = nextMsgId();
         short totalChunks = (short) Math.ceil((double) data.length / MAX_PAYLOAD_SIZE);
         List<MessagePacket> packets = new ArrayList<>();
         byte initialTtl = 10;
@@ -46,55 +284,152 @@ public class MessageRouter {
             int length = Math.min(MAX_PAYLOAD_SIZE, data.length - start);
             byte[] payload = new byte[length];
             System.arraycopy(data, start, payload, 0, length);
-            packets.add(new MessagePacket(MessagePacket.TYPE_MSG, msgId, i, totalChunks, destHash, srcHash, initialTtl, timestamp, payload));
+            MessagePacket packet = new MessagePacket(MessagePacket.TYPE_MSG, msgId, i, totalChunks, destHash, srcHash, initialTtl, timestamp, payload);
+            packet.compactIds = compactIds;
+            packets.add(packet);
+        }
+        // 自分が送ったメッセージが中継されて戻ってきても、受信も再転送もしないように記憶します
+        long srcId = IdentityManager.getCompactId(srcHash);
+        Runnable remember = () -> {
+            long now = SystemClock.elapsedRealtime();
+            processedMessageIds.add(messageKey(srcId, msgId), now);
+            for (int i = 0; i < totalChunks; i++) {
+                processedMessageIds.add(packetKey(srcId, msgId, i), now);
+            }
+        };
+        if (running) {
+            post(remember);
+        } else {
+            remember.run();
         }
-        processedMessageIds.add(msgId);
         return packets;
     }
 
-    public void handleIncomingPacket(byte[] bytes) {
-        MessagePacket packet = MessagePacket.fromBytes(bytes);
-        if (packet == null) return;
-        if (packet.ttl <= 0) return;
+    /**
+     * 自分が送るパケットの次のmsgIdを返します。
+     * 同じmsgIdを重複排除の期間内に使い直すと中継ノードで捨てられるため、ACKなどもここから取ります。
+     */
+    public int nextMsgId() {
+        return nextMsgId.getAndIncrement() & MSG_ID_MASK;
+    }
 
-        if (localAddressHash != null && !java.util.Arrays.equals(packet.destHash, localAddressHash)) {
-            int uniqueChunkId = packet.msgId + packet.chunkIndex;
-            if (processedMessageIds.contains(uniqueChunkId)) return;
-            processedMessageIds.add(uniqueChunkId);
-            packet.ttl--;
-            if (listener != null) listener.onRelayRequest(packet);
-            return;
-        }
+    static int initialMsgId(long nowMillis) {
+        return (int) (nowMillis / 1000 * MSG_IDS_PER_SECOND) & MSG_ID_MASK;
+    }
 
-        if (processedMessageIds.contains(packet.msgId)) return;
+    /**
+     * チャンク1つ分の重複排除に使う64ビットのキーを作ります。
+     * 送信元ID（8バイトすべて）、msgId、チャンク番号（符号なし16ビット）からハッシュで作るため、
+     * 先頭が同じ送信元どうしや、「メッセージNのチャンク1」と「メッセージN+1のチャンク0」が同じキーになることはありません
+     * （偶然一致する確率は約2^-64です）。
+     */
+    static long packetKey(long srcCompactId, int msgId, int chunkIndex) {
+        return dedupKey(srcCompactId, msgId, chunkIndex & 0xFFFF);
+    }
 
-        if (!incomingChunks.containsKey(packet.msgId)) {
-            incomingChunks.put(packet.msgId, new ArrayList<>());
-        }
-        List<MessagePacket> chunks = incomingChunks.get(packet.msgId);
-        for (MessagePacket p : chunks) {
-            if (p.chunkIndex == packet.chunkIndex) return;
+    /**
+     * メッセージ全体（受信完了）を表す重複排除のキーを作ります。どのチャンクのキーとも重なりません。
+     */
+    static long messageKey(long srcCompactId, int msgId) {
+        return dedupKey(srcCompactId, msgId, MESSAGE_KEY_INDEX);
+    }
+
+    private static long dedupKey(long srcCompactId, int msgId, int index) {
+        // msgId（32ビット）と番号（17ビット）は重ならないように詰め、送信元IDを混ぜた値とまとめてもう1度混ぜます
+        long tail = ((msgId & 0xFFFFFFFFL) << 17) | index;
+        return mix64(mix64(srcCompactId) ^ tail);
+    }
+
+    // 64ビット値の全ビットを混ぜます（MurmurHash3の最終ミキサー。全単射です）
+    private static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53a7ed5L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * 受信したフレームを処理します。
+     * ヘッダーの確認と転送判定はビュー上で行い、自分宛てのチャンクだけをコピーして保持します。
+     * イベントループ（ループが動いていない場合は呼び出し元の1つのスレッド）からのみ呼んでください。
+     */
+    void handleIncomingPacket(byte[] bytes) {
+        if (!view.wrap(bytes)) return;
+        byte ttl = view.getTtl();
+        if (ttl <= 0) return;
+        int msgId = view.getMsgId();
+        short chunkIndex = view.getChunkIndex();
+        long srcId = view.getSrcCompactId();
+        long now = SystemClock.elapsedRealtime();
+
+        byte[] localAddressHash = this.localAddressHash;
+        MessageListener listener = this.listener;
+        if (localAddressHash != null && !view.isDestinedTo(localAddressHash)) {
+            if (!processedMessageIds.addIfAbsent(packetKey(srcId, msgId, chunkIndex), now)) return;
+            // 参加しているグループ宛てなら、転送する前に自分宛てとしても受け取ります（ペイロードはここでコピーされます）
+            if (isGroupMember(chunkIndex, messageKey(srcId, msgId), listener)) {
+                acceptLocal(msgId, srcId, now, listener);
+            }
+            // 中継の高速パス：TTLの1バイトだけを書き換えて、同じ配列をそのまま転送します
+            view.patchTtl((byte) (ttl - 1));
+            if (listener != null) listener.onRelayRequest(bytes, msgId);
+            return;
         }
-        chunks.add(packet);
+        acceptLocal(msgId, srcId, now, listener);
+    }
 
-        if (chunks.size() == packet.totalChunks) {
-            byte[] fullData = reassemble(chunks, packet.totalChunks);
-            incomingChunks.remove(packet.msgId);
-            processedMessageIds.add(packet.msgId);
-            if (listener != null) listener.onMessageReceived(new String(fullData), packet.srcHash);
+    /**
+     * 他のノード宛てのフレームを、自分宛てとしても受け取るかを判定します。
+     * 参加しているグループ宛てなら受け取ります。未参加のグループのメッセージは、最初のチャンクにある
+     * メンバーの一覧に自分が含まれている場合だけ、そのメッセージ（残りのチャンクを含む）に限って受け取ります。
+     */
+    private boolean isGroupMember(short chunkIndex, long messageKey, MessageListener listener) {
+        long destId = view.getDestCompactId();
+        if (groups.contains(destId)) return true;
+        // 最初のチャンクで受け取ると決めたメッセージの続き
+        if (reassembler.isPending(messageKey)) return true;
+        if (chunkIndex != 0 || listener == null || view.getType() != MessagePacket.TYPE_MSG
+                || view.getPayloadLength() == 0
+                || view.getByteAt(view.getPayloadOffset()) != GroupCipher.ENVELOPE_GROUP) {
+            return false;
         }
+        byte[] groupHash = new byte[view.getIdSize()];
+        view.copyDestHash(groupHash, 0);
+        byte[] srcHash = new byte[view.getIdSize()];
+        view.copySrcHash(srcHash, 0);
+        byte[] payload = new byte[view.getPayloadLength()];
+        view.copyPayload(payload, 0);
+        return listener.onGroupInvitation(groupHash, srcHash, payload);
     }
 
-    private byte[] reassemble(List<MessagePacket> chunks, short total) {
-        chunks.sort((a, b) -> a.chunkIndex - b.chunkIndex);
-        int totalSize = 0;
-        for (MessagePacket p : chunks) totalSize += p.payloadLength;
-        byte[] result = new byte[totalSize];
-        int currentPos = 0;
-        for (MessagePacket p : chunks) {
-            System.arraycopy(p.payload, 0, result, currentPos, p.payloadLength);
-            currentPos += p.payloadLength;
+    /**
+     * 自分宛て（または参加しているグループ宛て）のフレームを受け取ります。
+     */
+    private void acceptLocal(int msgId, long srcId, long now, MessageListener listener) {
+        long messageKey = messageKey(srcId, msgId);
+        if (processedMessageIds.contains(messageKey, now)) return;
+
+        if (view.getType() == MessagePacket.TYPE_ACK) {
+            processedMessageIds.add(messageKey, now);
+            if (listener != null) {
+                byte[] payload = new byte[view.getPayloadLength()];
+                view.copyPayload(payload, 0);
+                byte[] srcHash = new byte[view.getIdSize()];
+                view.copySrcHash(srcHash, 0);
+                listener.onAckReceived(payload, srcHash);
+            }
+            return;
+        }
+
+        // チャンクはビューから組み立て用の領域へ直接コピーされます（順番に受け渡すメッセージはその場で渡されます）
+        Reassembler.Message message = reassembler.accept(messageKey, view, now);
+        if (message == null) return;
+        if (listener != null && !message.isStreamed()
+                && !listener.onMessageReceived(message.getData(), message.getLength(), message.getSrcHash())) {
+            return; // 受け取れなかったメッセージは記憶せず、再送を受け付けます
         }
-        return result;
+        processedMessageIds.add(messageKey, now);
     }
 }
@@ -0,0 +1,69 @@
+package ocean.RedWhale;
+
+/**
+ * メッセージ検索の結果1件分を表すクラスです。
+ * 見つかったメッセージと、それがどの会話（相手）のものかをまとめて保持します。
+ */
+public class MessageSearchResult {
+    private long messageId;       // データベース上のメッセージのID（次のページを読む位置にも使います）
+    private String message;       // メッセージの本文
+    private long timestamp;       // 送受信した時刻（ミリ秒）
+    private boolean isSentByUser; // 自分が送信したメッセージならtrue
+    private String peerAddress;   // 会話の相手のアドレス（グループの会話ではグループID）
+    private String peerName;      // 会話の相手の表示名
+
+    /**
+     * コンストラクタ。検索結果のデータをセットします。
+     */
+    public MessageSearchResult(long messageId, String message, long timestamp, boolean isSentByUser,
+                               String peerAddress, String peerName) {
+        this.messageId = messageId;
+        this.message = message;
+        this.timestamp = timestamp;
+        this.isSentByUser = isSentByUser;
+        this.peerAddress = peerAddress;
+        this.peerName = peerName;
+    }
+
+    /**
+     * @return メッセージのIDを返します
+     */
+    public long getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return メッセージの本文を返します
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return メッセージの時刻を返します
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return 自分の送信かどうかを返します
+     */
+    public boolean isSentByUser() {
+        return isSentByUser;
+    }
+
+    /**
+     * @return 会話の相手のアドレスを返します
+     */
+    public String getPeerAddress() {
+        return peerAddress;
+    }
+
+    /**
+     * @return 会話の相手の表示名を返します
+     */
+    public String getPeerName() {
+        return peerName;
+    }
+}
@@ -0,0 +1,103 @@
+package ocean.RedWhale;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * メッセージ履歴の保存を、専用の1スレッドでまとめて行うクラスです。
+ *
+ * 呼び出し側はキューに入れるだけで、すぐに戻ります。書き込み用のスレッドは最初の1件が届いてから
+ * BATCH_WINDOW_MS だけ待ち、その間に溜まった分を1つのトランザクションで保存します。
+ * 1行ごとにトランザクション（とディスクへの同期）を行う場合に比べ、受信が集中した時も書き込みが追いつきます。
+ * 会話の既読も同じキューを通すため、先に保存を頼んだメッセージより前に既読が書き込まれて
+ * 未読数が残ってしまうことはありません。
+ */
+final class MessageWriter {
+    private static final String TAG = "MessageWriter";
+
+    // 最初の1件から、まとめて書き込むまでに待つ時間と、1回のトランザクションで書き込む最大件数
+    private static final long BATCH_WINDOW_MS = 5;
+    private static final int MAX_BATCH = 512;
+
+    /**
+     * 保存を待っている1件のメッセージ（または会話の既読）です。
+     */
+    static final class Pending {
+        final String fromAddress;
+        final String toAddress;
+        final String content;
+        final long timestamp;
+        final boolean isSent;
+        // trueなら、メッセージではなく fromAddress と toAddress の会話を既読にします
+        final boolean markRead;
+
+        Pending(String fromAddress, String toAddress, String content, long timestamp, boolean isSent) {
+            this(fromAddress, toAddress, content, timestamp, isSent, false);
+        }
+
+        private Pending(String fromAddress, String toAddress, String content, long timestamp, boolean isSent,
+                        boolean markRead) {
+            this.fromAddress = fromAddress;
+            this.toAddress = toAddress;
+            this.content = content;
+            this.timestamp = timestamp;
+            this.isSent = isSent;
+            this.markRead = markRead;
+        }
+
+        /**
+         * 2人の会話を既読にする項目を作ります。
+         */
+        static Pending markRead(String address1, String address2) {
+            return new Pending(address1, address2, null, 0, false, true);
+        }
+    }
+
+    private final DatabaseHelper helper;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+    MessageWriter(DatabaseHelper helper) {
+        this.helper = helper;
+        Thread thread = new Thread(this::run, "RedWhale-db-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * メッセージを保存待ちのキューに入れます。どのスレッドからでも呼べ、すぐに戻ります。
+     */
+    void enqueue(Pending message) {
+        queue.offer(message);
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                // 続けて届く分を少しだけ待ち、1つのトランザクションにまとめます
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MS);
+                while (batch.size() < MAX_BATCH) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    queue.drainTo(batch, MAX_BATCH - batch.size());
+                }
+                helper.insertMessages(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // 書き込みに失敗しても、スレッドは止めずに次の分を処理します
+                Log.e(TAG, "メッセージ履歴の保存に失敗しました（" + batch.size() + "件）", e);
+            }
+            batch.clear();
+        }
+    }
+}
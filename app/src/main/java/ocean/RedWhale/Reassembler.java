@@ -0,0 +1,389 @@
+package ocean.RedWhale;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 分割されて届いたチャンクを元のメッセージに組み立てるクラスです。
+ *
+ * メッセージ毎に「全チャンク分の領域」と「受信済みチャンクのビットマップ」を最初に1度だけ確保し、
+ * 届いたチャンクはビューから最終的な位置（チャンク番号 × チャンクサイズ）へ直接コピーします。
+ * 重複の確認はビットマップで即座に行えるため、リストの走査や完成時の並べ替えは不要です。
+ *
+ * 最初に番号0のチャンクが届いたメッセージは、受け取り口（ChunkSink）が用意されれば
+ * 全体の領域を確保せず、チャンク番号の順にその場で受け渡します。
+ * 順番を飛ばして届いたチャンクだけを、前のチャンクが届くまで個別に保持します。
+ *
+ * 相手が壊れていたり悪意があったりしてもメモリを使い果たさないように、
+ * チャンク数の上限・全体のバイト数の上限・同時に受け渡すメッセージ数の上限・一定時間届かないメッセージの破棄を行います。
+ * 順番に受け渡すメッセージは、保留中のチャンクに加えて、ビットマップと保留用の配列の分も予算に数えます。
+ *
+ * ※スレッドセーフではありません。
+ */
+public final class Reassembler {
+
+    /**
+     * 番号0のチャンクが最初に届いた時に、順番に受け渡すための受け取り口を用意します。
+     */
+    public interface StreamOpener {
+        /**
+         * @return 受け取り口。全体を組み立ててから渡す場合はnull
+         */
+        MessageRouter.ChunkSink open(byte[] srcHash, int totalChunks, byte firstByte);
+
+        /**
+         * 順番に受け渡していたメッセージを途中で諦めた時に呼ばれます。
+         * 後から届く残りのチャンクで、同じメッセージの組み立てを始め直さないようにするためのものです。
+         *
+         * @param key accept に渡されたメッセージのキー
+         */
+        void onAbandoned(long key, long nowMillis);
+    }
+
+    // 順番に受け渡すメッセージの保留用配列で、チャンク1つあたりに数える参照の大きさ（ARTの参照は4バイト）
+    private static final int REFERENCE_SIZE = 4;
+
+    /**
+     * 組み立て中（または組み立て済み）のメッセージです。
+     */
+    public static final class Message {
+        final int msgId;
+        final int totalChunks;
+        final byte[] data;
+        final byte[] srcHash;
+        private final long[] receivedBits;
+        private int receivedCount;
+        private int length;
+        private long lastUpdate;
+        // 順番に受け渡す場合の受け取り口と、次に渡すチャンク番号・保留中のチャンク
+        private MessageRouter.ChunkSink sink;
+        private int nextIndex;
+        private byte[][] held;
+        private long heldBytes;
+
+        Message(int msgId, int totalChunks, int chunkSize, byte[] srcHash, long now) {
+            this.msgId = msgId;
+            this.totalChunks = totalChunks;
+            this.data = new byte[totalChunks * chunkSize];
+            this.srcHash = srcHash;
+            this.receivedBits = new long[(totalChunks + 63) >>> 6];
+            this.lastUpdate = now;
+        }
+
+        Message(int msgId, int totalChunks, byte[] srcHash, MessageRouter.ChunkSink sink, long now) {
+            this.msgId = msgId;
+            this.totalChunks = totalChunks;
+            this.data = null;
+            this.srcHash = srcHash;
+            this.receivedBits = new long[(totalChunks + 63) >>> 6];
+            this.sink = sink;
+            this.lastUpdate = now;
+        }
+
+        /**
+         * チャンクを受け取り口へ順番に渡したメッセージならtrueです（getData() はnullになります）。
+         */
+        public boolean isStreamed() {
+            return data == null;
+        }
+
+        public int getMsgId() {
+            return msgId;
+        }
+
+        /**
+         * 組み立てたデータを返します。有効な長さは getLength() です（配列は末尾に余白を含みます）。
+         * 順番に受け渡したメッセージではnullです。
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * 送信元のID（完全なハッシュ、または8バイトの短縮ID）を返します。
+         */
+        public byte[] getSrcHash() {
+            return srcHash;
+        }
+
+        boolean hasChunk(int index) {
+            return (receivedBits[index >>> 6] & (1L << index)) != 0;
+        }
+
+        void markChunk(int index) {
+            receivedBits[index >>> 6] |= 1L << index;
+            receivedCount++;
+        }
+
+        boolean isComplete() {
+            return data != null ? receivedCount == totalChunks : nextIndex == totalChunks;
+        }
+
+        /**
+         * 確保している（予算に数える）バイト数です。
+         */
+        long reservedSize() {
+            return data != null ? data.length : streamOverhead(totalChunks) + heldBytes;
+        }
+    }
+
+    private final int chunkSize;
+    private final int maxChunks;
+    private final int maxStreamChunks;
+    private final int maxStreams;
+    private final long maxBytes;
+    private final long timeoutMillis;
+    private final StreamOpener streamOpener;
+    private final Map<Long, Message> pending = new HashMap<>();
+    private long reservedBytes;
+    private int streamCount;
+    private long lastSweep;
+
+    public Reassembler(int chunkSize, int maxChunks, long maxBytes, long timeoutMillis) {
+        this(chunkSize, maxChunks, maxChunks, 0, maxBytes, timeoutMillis, null);
+    }
+
+    /**
+     * @param chunkSize       最後以外のチャンクのペイロード長
+     * @param maxChunks       1つのメッセージに許すチャンク数の上限
+     * @param maxStreamChunks 順番に受け渡すメッセージに許すチャンク数の上限
+     * @param maxStreams      同時に順番に受け渡すメッセージ数の上限（超えた分は全体を組み立てます）
+     * @param maxBytes        組み立て中のメッセージ全体で確保してよいバイト数の上限
+     * @param timeoutMillis   最後にチャンクが届いてから、組み立てを諦めるまでの時間（ミリ秒）
+     * @param streamOpener    順番に受け渡すための受け取り口を用意する処理（不要ならnull）
+     */
+    public Reassembler(int chunkSize, int maxChunks, int maxStreamChunks, int maxStreams, long maxBytes,
+                       long timeoutMillis, StreamOpener streamOpener) {
+        this.chunkSize = chunkSize;
+        this.maxChunks = maxChunks;
+        this.maxStreamChunks = Math.max(maxChunks, maxStreamChunks);
+        this.maxStreams = maxStreams;
+        // チャンク番号はヘッダー上で符号なし16ビットです。0xFFFF以上のチャンク数は表現できません
+        if (this.maxStreamChunks >= 0xFFFF) {
+            throw new IllegalArgumentException("チャンク数の上限が大きすぎます: " + this.maxStreamChunks);
+        }
+        this.maxBytes = maxBytes;
+        this.timeoutMillis = timeoutMillis;
+        this.streamOpener = streamOpener;
+    }
+
+    /**
+     * ビューが指しているチャンクを取り込みます。
+     *
+     * @param key 送信元とmsgIdからなる、メッセージを一意に表すキー
+     * @return メッセージが完成した場合はそのメッセージ。まだ揃っていないか、チャンクを捨てた場合はnull
+     */
+    public Message accept(long key, MessagePacketView view, long nowMillis) {
+        if (nowMillis - lastSweep >= timeoutMillis) {
+            expire(nowMillis);
+        }
+
+        int total = view.getTotalChunks() & 0xFFFF;
+        int index = view.getChunkIndex() & 0xFFFF;
+        int payloadLength = view.getPayloadLength();
+        if (total == 0 || total > maxStreamChunks || index >= total) return null;
+        // 最後以外のチャンクは必ず満杯のはずです。そうでなければ位置を計算できないので捨てます
+        boolean last = index == total - 1;
+        if (last ? payloadLength > chunkSize : payloadLength != chunkSize) return null;
+
+        Message message = pending.get(key);
+        if (message == null) {
+            message = create(key, view, total, index, nowMillis);
+            if (message == null) return null;
+        } else if (message.totalChunks != total) {
+            return null; // 同じメッセージでチャンク数が食い違うものは信用しません
+        }
+
+        if (message.hasChunk(index)) return null;
+        if (message.isStreamed()) {
+            if (!acceptStreamed(key, message, view, index, nowMillis)) return null;
+        } else {
+            view.copyPayload(message.data, index * chunkSize);
+            message.markChunk(index);
+            if (last) {
+                message.length = index * chunkSize + payloadLength;
+            }
+        }
+        message.lastUpdate = nowMillis;
+
+        if (!message.isComplete()) return null;
+        remove(key, message);
+        return message;
+    }
+
+    private Message create(long key, MessagePacketView view, int total, int index, long nowMillis) {
+        byte[] srcHash = new byte[view.getIdSize()];
+        view.copySrcHash(srcHash, 0);
+
+        // 番号0のチャンクが最初に届いた場合だけ、順番に受け渡せるかを受け取り側に尋ねます。
+        // 受け取り口を用意させる前に、同時に受け渡す数と予算に空きがあるかを確認します
+        if (index == 0 && total > 1 && streamOpener != null && view.getPayloadLength() > 0
+                && hasStreamCapacity(total, nowMillis)) {
+            MessageRouter.ChunkSink sink = streamOpener.open(srcHash, total,
+                    view.getByteAt(view.getPayloadOffset()));
+            if (sink != null) {
+                Message message = new Message(view.getMsgId(), total, srcHash, sink, nowMillis);
+                pending.put(key, message);
+                reservedBytes += message.reservedSize();
+                streamCount++;
+                return message;
+            }
+        }
+
+        if (total > maxChunks) return null;
+        long size = (long) total * chunkSize;
+        if (reservedBytes + size > maxBytes) {
+            expire(nowMillis);
+            if (reservedBytes + size > maxBytes) return null;
+        }
+        Message message = new Message(view.getMsgId(), total, chunkSize, srcHash, nowMillis);
+        pending.put(key, message);
+        reservedBytes += size;
+        return message;
+    }
+
+    private boolean hasStreamCapacity(int total, long nowMillis) {
+        long size = streamOverhead(total);
+        if (streamCount < maxStreams && reservedBytes + size <= maxBytes) return true;
+        expire(nowMillis);
+        return streamCount < maxStreams && reservedBytes + size <= maxBytes;
+    }
+
+    /**
+     * 順番に受け渡すメッセージ1つが、保留中のチャンク以外に使うバイト数（ビットマップと保留用の配列）です。
+     */
+    static long streamOverhead(int totalChunks) {
+        return ((totalChunks + 63) >>> 6) * 8L + (long) totalChunks * REFERENCE_SIZE;
+    }
+
+    /**
+     * 順番に受け渡すメッセージのチャンクを処理します。
+     * 次に渡す番号ならその場で渡し、続きの保留中のチャンクもまとめて渡します。先の番号なら保留します。
+     *
+     * @return チャンクを受け付けた場合はtrue
+     */
+    private boolean acceptStreamed(long key, Message message, MessagePacketView view, int index, long nowMillis) {
+        byte[] chunk = new byte[view.getPayloadLength()];
+        view.copyPayload(chunk, 0);
+        if (index != message.nextIndex) {
+            if (reservedBytes + chunk.length > maxBytes) {
+                expire(nowMillis);
+                // 期限切れでこのメッセージ自体が破棄された場合も、チャンクは捨てます
+                if (pending.get(key) != message || reservedBytes + chunk.length > maxBytes) return false;
+            }
+            if (message.held == null) message.held = new byte[message.totalChunks][];
+            message.held[index] = chunk;
+            message.heldBytes += chunk.length;
+            reservedBytes += chunk.length;
+            message.markChunk(index);
+            return true;
+        }
+
+        message.markChunk(index);
+        while (true) {
+            boolean last = message.nextIndex == message.totalChunks - 1;
+            message.nextIndex++;
+            if (!message.sink.onChunk(chunk, last)) {
+                // 受け取り口が自分でやめたので、onAbort は呼びません
+                remove(key, message);
+                streamOpener.onAbandoned(key, nowMillis);
+                return false;
+            }
+            if (last || message.held == null || message.held[message.nextIndex] == null) return true;
+            chunk = message.held[message.nextIndex];
+            message.held[message.nextIndex] = null;
+            message.heldBytes -= chunk.length;
+            reservedBytes -= chunk.length;
+        }
+    }
+
+    /**
+     * 指定したメッセージを組み立て中（または順番に受け渡し中）かを返します。
+     */
+    public boolean isPending(long key) {
+        return pending.containsKey(key);
+    }
+
+    /**
+     * 組み立て中のメッセージの数を返します。
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * 組み立て中のメッセージのために確保しているバイト数を返します。
+     */
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * 同時に順番に受け渡しているメッセージの数を返します。
+     */
+    public int getStreamCount() {
+        return streamCount;
+    }
+
+    /**
+     * 次にいずれかのメッセージが期限切れになる時間（expire に渡す時間と同じ基準）を返します。
+     * チャンクが届かない間も期限どおりに expire を呼べるよう、待機する時間の計算に使います。
+     *
+     * @return 期限の最も早い時間。組み立て中のメッセージがなければ Long.MAX_VALUE
+     */
+    public long nextExpiry() {
+        long earliest = Long.MAX_VALUE;
+        for (Message message : pending.values()) {
+            earliest = Math.min(earliest, message.lastUpdate + timeoutMillis);
+        }
+        return earliest;
+    }
+
+    /**
+     * 一定時間チャンクが届いていないメッセージを破棄します。
+     * 順番に受け渡していたメッセージは、受け取り口に中断を知らせます。
+     */
+    public void expire(long nowMillis) {
+        lastSweep = nowMillis;
+        Iterator<Map.Entry<Long, Message>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Message> entry = it.next();
+            Message message = entry.getValue();
+            if (nowMillis - message.lastUpdate >= timeoutMillis) {
+                it.remove();
+                release(message);
+                if (message.isStreamed()) {
+                    message.sink.onAbort();
+                    streamOpener.onAbandoned(entry.getKey(), nowMillis);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        for (Message message : pending.values()) {
+            if (message.isStreamed()) message.sink.onAbort();
+        }
+        pending.clear();
+        reservedBytes = 0;
+        streamCount = 0;
+    }
+
+    private void remove(long key, Message message) {
+        pending.remove(key);
+        release(message);
+    }
+
+    private void release(Message message) {
+        reservedBytes -= message.reservedSize();
+        if (message.isStreamed()) {
+            streamCount--;
+            message.held = null;
+        }
+    }
+}
@@ -10,6 +10,7 @@ public class RecentChat {
     private long timestamp;        // メッセージが送られた時刻（ミリ秒）
     private String friendAddress;  // BluetoothのMACアドレス
     private String identityAddress; // 相手の公開鍵（アイデンティティ）
+    private int unreadCount;       // まだ読んでいない受信メッセージの数
 
     /**
      * コンストラクタ。チャットの履歴データをセットします。
@@ -22,6 +23,14 @@ public class RecentChat {
         this.identityAddress = identityAddress;
     }
 
+    /**
+     * 未読数も指定するコンストラクタです。
+     */
+    public RecentChat(String friendName, String lastMessage, long timestamp, String friendAddress, String identityAddress, int unreadCount) {
+        this(friendName, lastMessage, timestamp, friendAddress, identityAddress);
+        this.unreadCount = unreadCount;
+    }
+
     /**
      * @return 相手の名前を返します
      */
@@ -56,4 +65,11 @@ public class RecentChat {
     public String getIdentityAddress() {
         return identityAddress;
     }
+
+    /**
+     * @return 未読のメッセージ数を返します
+     */
+    public int getUnreadCount() {
+        return unreadCount;
+    }
 }
@@ -50,6 +50,13 @@ public class RecentChatsAdapter extends RecyclerView.Adapter<RecentChatsAdapter.
         holder.lastMessage.setText(chat.getLastMessage());
         // タイムスタンプを「x分前」のような相対的な時間で表示
         holder.timestamp.setText(DateUtils.getRelativeTimeSpanString(chat.getTimestamp(), System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS));
+        // 未読のメッセージがあれば、その数を表示
+        if (chat.getUnreadCount() > 0) {
+            holder.unread.setText(String.valueOf(chat.getUnreadCount()));
+            holder.unread.setVisibility(View.VISIBLE);
+        } else {
+            holder.unread.setVisibility(View.GONE);
+        }
 
         // アイテムクリックでチャット画面に遷移
         holder.itemView.setOnClickListener(v -> {
@@ -73,13 +80,14 @@ public class RecentChatsAdapter extends RecyclerView.Adapter<RecentChatsAdapter.
      * 最近のチャットリストの各アイテムのビューを保持するためのViewHolderクラスです。
      */
     public static class RecentChatViewHolder extends RecyclerView.ViewHolder {
-        TextView name, lastMessage, timestamp;
+        TextView name, lastMessage, timestamp, unread;
 
         public RecentChatViewHolder(@NonNull View itemView) {
             super(itemView);
             name = itemView.findViewById(R.id.chat_name);
             lastMessage = itemView.findViewById(R.id.chat_last_message);
             timestamp = itemView.findViewById(R.id.chat_timestamp);
+            unread = itemView.findViewById(R.id.chat_unread);
         }
     }
 }
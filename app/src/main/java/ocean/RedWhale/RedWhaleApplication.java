@@ -26,5 +26,8 @@ public class RedWhaleApplication extends Application {
                     .penaltyLog()
                     .build());
         }
+
+        // 自分のID（Keystore）の読み込みを先に始めておき、各画面やサービスではその結果を共有します
+        IdentityCache.getInstance().load();
     }
 }
\ No newline at end of file
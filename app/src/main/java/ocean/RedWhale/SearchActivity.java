@@ -0,0 +1,155 @@
+package ocean.RedWhale;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.EditText;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.google.android.material.appbar.MaterialToolbar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * メッセージ履歴を全文検索する画面です。
+ * 入力が止まってから検索し、結果は新しい順に1ページずつ、下までスクロールした時に続きを読み込みます。
+ */
+public class SearchActivity extends AppCompatActivity {
+
+    // 1回に読み込む検索結果の件数
+    private static final int PAGE_SIZE = 30;
+    // 入力が止まってから検索を始めるまでの時間
+    private static final long SEARCH_DELAY_MS = 300;
+
+    private RecyclerView recyclerView;
+    private TextView emptyState;
+    private SearchResultsAdapter adapter;
+    private final List<MessageSearchResult> results = new ArrayList<>();
+    private DatabaseHelper dbHelper;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // 検索結果の読み込みを順番に行うスレッド（画面を閉じる時に止めます）
+    private final ExecutorService backgroundExecutor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "SearchActivity-background"));
+
+    // 以下はUIスレッドからのみ使います
+    private String currentQuery = "";
+    private int searchGeneration;       // 検索し直すたびに増やし、古い検索の結果を捨てるために使います
+    private boolean loading;            // 次のページを読み込み中か
+    private boolean hasMore;            // まだ読み込んでいない結果があるか
+    private long lastId = Long.MAX_VALUE; // 読み込み済みで一番古い結果のメッセージID
+
+    private final Runnable searchRunnable = () -> startSearch(currentQuery);
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_search);
+        dbHelper = DatabaseHelper.getInstance(this);
+
+        MaterialToolbar toolbar = findViewById(R.id.toolbar);
+        setSupportActionBar(toolbar);
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+            getSupportActionBar().setDisplayShowTitleEnabled(false);
+        }
+        toolbar.setNavigationOnClickListener(v -> finish());
+
+        recyclerView = findViewById(R.id.recycler_view_search);
+        emptyState = findViewById(R.id.tv_empty_search);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        recyclerView.setLayoutManager(layoutManager);
+        adapter = new SearchResultsAdapter(this, results);
+        recyclerView.setAdapter(adapter);
+
+        // 一番下の近くまでスクロールしたら、次のページを読み込みます
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView view, int dx, int dy) {
+                if (dy > 0 && layoutManager.findLastVisibleItemPosition() >= results.size() - 5) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        EditText searchBox = findViewById(R.id.et_search);
+        searchBox.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                // 入力のたびに検索せず、入力が止まってから1回だけ検索します
+                currentQuery = s.toString();
+                handler.removeCallbacks(searchRunnable);
+                handler.postDelayed(searchRunnable, SEARCH_DELAY_MS);
+            }
+        });
+        searchBox.requestFocus();
+    }
+
+    /**
+     * 結果をクリアし、新しい検索の最初のページを読み込みます。
+     */
+    private void startSearch(String query) {
+        searchGeneration++;
+        results.clear();
+        adapter.notifyDataSetChanged();
+        lastId = Long.MAX_VALUE;
+        loading = false;
+        hasMore = !query.trim().isEmpty();
+        emptyState.setVisibility(View.GONE);
+        loadNextPage();
+    }
+
+    /**
+     * 今の検索の次のページをバックグラウンドで読み込み、結果の最後に追加します。
+     */
+    private void loadNextPage() {
+        if (loading || !hasMore) return;
+        loading = true;
+        int generation = searchGeneration;
+        String query = currentQuery;
+        long beforeId = lastId;
+        backgroundExecutor.execute(() -> {
+            List<MessageSearchResult> page = dbHelper.searchMessages(query, beforeId, PAGE_SIZE);
+            runOnUiThread(() -> {
+                // 読み込み中に検索し直していれば、この結果は捨てます
+                if (isFinishing() || generation != searchGeneration) return;
+                loading = false;
+                hasMore = page.size() == PAGE_SIZE;
+                if (!page.isEmpty()) {
+                    lastId = page.get(page.size() - 1).getMessageId();
+                    int start = results.size();
+                    results.addAll(page);
+                    adapter.notifyItemRangeInserted(start, page.size());
+                }
+                boolean noResults = results.isEmpty() && !query.trim().isEmpty();
+                emptyState.setVisibility(noResults ? View.VISIBLE : View.GONE);
+            });
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(searchRunnable);
+        // 実行中の検索は最後まで行い、新しい検索は受け付けません
+        backgroundExecutor.shutdown();
+    }
+}
@@ -0,0 +1,86 @@
+package ocean.RedWhale;
+
+import android.content.Context;
+import android.content.Intent;
+import android.text.format.DateUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+import java.util.List;
+
+/**
+ * メッセージの検索結果をRecyclerViewに表示するためのアダプターです。
+ */
+public class SearchResultsAdapter extends RecyclerView.Adapter<SearchResultsAdapter.SearchResultViewHolder> {
+
+    private final List<MessageSearchResult> results;
+    private final Context context;
+
+    public SearchResultsAdapter(Context context, List<MessageSearchResult> results) {
+        this.context = context;
+        this.results = results;
+    }
+
+    /**
+     * 新しいViewHolderが作成されるときに呼び出されます。
+     * @param parent 親ビューグループ
+     * @param viewType ビュータイプ
+     * @return 新しいSearchResultViewHolder
+     */
+    @NonNull
+    @Override
+    public SearchResultViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        // チャット一覧と同じlist_item_chatレイアウトを使用
+        View view = LayoutInflater.from(context).inflate(R.layout.list_item_chat, parent, false);
+        return new SearchResultViewHolder(view);
+    }
+
+    /**
+     * ViewHolderにデータをバインド（設定）するときに呼び出されます。
+     * @param holder データを設定するViewHolder
+     * @param position データリスト内の位置
+     */
+    @Override
+    public void onBindViewHolder(@NonNull SearchResultViewHolder holder, int position) {
+        MessageSearchResult result = results.get(position);
+        holder.name.setText(result.getPeerName());
+        holder.message.setText(result.getMessage());
+        // タイムスタンプを「x分前」のような相対的な時間で表示
+        holder.timestamp.setText(DateUtils.getRelativeTimeSpanString(result.getTimestamp(), System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS));
+
+        // アイテムクリックで、そのメッセージの会話を開く
+        holder.itemView.setOnClickListener(v -> {
+            if (result.getPeerAddress() == null) return;
+            Intent intent = new Intent(context, MainActivity.class);
+            intent.putExtra("deviceAddress", result.getPeerAddress());
+            intent.putExtra("CHAT_NAME", result.getPeerName());
+            context.startActivity(intent);
+        });
+    }
+
+    /**
+     * リスト内のアイテムの総数を返します。
+     * @return アイテムの総数
+     */
+    @Override
+    public int getItemCount() {
+        return results.size();
+    }
+
+    /**
+     * 検索結果の各アイテムのビューを保持するためのViewHolderクラスです。
+     */
+    public static class SearchResultViewHolder extends RecyclerView.ViewHolder {
+        TextView name, message, timestamp;
+
+        public SearchResultViewHolder(@NonNull View itemView) {
+            super(itemView);
+            name = itemView.findViewById(R.id.chat_name);
+            message = itemView.findViewById(R.id.chat_last_message);
+            timestamp = itemView.findViewById(R.id.chat_timestamp);
+        }
+    }
+}
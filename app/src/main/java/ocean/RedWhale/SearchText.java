@@ -0,0 +1,167 @@
+package ocean.RedWhale;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 日本語などの単語を空白で区切らない文を、全文検索（FTS4, unicode61）の索引で探せる形に変換します。
+ *
+ * unicode61 は空白や記号でしか単語を区切らないため、「今日は東京で会議」は1つの長い単語になり、
+ * 途中の「東京」では見つけられません。そこで、漢字・かななどが続く部分を、隣り合う2文字ずつ
+ * （「今日 日は は東 東京 京で で会 会議」）と最後の1文字に分けた文字列を別の列に入れておきます。
+ * 検索する言葉も同じように2文字ずつに分け、隣り合う順に並んでいること（フレーズ）を条件にするので、
+ * 本文を1件ずつ調べずに、索引だけで文の途中の言葉を見つけられます。
+ */
+final class SearchText {
+
+    private SearchText() {
+    }
+
+    /**
+     * 単語を空白で区切らずに書く文字（漢字・ひらがな・カタカナ・ハングル・タイ文字、長音記号）かを返します。
+     * 句読点などの記号は含めません（索引でも区切りとして扱います）。
+     */
+    static boolean isUnsegmented(int codePoint) {
+        switch (Character.UnicodeScript.of(codePoint)) {
+            case HAN:
+            case HIRAGANA:
+            case KATAKANA:
+            case HANGUL:
+            case THAI:
+                return true;
+            default:
+                // 長音記号（ー、半角のｰ）は、ひらがな・カタカナのどちらにも使う共通の文字です
+                return codePoint == 0x30FC || codePoint == 0xFF70;
+        }
+    }
+
+    /**
+     * 単語を空白で区切らずに書く文字を含むかを返します。
+     */
+    static boolean containsUnsegmented(String text) {
+        if (text == null) return false;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            if (isUnsegmented(codePoint)) return true;
+            i += Character.charCount(codePoint);
+        }
+        return false;
+    }
+
+    /**
+     * 本文を、索引の列（search_text）に入れる文字列に変換します。
+     * 漢字・かななどが続く部分は、隣り合う2文字ずつと最後の1文字に分けて空白で区切り、それ以外はそのまま残します。
+     *
+     * @return 変換した文字列。単語を空白で区切らない文字を含まない場合はnull（本文の索引だけで探せます）
+     */
+    static String toIndexText(String content) {
+        if (!containsUnsegmented(content)) return null;
+        StringBuilder text = new StringBuilder(content.length() * 3);
+        int runStart = -1;
+        for (int i = 0; i < content.length(); ) {
+            int codePoint = content.codePointAt(i);
+            if (isUnsegmented(codePoint)) {
+                if (runStart < 0) runStart = i;
+            } else {
+                if (runStart >= 0) {
+                    appendIndexRun(text, content, runStart, i);
+                    runStart = -1;
+                }
+                text.appendCodePoint(codePoint);
+            }
+            i += Character.charCount(codePoint);
+        }
+        if (runStart >= 0) appendIndexRun(text, content, runStart, content.length());
+        return text.toString();
+    }
+
+    // 最後の1文字も語にするのは、1文字での検索（前方一致）で続く文字がない場合や、
+    // 「会議10時」のように英数字が続く言葉を、語の並びのまま探せるようにするためです
+    private static void appendIndexRun(StringBuilder text, String content, int start, int end) {
+        List<String> tokens = new ArrayList<>();
+        addBigrams(tokens, content, start, end);
+        tokens.add(content.substring(content.offsetByCodePoints(end, -1), end));
+        text.append(' ');
+        for (String token : tokens) text.append(token).append(' ');
+    }
+
+    /**
+     * 単語のリストを、索引の列（search_text）に対する全文検索（MATCH）の条件に変換します。
+     * 各単語を索引と同じ語の並びにして引用符で囲み（フレーズ）、すべてを含むものを探します。
+     * 単語の最後が1文字だけの漢字・かな、または英数字の場合は、その部分を前方一致にします。
+     *
+     * @return 検索の条件。検索できる文字を含まない場合は空文字
+     */
+    static String toMatchQuery(List<String> terms) {
+        StringBuilder match = new StringBuilder();
+        for (String term : terms) {
+            List<String> tokens = toQueryTokens(term);
+            if (tokens.isEmpty()) continue;
+            if (match.length() > 0) match.append(' ');
+            match.append('"');
+            for (int i = 0; i < tokens.size(); i++) {
+                if (i > 0) match.append(' ');
+                match.append(tokens.get(i));
+            }
+            match.append('"');
+        }
+        return match.toString();
+    }
+
+    private static List<String> toQueryTokens(String term) {
+        List<String> tokens = new ArrayList<>();
+        // 直前の漢字・かなの部分の最後の1文字。後ろに語が続く場合は、索引と同じくその1文字も語として並べます
+        String runTail = null;
+        boolean singleRun = false;
+        boolean endsWithWord = false;
+        int runStart = -1;
+        int wordStart = -1;
+        for (int i = 0; i <= term.length(); ) {
+            int codePoint = i < term.length() ? term.codePointAt(i) : ' ';
+            boolean unsegmented = isUnsegmented(codePoint);
+            boolean word = !unsegmented && Character.isLetterOrDigit(codePoint);
+            if (runStart >= 0 && !unsegmented) {
+                addBigrams(tokens, term, runStart, i);
+                runTail = term.substring(term.offsetByCodePoints(i, -1), i);
+                singleRun = runTail.length() == i - runStart;
+                runStart = -1;
+            }
+            if (wordStart >= 0 && !word) {
+                tokens.add(term.substring(wordStart, i));
+                wordStart = -1;
+                endsWithWord = true;
+            }
+            if ((unsegmented && runStart < 0) || (word && wordStart < 0)) {
+                if (runTail != null) tokens.add(runTail);
+                runTail = null;
+                endsWithWord = false;
+                if (unsegmented) {
+                    runStart = i;
+                } else {
+                    wordStart = i;
+                }
+            }
+            i += Character.charCount(codePoint);
+        }
+        // 単語の最後が1文字だけの漢字・かななら、その文字で始まる2文字の語を前方一致で探します。
+        // 英数字の単語は、本文の索引と同じく前方一致で探します
+        if (runTail != null) {
+            if (singleRun) tokens.add(runTail + "*");
+        } else if (endsWithWord) {
+            tokens.set(tokens.size() - 1, tokens.get(tokens.size() - 1) + "*");
+        }
+        return tokens;
+    }
+
+    // [start, end) の文字を、隣り合う2文字ずつの語にして加えます（1文字しかなければ何も加えません）
+    private static void addBigrams(List<String> tokens, String text, int start, int end) {
+        int first = start;
+        int second = text.offsetByCodePoints(first, 1);
+        while (second < end) {
+            int next = text.offsetByCodePoints(second, 1);
+            tokens.add(text.substring(first, next));
+            first = second;
+            second = next;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ocean.RedWhale;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 複数のスレッドで並列に処理した受信メッセージを、送信者毎に届いた順番どおりに渡すためのクラスです。
+ *
+ * 受信時に送信者毎の番号（チケット）を予約し、処理が終わったらその番号で結果を返します。
+ * 前の番号の処理がまだ終わっていなければ結果を預かっておき、揃った分だけを番号順に実行します。
+ * 異なる送信者のメッセージはお互いを待ちません。
+ * 処理に失敗したメッセージも、後続を止めないように必ず complete() を呼んでください（結果はnullで構いません）。
+ */
+public final class SenderSequencer {
+
+    private static final class Lane {
+        long nextTicket;
+        long nextToRun;
+        final Map<Long, Runnable> completed = new HashMap<>();
+    }
+
+    // 結果を預かっていない「空の状態」を表す値（nullは「結果なし」として預かる必要があるため）
+    private static final Runnable SKIP = () -> { };
+
+    private final Map<Long, Lane> lanes = new HashMap<>();
+
+    /**
+     * 送信者の次の番号を予約します。受信した順番に呼んでください。
+     */
+    public synchronized long reserve(long senderId) {
+        Lane lane = lanes.get(senderId);
+        if (lane == null) {
+            lane = new Lane();
+            lanes.put(senderId, lane);
+        }
+        return lane.nextTicket++;
+    }
+
+    /**
+     * 予約した番号の処理が終わったことを知らせます。
+     * その番号まで前の番号がすべて終わっていれば、預かっていた結果と合わせて番号順に実行します。
+     *
+     * @param delivery 番号順に実行する処理（すぐ終わるものにしてください）。結果がない場合はnull
+     */
+    public synchronized void complete(long senderId, long ticket, Runnable delivery) {
+        Lane lane = lanes.get(senderId);
+        if (lane == null || ticket < lane.nextToRun) return;
+        lane.completed.put(ticket, delivery != null ? delivery : SKIP);
+        Runnable next;
+        while ((next = lane.completed.remove(lane.nextToRun)) != null) {
+            lane.nextToRun++;
+            next.run();
+        }
+        // 処理中のメッセージがなくなった送信者の状態は捨てます
+        if (lane.nextToRun == lane.nextTicket) {
+            lanes.remove(senderId);
+        }
+    }
+
+    /**
+     * 処理中のメッセージがある送信者の数を返します。
+     */
+    public synchronized int getActiveSenderCount() {
+        return lanes.size();
+    }
+}
@@ -0,0 +1,724 @@
+package ocean.RedWhale;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 相手毎の「セッション鍵」を管理し、メッセージ毎のRSA処理をなくすためのクラスです。
+ *
+ * セッションの最初のメッセージ（開始メッセージ）だけが、RSAで包んだAESキーと送信者の署名を運びます。
+ * 受信側は署名を確認してからキーを取り出し、セッションIDと一緒に記憶します。
+ * 相手が受信確認（ACK）でセッションIDを返してきたら、以降はAES-GCMだけの短いメッセージを送ります。
+ * ACKにはセッション鍵から導出した確認値を付けるため、中継ノードがACKを偽造して切り替えさせることはできません。
+ * 各メッセージはセッション鍵そのものではなく、SymmetricRatchet でメッセージ毎に導出した鍵で暗号化するため、
+ * 鍵が漏れても過去のメッセージは読めません（前方秘匿性）。
+ * セッション鍵は一定数のメッセージ、または一定時間で新しいものに切り替えます。
+ *
+ * 暗号文はBase64に変換せず、バイナリのままルーターに渡します。先頭の1バイトで種類を示し、
+ * 従来形式（Base64文字列）とはこのバイトがASCII文字にならないことで区別します。
+ * <ul>
+ *   <li>0xE1 開始メッセージ: [セッションID 8][包んだキーの長さ 2][包んだキー][署名の長さ 2][署名][番号 4][IV + 暗号文]</li>
+ *   <li>0xE2 通常メッセージ: [セッションID 8][番号 4][IV + 暗号文]</li>
+ *   <li>0xE3 / 0xE4 分割暗号化の開始・通常メッセージ: 0xE1 / 0xE2 の [番号 4] までと同じ後に
+ *       [平文の長さ 4][セグメント長 2][セグメント 0][セグメント 1]...</li>
+ *   <li>0xE6 IVを省いた通常メッセージ: [セッションID 8][番号 4][暗号文]</li>
+ * </ul>
+ * IVはメッセージ番号から作るため、受信側も同じ値を計算できます。受信確認で FEATURE_IMPLICIT_IV を
+ * 知らせてきた相手には、通常メッセージを 0xE2 の代わりに12バイト短い 0xE6 で送ります。
+ * 1つのチャンクに収まらないメッセージは、STREAM方式で分割して暗号化します。
+ * 各セグメントは [暗号文 + 認証タグ] で、境界がルーターのチャンクの境界と揃うように長さを決めます
+ * （セグメント0はヘッダーの残り、以降はセグメント長ちょうど）。受信側はチャンクが届く度に
+ * そのセグメントを認証・復号できるため、暗号文全体を組み立てて保持する必要がありません。
+ * 以前の "K:" / "S:" で始まるBase64文字列の形式も受信できます。
+ */
+public final class SessionManager {
+    private static final String TAG = "SessionManager";
+
+    static final byte ENVELOPE_INIT = (byte) 0xE1;
+    static final byte ENVELOPE_SESSION = (byte) 0xE2;
+    static final byte ENVELOPE_STREAM_INIT = (byte) 0xE3;
+    static final byte ENVELOPE_STREAM_SESSION = (byte) 0xE4;
+    static final byte ENVELOPE_SESSION_IMPLICIT_IV = (byte) 0xE6;
+    // 分割暗号化で [番号 4] の後に続く項目（平文の長さ 4・セグメント長 2）の長さ
+    private static final int STREAM_FIELDS_SIZE = 4 + 2;
+    // 分割暗号化で受け付ける平文の長さと、ヘッダーの長さの上限
+    private static final int MAX_STREAM_LENGTH = MessageRouter.MAX_CHUNKS_PER_STREAM * MessageRouter.MAX_PAYLOAD_SIZE;
+    private static final int MAX_STREAM_HEADER_SIZE = 4096;
+    // 以前のBase64文字列形式の接頭辞（受信のみ対応）
+    private static final byte[] PREFIX_INIT = "K:".getBytes();
+    private static final byte[] PREFIX_SESSION = "S:".getBytes();
+    // 署名する内容の先頭に付ける目印（他の用途の署名と取り違えないため）
+    private static final byte[] INIT_LABEL = "RedWhale-session-v1".getBytes();
+    // 受信確認の確認値を導出する時の目印と、確認値の長さ
+    private static final byte[] ACK_INFO = "RedWhale-ack-v1".getBytes();
+    static final int ACK_TAG_SIZE = 16;
+    // 受信確認の確認値の後に付ける、対応している機能のビット
+    static final int FEATURE_IMPLICIT_IV = 0x01;
+    static final int LOCAL_FEATURES = FEATURE_IMPLICIT_IV;
+
+    // 1つのセッション鍵で送るメッセージ数の上限と、セッション鍵の寿命
+    private static final int MAX_MESSAGES_PER_SESSION = 1000;
+    private static final long SESSION_LIFETIME_MS = 24 * 60 * 60 * 1000L;
+    // 受信側は送信側より少し長く覚えておきます（切り替え直後に遅れて届くメッセージのため）
+    private static final long INBOUND_LIFETIME_MS = SESSION_LIFETIME_MS + 60 * 60 * 1000L;
+    private static final int MAX_INBOUND_SESSIONS = 256;
+
+    /**
+     * 自分から相手へ送るためのセッションです。
+     */
+    private static final class OutboundSession {
+        final long id;
+        final SymmetricRatchet.Sender ratchet;
+        // 開始メッセージの先頭部分（セッションID・包んだキー・署名）。作成時に1度だけ計算します
+        final byte[] initHeader;
+        // 相手が受信確認に付けてくるはずの確認値
+        final byte[] ackTag;
+        final long createdAt;
+        volatile boolean confirmed;
+        // 相手がIVを省いた通常メッセージ（0xE6）を解釈できる場合はtrue
+        volatile boolean implicitIv;
+
+        OutboundSession(long id, SymmetricRatchet.Sender ratchet, byte[] initHeader, byte[] ackTag, long createdAt) {
+            this.id = id;
+            this.ratchet = ratchet;
+            this.initHeader = initHeader;
+            this.ackTag = ackTag;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * 相手から受け取ったセッションです。
+     */
+    private static final class InboundSession {
+        final SymmetricRatchet.Receiver ratchet;
+        final byte[] peerId;
+        // 受信確認に付ける確認値
+        final byte[] ackTag;
+        final long createdAt;
+
+        InboundSession(SymmetricRatchet.Receiver ratchet, byte[] peerId, byte[] ackTag, long createdAt) {
+            this.ratchet = ratchet;
+            this.peerId = peerId;
+            this.ackTag = ackTag;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * 復号の結果です。
+     */
+    public static final class Decrypted {
+        // 復号したメッセージ（UTF-8などの文字列のバイト列）
+        public final byte[] message;
+        // 受信確認で相手に返すセッションID（従来形式・グループのメッセージでは0）
+        public final long sessionId;
+        // グループ宛てのメッセージならグループID（1対1のメッセージではnull）
+        public final byte[] groupId;
+        // グループ宛てのメッセージで、署名から特定できた送信者のID（公開鍵のBase64形式）。分からなければnull
+        public final String senderAddress;
+        // 受信確認でセッションIDと一緒に返す確認値（セッション形式のメッセージ以外ではnull）
+        public final byte[] ackTag;
+
+        Decrypted(byte[] message, long sessionId) {
+            this(message, sessionId, null, null, null);
+        }
+
+        Decrypted(byte[] message, long sessionId, byte[] ackTag) {
+            this(message, sessionId, ackTag, null, null);
+        }
+
+        Decrypted(byte[] message, long sessionId, byte[] groupId, String senderAddress) {
+            this(message, sessionId, null, groupId, senderAddress);
+        }
+
+        private Decrypted(byte[] message, long sessionId, byte[] ackTag, byte[] groupId, String senderAddress) {
+            this.message = message;
+            this.sessionId = sessionId;
+            this.ackTag = ackTag;
+            this.groupId = groupId;
+            this.senderAddress = senderAddress;
+        }
+    }
+
+    // 相手の公開鍵（identityAddress）→ 送信用セッション
+    private final Map<String, OutboundSession> outbound = new ConcurrentHashMap<>();
+    // セッションID → 受信用セッション（古いものから捨てます）
+    private final Map<Long, InboundSession> inbound = new LinkedHashMap<Long, InboundSession>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, InboundSession> eldest) {
+            return size() > MAX_INBOUND_SESSIONS;
+        }
+    };
+    // セッション形式を解釈できると分かっている相手の短縮ID
+    private final Set<Long> capablePeers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 暗号文がセッション形式かを返します。
+     */
+    public static boolean isSessionEnvelope(byte[] data, int offset, int length) {
+        if (length < 1) return false;
+        byte kind = data[offset];
+        return kind == ENVELOPE_INIT || kind == ENVELOPE_SESSION || kind == ENVELOPE_SESSION_IMPLICIT_IV || isStreamEnvelope(kind)
+                || startsWith(data, offset, length, PREFIX_INIT) || startsWith(data, offset, length, PREFIX_SESSION);
+    }
+
+    /**
+     * 先頭の1バイトが分割暗号化の暗号文を示すかを返します。
+     */
+    public static boolean isStreamEnvelope(byte kind) {
+        return kind == ENVELOPE_STREAM_INIT || kind == ENVELOPE_STREAM_SESSION;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 相手がセッション形式を解釈できることを記録します。
+     */
+    public void markCapable(byte[] peerId) {
+        if (peerId != null && peerId.length >= MessagePacket.COMPACT_ID_SIZE) {
+            capablePeers.add(IdentityManager.getCompactId(peerId));
+        }
+    }
+
+    public boolean isCapable(byte[] peerId) {
+        return peerId != null && peerId.length >= MessagePacket.COMPACT_ID_SIZE
+                && capablePeers.contains(IdentityManager.getCompactId(peerId));
+    }
+
+    /**
+     * 相手から、セッションIDと確認値を含む受信確認が届いた時に呼びます。
+     * その相手への送信用セッションのIDと確認値が一致した場合だけ、以降は短い通常メッセージを送ります。
+     * ACK自体は署名されていないため、一致しないもの（偽造・他の相手のセッション）は無視します。
+     *
+     * @param candidates 受信確認の送信元として当てはまる友達（短縮IDの衝突に備えて全員）
+     * @param features   受信確認に付いていた、相手が対応している機能のビット（付いていなければ0）
+     * @return 受信確認を受け入れた場合はtrue
+     */
+    public boolean onAcknowledged(List<FriendKeyIndex.Entry> candidates, long sessionId, byte[] tag, int features) {
+        if (tag == null || tag.length != ACK_TAG_SIZE) return false;
+        for (FriendKeyIndex.Entry candidate : candidates) {
+            OutboundSession session = outbound.get(candidate.getIdentityAddress());
+            if (session != null && session.id == sessionId && MessageDigest.isEqual(session.ackTag, tag)) {
+                session.implicitIv = (features & FEATURE_IMPLICIT_IV) != 0;
+                session.confirmed = true;
+                markCapable(candidate.getHash());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * メッセージを相手とのセッション鍵で暗号化します。
+     * セッションがないか、期限切れの場合はここで新しく作ります（RSAの処理はこの時だけです）。
+     *
+     * 暗号文はヘッダーと一緒に1つの配列へ直接書き込みます。
+     *
+     * @return バイナリの暗号文、失敗時はnull
+     */
+    public byte[] encrypt(byte[] message, FriendKeyIndex.Entry dest, PrivateKey privateKey) {
+        OutboundSession session = getOutboundSession(dest, privateKey);
+        if (session == null) return null;
+
+        byte[] messageKey = new byte[SymmetricRatchet.KEY_SIZE];
+        int counter = session.ratchet.next(messageKey);
+        // 相手がまだセッションを受け取ったか分からない間は、開始メッセージを送り続けます。
+        // 包んだキーと署名は作成時の値を使い回すので、送信側で余計な計算は発生しません。
+        boolean confirmed = session.confirmed;
+        boolean implicitIv = confirmed && session.implicitIv;
+        int headerSize = 1 + (confirmed ? 8 : session.initHeader.length) + 4;
+        int sealedSize = implicitIv ? EncryptionManager.getSealedSize(message.length) : EncryptionManager.getEncryptedSize(message.length);
+        // 1つのチャンクに収まらない場合は、チャンク毎に復号できるよう分割して暗号化します
+        boolean stream = headerSize + sealedSize > MessageRouter.MAX_PAYLOAD_SIZE;
+        int bodySize = stream
+                ? STREAM_FIELDS_SIZE + streamedSize(headerSize + STREAM_FIELDS_SIZE, message.length, MessageRouter.MAX_PAYLOAD_SIZE)
+                : sealedSize;
+        ByteBuffer packaged = ByteBuffer.allocate(headerSize + bodySize);
+        if (confirmed) {
+            packaged.put(stream ? ENVELOPE_STREAM_SESSION : implicitIv ? ENVELOPE_SESSION_IMPLICIT_IV : ENVELOPE_SESSION)
+                    .putLong(session.id);
+        } else {
+            packaged.put(stream ? ENVELOPE_STREAM_INIT : ENVELOPE_INIT).put(session.initHeader);
+        }
+        packaged.putInt(counter);
+        int written;
+        if (stream) {
+            packaged.putInt(message.length).putShort((short) MessageRouter.MAX_PAYLOAD_SIZE);
+            written = sealStream(message, messageKey, streamAad(session.id, counter, message.length),
+                    MessageRouter.MAX_PAYLOAD_SIZE, packaged);
+        } else {
+            // メッセージ鍵はメッセージ毎に異なるため、IVは乱数ではなくメッセージ番号から作ります
+            byte[] iv = EncryptionManager.counterIv(0, counter);
+            byte[] aad = messageAad(session.id, counter);
+            written = implicitIv
+                    ? EncryptionManager.sealTo(message, 0, message.length, messageKey, aad, iv, packaged)
+                    : EncryptionManager.encryptTo(message, 0, message.length, messageKey, aad, iv, packaged);
+        }
+        Arrays.fill(messageKey, (byte) 0);
+        return written < 0 ? null : packaged.array();
+    }
+
+    /**
+     * セグメント0の暗号文の長さを返します。ヘッダーの直後から次のチャンクの境界までですが、
+     * 認証タグしか入らない場合は、さらに次の境界まで延ばします。
+     */
+    private static int firstSegmentSize(int headerSize, int segmentSize) {
+        int size = segmentSize - headerSize % segmentSize;
+        return size > EncryptionManager.getSegmentOverhead() ? size : size + segmentSize;
+    }
+
+    /**
+     * 分割暗号化したセグメント全体の長さを返します。
+     */
+    private static int streamedSize(int headerSize, int plaintextLength, int segmentSize) {
+        int overhead = EncryptionManager.getSegmentOverhead();
+        int first = firstSegmentSize(headerSize, segmentSize) - overhead;
+        int segments = 1;
+        if (plaintextLength > first) {
+            int per = segmentSize - overhead;
+            segments += (plaintextLength - first + per - 1) / per;
+        }
+        return plaintextLength + segments * overhead;
+    }
+
+    /**
+     * 平文をセグメントに分けて暗号化し、バッファの現在位置（ヘッダーの直後）から書き込みます。
+     *
+     * @return 書き込んだバイト数、失敗時は-1
+     */
+    private static int sealStream(byte[] message, byte[] messageKey, byte[] aad, int segmentSize, ByteBuffer dst) {
+        int start = dst.position();
+        int overhead = EncryptionManager.getSegmentOverhead();
+        int capacity = firstSegmentSize(start, segmentSize) - overhead;
+        int offset = 0;
+        for (int index = 0; ; index++) {
+            int length = Math.min(capacity, message.length - offset);
+            boolean last = offset + length == message.length;
+            if (EncryptionManager.sealSegment(message, offset, length, messageKey, aad, index, last, dst) < 0) return -1;
+            offset += length;
+            if (last) return dst.position() - start;
+            capacity = segmentSize - overhead;
+        }
+    }
+
+    /**
+     * 分割暗号化のメッセージを、チャンクが届く度に少しずつ復号するための状態を作ります。
+     * 最初のチャンクから順番に update() へ渡し、最後に finish() で結果を受け取ります。
+     */
+    public InboundStream openStream(byte[] senderId, byte[] localHash, PrivateKey privateKey, FriendKeyIndex friendKeys) {
+        return new InboundStream(senderId, localHash, privateKey, friendKeys);
+    }
+
+    /**
+     * 分割暗号化のメッセージを、届いた順に復号していく状態です。
+     * ヘッダーが揃った時点でセッションを特定し、以降はセグメントが揃う度に認証・復号して平文に書き込みます。
+     * 暗号文は揃ったセグメントの分しか保持しません。
+     * ※スレッドセーフではありません（1つのメッセージは1度に1つのスレッドから処理してください）。
+     */
+    public final class InboundStream {
+        private final byte[] senderId;
+        private final byte[] localHash;
+        private final PrivateKey privateKey;
+        private final FriendKeyIndex friendKeys;
+
+        private byte[] header = new byte[64];
+        private int headerFill;
+
+        private InboundSession session;
+        private long sessionId;
+        private int counter;
+        private byte[] messageKey;
+        private byte[] aad;
+        private int segmentSize;
+        private byte[] plaintext;
+        private int plainWritten;
+        private int segmentIndex;
+        // 今のセグメントの暗号文の長さと、チャンクをまたいだ場合に溜めている分
+        private int expected;
+        private byte[] segment;
+        private int segmentFill;
+        private boolean done;
+        private boolean failed;
+
+        InboundStream(byte[] senderId, byte[] localHash, PrivateKey privateKey, FriendKeyIndex friendKeys) {
+            this.senderId = senderId;
+            this.localHash = localHash;
+            this.privateKey = privateKey;
+            this.friendKeys = friendKeys;
+        }
+
+        /**
+         * 暗号文の続きを取り込みます。
+         *
+         * @return まだ正しい場合はtrue。改ざん・鍵が分からない等で復号できないと分かった場合はfalse
+         */
+        public boolean update(byte[] data, int offset, int length) {
+            if (failed) return false;
+            try {
+                while (length > 0 && plaintext == null) {
+                    int target = headerTarget();
+                    if (target > MAX_STREAM_HEADER_SIZE) return fail();
+                    if (header.length < target) header = Arrays.copyOf(header, Math.max(target, header.length * 2));
+                    int count = Math.min(target - headerFill, length);
+                    System.arraycopy(data, offset, header, headerFill, count);
+                    headerFill += count;
+                    offset += count;
+                    length -= count;
+                    // 長さの項目を読んで目標が伸びた場合は、続けて読み込みます
+                    if (headerFill == target && headerTarget() == target && !parseHeader()) return fail();
+                }
+                while (length > 0) {
+                    if (done) return fail(); // 最後のセグメントの後ろに余計なデータがあります
+                    if (segmentFill == 0 && length >= expected) {
+                        // セグメントがチャンクの中に収まっている場合は、コピーせずにそのまま復号します
+                        int count = expected;
+                        if (!openSegment(data, offset)) return fail();
+                        offset += count;
+                        length -= count;
+                    } else {
+                        int count = Math.min(expected - segmentFill, length);
+                        System.arraycopy(data, offset, segment, segmentFill, count);
+                        segmentFill += count;
+                        offset += count;
+                        length -= count;
+                        if (segmentFill == expected) {
+                            segmentFill = 0;
+                            if (!openSegment(segment, 0)) return fail();
+                        }
+                    }
+                }
+                return true;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "分割暗号化メッセージの解析に失敗しました", e);
+                return fail();
+            }
+        }
+
+        /**
+         * 最後のセグメントまで復号できたかを返します。
+         */
+        public boolean isComplete() {
+            return done && !failed;
+        }
+
+        /**
+         * すべてのセグメントを復号できていれば、ラチェットを進めて結果を返します。
+         *
+         * @return 復号結果。途中で終わっている、または失敗した場合はnull
+         */
+        public Decrypted finish() {
+            if (failed || !done) {
+                fail();
+                return null;
+            }
+            // すべてのセグメントを認証できた時だけラチェットを進めます
+            session.ratchet.commit(counter);
+            markCapable(senderId);
+            Arrays.fill(messageKey, (byte) 0);
+            messageKey = null;
+            failed = true; // 2回目以降の呼び出しではnullを返します
+            return new Decrypted(plaintext, sessionId, session.ackTag);
+        }
+
+        /**
+         * 途中で受け取りをやめたメッセージの状態を破棄し、予約したメッセージ番号を解放します。
+         */
+        public void abort() {
+            fail();
+        }
+
+        /**
+         * ヘッダーとして必要な長さを、今わかっている範囲で返します。
+         */
+        private int headerTarget() {
+            if (headerFill < 1) return 1;
+            if (header[0] == ENVELOPE_STREAM_SESSION) return 1 + 8 + 4 + STREAM_FIELDS_SIZE;
+            if (header[0] != ENVELOPE_STREAM_INIT) return Integer.MAX_VALUE;
+            int position = 1 + 8;
+            if (headerFill < position + 2) return position + 2;
+            position += 2 + readShort(header, position);
+            if (headerFill < position + 2) return position + 2;
+            position += 2 + readShort(header, position);
+            return position + 4 + STREAM_FIELDS_SIZE;
+        }
+
+        private boolean parseHeader() {
+            boolean init = header[0] == ENVELOPE_STREAM_INIT;
+            ByteBuffer buffer = ByteBuffer.wrap(header, 1, headerFill - 1);
+            sessionId = buffer.getLong();
+            session = getInboundSession(sessionId, senderId);
+            if (session == null) {
+                if (!init) {
+                    Log.w(TAG, "不明なセッションのメッセージを受信しました");
+                    return false;
+                }
+                session = acceptInit(buffer, sessionId, senderId, localHash, privateKey, friendKeys);
+                if (session == null) return false;
+            } else if (init) {
+                skipInitHeader(buffer);
+            }
+
+            counter = buffer.getInt();
+            int plainLength = buffer.getInt();
+            segmentSize = buffer.getShort() & 0xFFFF;
+            int overhead = EncryptionManager.getSegmentOverhead();
+            if (counter < 0 || plainLength < 0 || plainLength > MAX_STREAM_LENGTH || segmentSize <= overhead) return false;
+            // 確定（finish）か失敗（fail）まで、同じ番号を他のスレッドで復号させません
+            messageKey = session.ratchet.reserve(counter);
+            if (messageKey == null) {
+                Log.w(TAG, "メッセージ鍵が見つかりません（再送、古すぎる、または復号中のメッセージ）");
+                return false;
+            }
+            aad = streamAad(sessionId, counter, plainLength);
+            plaintext = new byte[plainLength];
+            int first = firstSegmentSize(headerFill, segmentSize);
+            segment = new byte[Math.max(first, segmentSize)];
+            expected = Math.min(first - overhead, plainLength) + overhead;
+            return true;
+        }
+
+        private boolean openSegment(byte[] data, int offset) {
+            int overhead = EncryptionManager.getSegmentOverhead();
+            int length = expected - overhead;
+            boolean last = plainWritten + length == plaintext.length;
+            if (EncryptionManager.openSegment(data, offset, expected, messageKey, aad, segmentIndex, last,
+                    plaintext, plainWritten) != length) {
+                return false;
+            }
+            plainWritten += length;
+            segmentIndex++;
+            done = last;
+            expected = Math.min(segmentSize - overhead, plaintext.length - plainWritten) + overhead;
+            return true;
+        }
+
+        private boolean fail() {
+            failed = true;
+            if (messageKey != null) {
+                Arrays.fill(messageKey, (byte) 0);
+                messageKey = null;
+                session.ratchet.release(counter);
+            }
+            plaintext = null;
+            segment = null;
+            return false;
+        }
+    }
+
+    /**
+     * セッション形式の暗号文を復号します。
+     *
+     * @param senderId  送信元のID（完全なハッシュ、または短縮ID）
+     * @param localHash 自分のIDハッシュ（開始メッセージの署名の確認に使います）
+     * @return 復号結果。鍵が分からない、署名が正しくない、改ざんされている場合はnull
+     */
+    public Decrypted decrypt(byte[] data, int offset, int length, byte[] senderId, byte[] localHash,
+                             PrivateKey privateKey, FriendKeyIndex friendKeys) {
+        try {
+            boolean init;
+            ByteBuffer buffer;
+            byte kind = data[offset];
+            if (isStreamEnvelope(kind)) {
+                // 全体がまとめて届いた分割暗号化のメッセージ（順番に受け渡せなかった場合）
+                InboundStream stream = openStream(senderId, localHash, privateKey, friendKeys);
+                return stream.update(data, offset, length) ? stream.finish() : null;
+            }
+            boolean implicitIv = kind == ENVELOPE_SESSION_IMPLICIT_IV;
+            if (kind == ENVELOPE_INIT || kind == ENVELOPE_SESSION || implicitIv) {
+                init = kind == ENVELOPE_INIT;
+                buffer = ByteBuffer.wrap(data, offset + 1, length - 1);
+            } else {
+                // 以前のBase64文字列形式
+                init = startsWith(data, offset, length, PREFIX_INIT);
+                byte[] decoded = Base64.decode(data, offset + PREFIX_INIT.length, length - PREFIX_INIT.length, Base64.NO_WRAP);
+                buffer = ByteBuffer.wrap(decoded);
+            }
+            if (buffer.remaining() < 8) return null;
+            long sessionId = buffer.getLong();
+
+            InboundSession session = getInboundSession(sessionId, senderId);
+            if (session == null) {
+                if (!init) {
+                    Log.w(TAG, "不明なセッションのメッセージを受信しました");
+                    return null;
+                }
+                session = acceptInit(buffer, sessionId, senderId, localHash, privateKey, friendKeys);
+                if (session == null) return null;
+            } else if (init) {
+                skipInitHeader(buffer);
+            }
+
+            int counter = buffer.getInt();
+            if (counter < 0) return null;
+            // 鍵の取り出しから確定までの間、同じ番号を他のスレッドで復号させません
+            byte[] messageKey = session.ratchet.reserve(counter);
+            if (messageKey == null) {
+                Log.w(TAG, "メッセージ鍵が見つかりません（再送、古すぎる、または復号中のメッセージ）");
+                return null;
+            }
+            byte[] plaintext = null;
+            try {
+                byte[] aad = messageAad(sessionId, counter);
+                plaintext = implicitIv
+                        ? EncryptionManager.open(buffer.array(), buffer.position(), buffer.remaining(), messageKey, aad,
+                                EncryptionManager.counterIv(0, counter))
+                        : EncryptionManager.decryptBytes(buffer.array(), buffer.position(), buffer.remaining(), messageKey, aad);
+            } finally {
+                Arrays.fill(messageKey, (byte) 0);
+                // 復号できた時だけラチェットを進め、失敗した番号は後から届く本物のために戻します
+                if (plaintext != null) {
+                    session.ratchet.commit(counter);
+                } else {
+                    session.ratchet.release(counter);
+                }
+            }
+            if (plaintext == null) return null;
+            markCapable(senderId);
+            return new Decrypted(plaintext, sessionId, session.ackTag);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "セッションメッセージの解析に失敗しました", e);
+            return null;
+        }
+    }
+
+    private synchronized OutboundSession getOutboundSession(FriendKeyIndex.Entry dest, PrivateKey privateKey) {
+        long now = System.currentTimeMillis();
+        OutboundSession session = outbound.get(dest.getIdentityAddress());
+        if (session != null && session.ratchet.getCounter() < MAX_MESSAGES_PER_SESSION
+                && now - session.createdAt < SESSION_LIFETIME_MS) {
+            return session;
+        }
+
+        // 新しいセッション：AESキーを相手の公開鍵（RSA、または楕円曲線ならECIES）で包み、(目印・宛先・ID・包んだキー) に署名します
+        long id = CryptoContext.random().nextLong();
+        byte[] key = EncryptionManager.generateRandomKey();
+        byte[] wrappedKey = EncryptionManager.wrapKey(key, dest.getPublicKey());
+        if (wrappedKey == null) return null;
+        byte[] signature = EncryptionManager.signData(initSignedData(dest.getHash(), id, wrappedKey), privateKey);
+        if (signature == null) return null;
+
+        byte[] initHeader = ByteBuffer.allocate(8 + 2 + wrappedKey.length + 2 + signature.length)
+                .putLong(id)
+                .putShort((short) wrappedKey.length).put(wrappedKey)
+                .putShort((short) signature.length).put(signature)
+                .array();
+        session = new OutboundSession(id, new SymmetricRatchet.Sender(SymmetricRatchet.initialChainKey(key, id)),
+                initHeader, ackTag(key, id), now);
+        Arrays.fill(key, (byte) 0);
+        outbound.put(dest.getIdentityAddress(), session);
+        return session;
+    }
+
+    private synchronized InboundSession getInboundSession(long sessionId, byte[] senderId) {
+        InboundSession session = inbound.get(sessionId);
+        if (session == null) return null;
+        if (System.currentTimeMillis() - session.createdAt >= INBOUND_LIFETIME_MS) {
+            inbound.remove(sessionId);
+            return null;
+        }
+        // 他の相手のセッションIDを名乗ったメッセージは受け付けません
+        if (!IdentityManager.matchesId(session.peerId, senderId)
+                && !IdentityManager.matchesId(senderId, session.peerId)) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * 開始メッセージを検証し、包まれたキーを取り出して受信用セッションとして記憶します。
+     * 秘密鍵の処理（RSA復号）より先に、安価な署名の確認を済ませます。
+     */
+    private InboundSession acceptInit(ByteBuffer buffer, long sessionId, byte[] senderId, byte[] localHash,
+                                      PrivateKey privateKey, FriendKeyIndex friendKeys) {
+        byte[] wrappedKey = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(wrappedKey);
+        byte[] signature = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(signature);
+
+        // 短縮IDの衝突に備えて、当てはまる友達全員の公開鍵で署名を試します
+        byte[] signedData = initSignedData(localHash, sessionId, wrappedKey);
+        List<FriendKeyIndex.Entry> candidates = friendKeys.findCandidates(senderId);
+        byte[] peerId = senderId;
+        if (!candidates.isEmpty()) {
+            FriendKeyIndex.Entry signer = null;
+            for (FriendKeyIndex.Entry candidate : candidates) {
+                if (EncryptionManager.verifySignature(signedData, signature, candidate.getPublicKey())) {
+                    signer = candidate;
+                    break;
+                }
+            }
+            if (signer == null) {
+                Log.w(TAG, "セッション開始メッセージの署名が正しくありません");
+                return null;
+            }
+            peerId = signer.getHash();
+        }
+
+        byte[] key = EncryptionManager.unwrapKey(wrappedKey, privateKey);
+        if (key == null) return null;
+        SymmetricRatchet.Receiver ratchet = new SymmetricRatchet.Receiver(SymmetricRatchet.initialChainKey(key, sessionId));
+        byte[] ackTag = ackTag(key, sessionId);
+        Arrays.fill(key, (byte) 0);
+        InboundSession session = new InboundSession(ratchet, peerId, ackTag, System.currentTimeMillis());
+        synchronized (this) {
+            // 同じセッションの開始メッセージが並列に復号された場合は、先に登録された方を使います
+            InboundSession existing = inbound.get(sessionId);
+            if (existing != null && Arrays.equals(existing.peerId, peerId)) return existing;
+            inbound.put(sessionId, session);
+        }
+        return session;
+    }
+
+    private static void skipInitHeader(ByteBuffer buffer) {
+        // 長さを読んでから位置を取ります（同じ式の中で読むと、長さの2バイト分だけ手前を指してしまいます）
+        int wrappedKeyLength = buffer.getShort() & 0xFFFF;
+        buffer.position(buffer.position() + wrappedKeyLength);
+        int signatureLength = buffer.getShort() & 0xFFFF;
+        buffer.position(buffer.position() + signatureLength);
+    }
+
+    private static byte[] initSignedData(byte[] recipientHash, long sessionId, byte[] wrappedKey) {
+        return ByteBuffer.allocate(INIT_LABEL.length + recipientHash.length + 8 + wrappedKey.length)
+                .put(INIT_LABEL).put(recipientHash).putLong(sessionId).put(wrappedKey)
+                .array();
+    }
+
+    /**
+     * 受信確認の確認値を、セッション鍵とセッションIDから導出します。
+     * セッション鍵を知っている送信者と受信者だけが計算できるため、ACKの送り主がセッションの受信者であることを確認できます。
+     */
+    private static byte[] ackTag(byte[] sessionKey, long sessionId) {
+        byte[] salt = ByteBuffer.allocate(8).putLong(sessionId).array();
+        return SymmetricRatchet.hkdf(salt, sessionKey, ACK_INFO, ACK_TAG_SIZE);
+    }
+
+    private static byte[] messageAad(long sessionId, int counter) {
+        return ByteBuffer.allocate(8 + 4).putLong(sessionId).putInt(counter).array();
+    }
+
+    // 平文の長さも認証するため、途中で切り詰められたメッセージは最後のセグメントで検出できます
+    private static byte[] streamAad(long sessionId, int counter, int plaintextLength) {
+        return ByteBuffer.allocate(8 + 4 + 4).putLong(sessionId).putInt(counter).putInt(plaintextLength).array();
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+}
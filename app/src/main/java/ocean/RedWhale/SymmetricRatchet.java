@@ -0,0 +1,203 @@
+package ocean.RedWhale;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * セッション鍵から、メッセージ毎に使い捨ての鍵を作る「対称鍵ラチェット」です。
+ *
+ * チェーン鍵 CK からメッセージ鍵 MK = HMAC(CK, 0x01) と次のチェーン鍵 CK' = HMAC(CK, 0x02) を作り、
+ * 使い終わった CK は捨てます。HMACは一方向なので、端末から現在の鍵が漏れても
+ * 過去のメッセージ鍵は計算できません（前方秘匿性）。
+ * メッセージ毎のコストはHMAC 2回だけで、公開鍵暗号の処理は不要です。
+ *
+ * メッシュでは順番が入れ替わって届くことがあるため、受信側は飛ばしたメッセージ鍵を
+ * 上限付きでしばらく保持します。
+ */
+public final class SymmetricRatchet {
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] MESSAGE_KEY_INPUT = {0x01};
+    private static final byte[] CHAIN_KEY_INPUT = {0x02};
+    private static final byte[] CHAIN_INFO = "RedWhale-chain-v1".getBytes();
+    public static final int KEY_SIZE = 32;
+
+    // 1度に飛ばせるメッセージ数と、保持しておく飛ばした鍵の数の上限
+    static final int MAX_SKIP = 256;
+    static final int MAX_SKIPPED_KEYS = 64;
+
+    private SymmetricRatchet() {
+    }
+
+    /**
+     * HKDF（RFC 5869、HMAC-SHA256）で鍵を導出します。
+     */
+    public static byte[] hkdf(byte[] salt, byte[] inputKey, byte[] info, int length) {
+        try {
+            Mac mac = CryptoContext.get().hmac();
+            // Extract
+            mac.init(new SecretKeySpec(salt != null && salt.length > 0 ? salt : new byte[KEY_SIZE], HMAC_ALGORITHM));
+            byte[] prk = mac.doFinal(inputKey);
+            // Expand
+            mac.init(new SecretKeySpec(prk, HMAC_ALGORITHM));
+            byte[] output = new byte[length];
+            byte[] block = new byte[0];
+            int written = 0;
+            for (int i = 1; written < length; i++) {
+                mac.update(block);
+                if (info != null) mac.update(info);
+                mac.update((byte) i);
+                block = mac.doFinal();
+                int count = Math.min(block.length, length - written);
+                System.arraycopy(block, 0, output, written, count);
+                written += count;
+            }
+            return output;
+        } catch (Exception e) {
+            throw new IllegalStateException("HKDFの計算に失敗しました", e);
+        }
+    }
+
+    /**
+     * セッション鍵とセッションIDから、最初のチェーン鍵を導出します。
+     */
+    public static byte[] initialChainKey(byte[] sessionKey, long sessionId) {
+        byte[] salt = ByteBuffer.allocate(8).putLong(sessionId).array();
+        return hkdf(salt, sessionKey, CHAIN_INFO, KEY_SIZE);
+    }
+
+    private static byte[] hmac(byte[] key, byte[] input) {
+        try {
+            Mac mac = CryptoContext.get().hmac();
+            mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+            return mac.doFinal(input);
+        } catch (Exception e) {
+            throw new IllegalStateException("HMACの計算に失敗しました", e);
+        }
+    }
+
+    /**
+     * 送信側のチェーンです。
+     */
+    public static final class Sender {
+        private byte[] chainKey;
+        private int counter;
+
+        public Sender(byte[] initialChainKey) {
+            this.chainKey = initialChainKey;
+        }
+
+        /**
+         * 次のメッセージ鍵を作ってチェーンを1つ進めます。
+         *
+         * @param messageKeyOut メッセージ鍵を受け取る配列（KEY_SIZEバイト）
+         * @return そのメッセージ鍵のメッセージ番号
+         */
+        public synchronized int next(byte[] messageKeyOut) {
+            byte[] messageKey = hmac(chainKey, MESSAGE_KEY_INPUT);
+            System.arraycopy(messageKey, 0, messageKeyOut, 0, KEY_SIZE);
+            Arrays.fill(messageKey, (byte) 0);
+            byte[] old = chainKey;
+            chainKey = hmac(chainKey, CHAIN_KEY_INPUT);
+            Arrays.fill(old, (byte) 0);
+            return counter++;
+        }
+
+        public synchronized int getCounter() {
+            return counter;
+        }
+    }
+
+    /**
+     * 受信側のチェーンです。
+     * 鍵の取り出し（lookup / reserve）と確定（commit）を分けているため、
+     * 復号に失敗した（偽物の）メッセージでチェーンが進んでしまうことはありません。
+     * 複数のスレッドで復号する場合は reserve を使い、同じ番号を2回復号しないようにします。
+     */
+    public static final class Receiver {
+        private byte[] chainKey;
+        private int nextCounter;
+        // 飛ばしたメッセージ番号 → メッセージ鍵（古いものから捨てます）
+        private final Map<Integer, byte[]> skippedKeys = new LinkedHashMap<>();
+        // reserve 済みで、commit / release を待っているメッセージ番号
+        private final Set<Integer> reserved = new HashSet<>();
+
+        public Receiver(byte[] initialChainKey) {
+            this.chainKey = initialChainKey;
+        }
+
+        /**
+         * メッセージ番号に対応する鍵を、状態を変えずに求めます。
+         *
+         * @return メッセージ鍵（呼び出し側で消去してかまいません）。既に使った番号や、先に進みすぎた番号の場合はnull
+         */
+        public synchronized byte[] lookup(int counter) {
+            if (counter < nextCounter) {
+                byte[] skipped = skippedKeys.get(counter);
+                return skipped != null ? skipped.clone() : null;
+            }
+            if (counter - nextCounter > MAX_SKIP) return null;
+            byte[] key = chainKey;
+            for (int i = nextCounter; i < counter; i++) {
+                key = hmac(key, CHAIN_KEY_INPUT);
+            }
+            return hmac(key, MESSAGE_KEY_INPUT);
+        }
+
+        /**
+         * lookup と同じ鍵を求め、commit か release を呼ぶまで同じ番号を他の呼び出しに渡さないようにします。
+         * 並列に復号している同じ番号のメッセージ（再送）が、両方とも受け付けられることを防ぎます。
+         *
+         * @return メッセージ鍵。使えない番号か、他で復号中の番号の場合はnull
+         */
+        public synchronized byte[] reserve(int counter) {
+            if (reserved.contains(counter)) return null;
+            byte[] key = lookup(counter);
+            if (key != null) reserved.add(counter);
+            return key;
+        }
+
+        /**
+         * 復号に失敗した番号の予約を取り消し、後から届く本物のメッセージで使えるようにします。
+         */
+        public synchronized void release(int counter) {
+            reserved.remove(counter);
+        }
+
+        /**
+         * 復号に成功したメッセージ番号まで状態を進め、間の鍵を保存します。
+         */
+        public synchronized void commit(int counter) {
+            reserved.remove(counter);
+            if (counter < nextCounter) {
+                byte[] used = skippedKeys.remove(counter);
+                if (used != null) Arrays.fill(used, (byte) 0);
+                return;
+            }
+            while (nextCounter <= counter) {
+                byte[] messageKey = hmac(chainKey, MESSAGE_KEY_INPUT);
+                byte[] old = chainKey;
+                chainKey = hmac(chainKey, CHAIN_KEY_INPUT);
+                Arrays.fill(old, (byte) 0);
+                if (nextCounter < counter) {
+                    skippedKeys.put(nextCounter, messageKey);
+                } else {
+                    Arrays.fill(messageKey, (byte) 0);
+                }
+                nextCounter++;
+            }
+            Iterator<byte[]> it = skippedKeys.values().iterator();
+            while (skippedKeys.size() > MAX_SKIPPED_KEYS && it.hasNext()) {
+                Arrays.fill(it.next(), (byte) 0);
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ocean.RedWhale;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 1メッセージあたりの暗号処理のコストを、変更前と変更後で比べる簡易ベンチマークです。
+ * 開発マシン（ホスト）のJVM上で実行され、結果を標準出力に表示します。
+ * 時間がかかり、結果も実行環境に左右されるため、環境変数 REDWHALE_BENCHMARK を設定した時だけ実行します。
+ *
+ * 実行例: REDWHALE_BENCHMARK=1 ./gradlew :app:testDebugUnitTest --tests ocean.RedWhale.CryptoBenchmarkTest -i
+ */
+public class CryptoBenchmarkTest {
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 20000;
+    // RSAを使う処理は遅いため、回数を減らして計測します
+    private static final int RSA_ITERATIONS = 200;
+
+    private static final byte[] MESSAGE = "こんにちは、RedWhaleのメッシュネットワークです".getBytes();
+
+    @Before
+    public void requireBenchmarkEnabled() {
+        assumeTrue(System.getenv("REDWHALE_BENCHMARK") != null);
+    }
+
+    @Test
+    public void aesGcm_perMessage() throws Exception {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+
+        long before = measure(ITERATIONS, () -> encryptUncached(MESSAGE, key));
+
+        ByteBuffer out = ByteBuffer.allocate(EncryptionManager.getEncryptedSize(MESSAGE.length));
+        long[] counter = {0};
+        long after = measure(ITERATIONS, () -> {
+            out.clear();
+            EncryptionManager.encryptTo(MESSAGE, 0, MESSAGE.length, key, null,
+                    EncryptionManager.counterIv(0, counter[0]++), out);
+        });
+
+        report("AES-GCM 暗号化（getInstance・SecureRandom毎回 → スレッド毎に再利用・カウンターIV）", before, after);
+
+        // 再利用したCipherで正しく暗号化・復号できることも確認します
+        byte[] sealed = EncryptionManager.encryptBytes(MESSAGE, key, null);
+        assertArrayEquals(MESSAGE, EncryptionManager.decryptBytes(sealed, 0, sealed.length, key, null));
+    }
+
+    @Test
+    public void envelope_perMessage() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair sender = kpg.generateKeyPair();
+        KeyPair recipient = kpg.generateKeyPair();
+
+        // 変更前：メッセージ毎にAESキーを作り、RSAで包んで、RSAで署名します
+        long before = measure(RSA_ITERATIONS, () -> {
+            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+            keyGen.init(256);
+            byte[] aesKey = keyGen.generateKey().getEncoded();
+            encryptUncached(MESSAGE, aesKey);
+            Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+            rsa.init(Cipher.ENCRYPT_MODE, recipient.getPublic());
+            rsa.doFinal(aesKey);
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(sender.getPrivate());
+            signature.update(MESSAGE);
+            signature.sign();
+        });
+
+        // 変更後：セッション確立後は、ラチェットを1つ進めてAES-GCMで暗号化するだけです
+        SymmetricRatchet.Sender ratchet = new SymmetricRatchet.Sender(
+                SymmetricRatchet.initialChainKey(EncryptionManager.generateRandomKey(), 1L));
+        byte[] messageKey = new byte[SymmetricRatchet.KEY_SIZE];
+        ByteBuffer out = ByteBuffer.allocate(EncryptionManager.getEncryptedSize(MESSAGE.length));
+        long after = measure(ITERATIONS, () -> {
+            int counter = ratchet.next(messageKey);
+            out.clear();
+            EncryptionManager.encryptTo(MESSAGE, 0, MESSAGE.length, messageKey, null,
+                    EncryptionManager.counterIv(0, counter), out);
+        });
+
+        report("送信1件あたり（RSAで鍵を包み署名 → セッション鍵のラチェット + AES-GCM）", before, after);
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * ウォームアップの後に iterations 回実行し、1回あたりの時間（ナノ秒）を返します。
+     */
+    private static long measure(int iterations, Task task) throws Exception {
+        for (int i = 0; i < Math.min(WARMUP, iterations); i++) task.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) task.run();
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    private static void report(String name, long beforeNanos, long afterNanos) {
+        System.out.printf("%s%n  変更前: %,d ns/件  変更後: %,d ns/件  (%.1f倍)%n",
+                name, beforeNanos, afterNanos, (double) beforeNanos / Math.max(1, afterNanos));
+    }
+
+    /**
+     * 変更前の EncryptionManager.encrypt と同じく、呼び出しの度にCipherとSecureRandomを作って暗号化します。
+     */
+    private static byte[] encryptUncached(byte[] plaintext, byte[] key) throws Exception {
+        byte[] iv = new byte[12];
+        new SecureRandom().nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, iv));
+        return cipher.doFinal(plaintext);
+    }
+}
@@ -0,0 +1,108 @@
+package ocean.RedWhale;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * 重複排除（LongHashSet・DuplicateFilter・MessageRouter のキー）のテストです。
+ */
+public class DuplicateFilterTest {
+
+    @Test
+    public void longHashSet_addContainsAndClear() {
+        LongHashSet set = new LongHashSet(8);
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertTrue(set.contains(42));
+        assertFalse(set.contains(43));
+
+        // 0は空きの印と同じ値なので、別に扱われること
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertTrue(set.contains(0));
+        assertFalse(set.add(0));
+        assertEquals(2, set.size());
+
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(42));
+        assertFalse(set.contains(0));
+    }
+
+    @Test
+    public void longHashSet_refusesWhenFull() {
+        LongHashSet set = new LongHashSet(4);
+        for (long i = 1; i <= 4; i++) assertTrue(set.add(i * 1000003));
+        assertTrue(set.isFull());
+        assertFalse(set.add(99));
+        assertFalse(set.contains(99));
+        // 満杯でも、既にある値の検索はできること
+        assertTrue(set.contains(4 * 1000003));
+    }
+
+    @Test
+    public void duplicateFilter_remembersWithinWindow() {
+        DuplicateFilter filter = new DuplicateFilter(1000, 16);
+        assertTrue(filter.addIfAbsent(7, 0));
+        assertFalse(filter.addIfAbsent(7, 500));
+        // 1世代分の時間が過ぎても、1つ前の世代として覚えていること
+        assertFalse(filter.addIfAbsent(7, 1500));
+    }
+
+    @Test
+    public void duplicateFilter_forgetsAfterTwoGenerations() {
+        DuplicateFilter filter = new DuplicateFilter(1000, 16);
+        filter.add(7, 0);
+        assertTrue(filter.contains(7, 1000));   // 入れ替え後は1つ前の世代にあります
+        assertFalse(filter.contains(7, 2000));  // もう1度入れ替わると忘れます
+        assertTrue(filter.addIfAbsent(7, 2000));
+    }
+
+    @Test
+    public void duplicateFilter_rollsOverWhenFull() {
+        DuplicateFilter filter = new DuplicateFilter(60000, 4);
+        for (long id = 1; id <= 4; id++) filter.add(id, 0);
+        // 満杯になった世代は、時間内でも入れ替わり、直前の世代として残ります
+        filter.add(5, 1);
+        for (long id = 1; id <= 5; id++) assertTrue("id " + id, filter.contains(id, 1));
+        for (long id = 6; id <= 9; id++) filter.add(id, 2);
+        // 2回入れ替わった最初の世代（1〜4）は忘れ、メモリ使用量は一定のままです
+        for (long id = 1; id <= 4; id++) assertFalse("id " + id, filter.contains(id, 2));
+        for (long id = 5; id <= 9; id++) assertTrue("id " + id, filter.contains(id, 2));
+    }
+
+    @Test
+    public void packetKey_usesWholeSourceId() {
+        // 先頭16ビットが同じ送信元が、同じmsgIdを使っても別のキーになること
+        long a = 0x1234000000000001L;
+        long b = 0x1234000000000002L;
+        assertNotEquals(MessageRouter.packetKey(a, 5, 0), MessageRouter.packetKey(b, 5, 0));
+        assertNotEquals(MessageRouter.messageKey(a, 5), MessageRouter.messageKey(b, 5));
+    }
+
+    @Test
+    public void packetKey_distinctAcrossMessagesAndChunks() {
+        Set<Long> keys = new HashSet<>();
+        long src = 0x0102030405060708L;
+        for (int msgId = -2; msgId <= 2; msgId++) {
+            for (int chunk = 0; chunk < 64; chunk++) {
+                assertTrue(keys.add(MessageRouter.packetKey(src, msgId, chunk)));
+            }
+            assertTrue(keys.add(MessageRouter.packetKey(src, msgId, 0xFFFF)));
+            // メッセージ全体のキーは、どのチャンク番号（0xFFFFを含む）のキーとも重ならないこと
+            assertTrue(keys.add(MessageRouter.messageKey(src, msgId)));
+        }
+    }
+
+    @Test
+    public void packetKey_treatsChunkIndexAsUnsigned() {
+        // ヘッダーから読んだ short のチャンク番号をそのまま渡しても、符号なしの番号と同じキーになること
+        short chunkIndex = (short) 0xFFFF;
+        assertEquals(MessageRouter.packetKey(9, 1, 0xFFFF), MessageRouter.packetKey(9, 1, chunkIndex));
+        assertNotEquals(MessageRouter.messageKey(9, 1), MessageRouter.packetKey(9, 1, chunkIndex));
+    }
+}
@@ -0,0 +1,130 @@
+package ocean.RedWhale;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * LinkAuthenticator のテストです。
+ * 鍵交換の手順、タグの付与と確認、改ざん・再送の拒否、タグを必須にする時機を確認します。
+ */
+public class LinkAuthenticatorTest {
+
+    // 相手のMACアドレス（クライアントから見たサーバーと、その逆）
+    private static final String SERVER = "00:00:00:00:00:01";
+    private static final String CLIENT = "00:00:00:00:00:02";
+    private static final byte[] FRAME = "フレーム".getBytes();
+
+    private LinkAuthenticator client;
+    private LinkAuthenticator server;
+
+    @Before
+    public void setUp() {
+        client = new LinkAuthenticator();
+        server = new LinkAuthenticator();
+    }
+
+    /**
+     * 鍵交換を最後まで行い、両方向でタグを付け始めた状態にします。
+     */
+    private void handshake(long nowMillis) {
+        byte[] clientPublic = client.begin(SERVER, true);
+        assertNotNull(server.begin(CLIENT, false));
+        assertTrue(server.derive(CLIENT, clientPublic));
+        assertTrue(client.derive(SERVER, server.getPublicKey(CLIENT)));
+        assertTrue(server.acceptConfirmation(CLIENT, client.confirmation(SERVER), nowMillis));
+        client.activate(SERVER, nowMillis);
+    }
+
+    @Test
+    public void sealedFrames_openOnTheOtherSide() {
+        handshake(0);
+        byte[] sealed = client.seal(SERVER, FRAME);
+        assertEquals(FRAME.length + LinkAuthenticator.SEAL_OVERHEAD, sealed.length);
+        assertEquals(FRAME.length, server.open(CLIENT, sealed, 0));
+        assertArrayEquals(FRAME, Arrays.copyOf(sealed, FRAME.length));
+
+        // 逆方向は別の鍵です
+        byte[] reply = server.seal(CLIENT, FRAME);
+        assertEquals(FRAME.length, client.open(SERVER, reply, 0));
+        assertEquals(-1, server.open(CLIENT, server.seal(CLIENT, FRAME), 0));
+    }
+
+    @Test
+    public void tamperedFrame_isRejected() {
+        handshake(0);
+        assertEquals(FRAME.length, server.open(CLIENT, client.seal(SERVER, FRAME).clone(), 0));
+        byte[] sealed = client.seal(SERVER, FRAME).clone();
+        sealed[0] ^= 1;
+        assertEquals(-1, server.open(CLIENT, sealed, 0));
+        // 番号を書き換えたものも、タグが合わないため拒否します
+        sealed = client.seal(SERVER, FRAME).clone();
+        sealed[FRAME.length] ^= 1;
+        assertEquals(-1, server.open(CLIENT, sealed, 0));
+    }
+
+    @Test
+    public void replayedFrame_isRejected() {
+        handshake(0);
+        byte[] first = client.seal(SERVER, FRAME).clone();
+        byte[] second = client.seal(SERVER, FRAME).clone();
+        assertEquals(FRAME.length, server.open(CLIENT, second, 0));
+        // 同じフレームの再送や、番号が前のフレームは受け付けません
+        assertEquals(-1, server.open(CLIENT, second, 0));
+        assertEquals(-1, server.open(CLIENT, first, 0));
+        assertEquals(FRAME.length, server.open(CLIENT, client.seal(SERVER, FRAME), 0));
+    }
+
+    @Test
+    public void untaggedFrames_acceptedOnlyDuringGracePeriod() {
+        handshake(1000);
+        // 切り替えの瞬間に行き違ったフレームは、猶予の間だけ受け入れます
+        assertEquals(FRAME.length, server.open(CLIENT, FRAME, 1000 + LinkAuthenticator.GRACE_PERIOD_MS - 1));
+        assertEquals(-1, server.open(CLIENT, FRAME, 1000 + LinkAuthenticator.GRACE_PERIOD_MS));
+    }
+
+    @Test
+    public void untaggedFrames_rejectedAfterFirstTaggedFrame() {
+        handshake(0);
+        assertEquals(FRAME.length, server.open(CLIENT, client.seal(SERVER, FRAME), 0));
+        assertEquals(-1, server.open(CLIENT, FRAME, 0));
+    }
+
+    @Test
+    public void incompleteHandshake_keepsLegacyBehaviour() {
+        // 鍵を導出しただけで確認が済んでいないリンクは、時間が経ってもタグなしで通信します
+        byte[] clientPublic = client.begin(SERVER, true);
+        server.begin(CLIENT, false);
+        assertTrue(server.derive(CLIENT, clientPublic));
+        assertSame(FRAME, server.seal(CLIENT, FRAME));
+        assertEquals(FRAME.length, server.open(CLIENT, FRAME, Long.MAX_VALUE / 2));
+
+        // 交換に対応していない相手とのリンク
+        assertSame(FRAME, client.seal("00:00:00:00:00:03", FRAME));
+        assertEquals(FRAME.length, client.open("00:00:00:00:00:03", FRAME, 0));
+    }
+
+    @Test
+    public void wrongConfirmation_isRejected() {
+        byte[] clientPublic = client.begin(SERVER, true);
+        server.begin(CLIENT, false);
+        assertTrue(server.derive(CLIENT, clientPublic));
+        assertTrue(client.derive(SERVER, server.getPublicKey(CLIENT)));
+        byte[] confirmation = client.confirmation(SERVER);
+        confirmation[0] ^= 1;
+        assertFalse(server.acceptConfirmation(CLIENT, confirmation, 0));
+        assertSame(FRAME, server.seal(CLIENT, FRAME));
+    }
+
+    @Test
+    public void sealBuffer_isReusedForSameLength() {
+        handshake(0);
+        byte[] first = client.seal(SERVER, FRAME);
+        byte[] second = client.seal(SERVER, FRAME);
+        assertSame(first, second);
+        assertNotSame(second, client.seal(SERVER, Arrays.copyOf(FRAME, FRAME.length + 1)));
+    }
+}
@@ -0,0 +1,190 @@
+package ocean.RedWhale;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * MessagePacket のエンコードと MessagePacketView の解析のテストです。
+ * 各ヘッダー形式の往復と、途中で切れた・長さが不正なフレームを拒否することを確認します。
+ */
+public class MessagePacketViewTest {
+
+    private static final byte[] PAYLOAD = "こんにちは".getBytes();
+
+    private static MessagePacket newPacket() {
+        byte[] dest = new byte[32];
+        byte[] src = new byte[32];
+        Arrays.fill(dest, (byte) 0x11);
+        Arrays.fill(src, (byte) 0x22);
+        return new MessagePacket(MessagePacket.TYPE_MSG, 0x12345678, (short) 3, (short) 7, dest, src,
+                (byte) 5, 1700000000000L, PAYLOAD);
+    }
+
+    private static void assertSameFields(MessagePacket expected, MessagePacketView view) {
+        assertEquals(expected.type, view.getType());
+        assertEquals(expected.msgId, view.getMsgId());
+        assertEquals(expected.chunkIndex, view.getChunkIndex());
+        assertEquals(expected.totalChunks, view.getTotalChunks());
+        assertEquals(expected.ttl, view.getTtl());
+        assertEquals(expected.timestamp, view.getTimestamp());
+        assertEquals(PAYLOAD.length, view.getPayloadLength());
+        assertTrue(view.isDestinedTo(expected.destHash));
+        assertTrue(view.isSentBy(expected.srcHash));
+        byte[] payload = new byte[view.getPayloadLength()];
+        view.copyPayload(payload, 0);
+        assertArrayEquals(PAYLOAD, payload);
+    }
+
+    @Test
+    public void legacyHeader_roundTrip() {
+        MessagePacket packet = newPacket();
+        MessagePacketView view = new MessagePacketView();
+        assertTrue(view.wrap(packet.toBytes(MessagePacket.VERSION_LEGACY)));
+        assertEquals(MessagePacket.VERSION_LEGACY, view.getVersion());
+        assertEquals(MessagePacket.HASH_SIZE, view.getIdSize());
+        assertSameFields(packet, view);
+    }
+
+    @Test
+    public void compactHeader_roundTrip() {
+        MessagePacket packet = newPacket();
+        packet.compactIds = true;
+        MessagePacketView view = new MessagePacketView();
+        assertTrue(view.wrap(packet.toBytes(MessagePacket.VERSION_COMPACT)));
+        assertEquals(MessagePacket.VERSION_COMPACT, view.getVersion());
+        assertEquals(MessagePacket.COMPACT_ID_SIZE, view.getIdSize());
+        assertSameFields(packet, view);
+    }
+
+    @Test
+    public void extendedHeader_roundTripWithExtensions() {
+        MessagePacket packet = newPacket();
+        packet.compactIds = true;
+        packet.addExtension(0x7F, new byte[]{1, 2, 3});
+        packet.addExtension(0x01, new byte[]{9});
+        byte[] frame = packet.toBytes(MessagePacket.VERSION_EXTENDED);
+        assertEquals(packet.getEncodedLength(MessagePacket.VERSION_EXTENDED), frame.length);
+
+        MessagePacketView view = new MessagePacketView();
+        assertTrue(view.wrap(frame));
+        assertEquals(MessagePacket.VERSION_EXTENDED, view.getVersion());
+        assertSameFields(packet, view);
+        assertEquals(frame.length, view.getFrameLength());
+
+        // 知らない種類の拡張を読み飛ばして、後ろの拡張を見つけられること
+        assertTrue(view.findExtension(0x01));
+        assertEquals(1, view.getExtensionLength());
+        assertEquals(9, view.getByteAt(view.getExtensionOffset()));
+        assertFalse(view.findExtension(0x02));
+
+        MessagePacket parsed = view.toPacket();
+        assertArrayEquals(packet.extensions, parsed.extensions);
+        assertArrayEquals(PAYLOAD, parsed.payload);
+    }
+
+    @Test
+    public void routerMsgIds_areSequentialAndFitThreeVarintBytes() {
+        MessageRouter router = new MessageRouter();
+        int first = router.nextMsgId();
+        assertEquals((first + 1) & MessageRouter.MSG_ID_MASK, router.nextMsgId());
+        assertTrue(MessagePacket.varintSize(first) <= 3);
+        assertEquals(3, MessagePacket.varintSize(MessageRouter.MSG_ID_MASK));
+        assertTrue(MessageRouter.initialMsgId(System.currentTimeMillis()) <= MessageRouter.MSG_ID_MASK);
+    }
+
+    @Test
+    public void directBuffer_roundTrip() {
+        MessagePacket packet = newPacket();
+        byte[] frame = packet.toBytes(MessagePacket.VERSION_EXTENDED);
+        ByteBuffer direct = ByteBuffer.allocateDirect(frame.length);
+        direct.put(frame).flip();
+
+        MessagePacketView view = new MessagePacketView();
+        assertTrue(view.wrap(direct));
+        assertSameFields(packet, view);
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void truncatedFrames_areRejected() {
+        MessagePacketView view = new MessagePacketView();
+        for (byte version : new byte[]{MessagePacket.VERSION_LEGACY, MessagePacket.VERSION_COMPACT, MessagePacket.VERSION_EXTENDED}) {
+            MessagePacket packet = newPacket();
+            packet.compactIds = version != MessagePacket.VERSION_LEGACY;
+            byte[] frame = packet.toBytes(version);
+            // ペイロードの途中までしかないフレームも含め、1バイトでも足りなければ拒否します
+            for (int length = 0; length < frame.length; length++) {
+                assertFalse("v" + version + " length " + length, view.wrap(frame, 0, length));
+            }
+            assertTrue(view.wrap(frame, 0, frame.length));
+        }
+        assertFalse(view.wrap((byte[]) null));
+    }
+
+    @Test
+    public void oversizedPayloadLength_isRejected() {
+        // ペイロード長 0xFFFFFFFF は int にすると -1 になるため、変換前に拒否されること
+        byte[] frame = extendedFrame(0, null, new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}, 4);
+        assertFalse(new MessagePacketView().wrap(frame));
+
+        // 残りのバイト数より1だけ大きいペイロード長
+        frame = extendedFrame(0, null, new byte[]{5}, 4);
+        assertFalse(new MessagePacketView().wrap(frame));
+        frame = extendedFrame(0, null, new byte[]{4}, 4);
+        assertTrue(new MessagePacketView().wrap(frame));
+    }
+
+    @Test
+    public void oversizedExtensionsLength_isRejected() {
+        // 拡張ヘッダーの長さが負になる値・残りを超える値は、どちらも拒否されること
+        byte[] negative = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        assertFalse(new MessagePacketView().wrap(extendedFrame(MessagePacket.FLAG_EXTENSIONS, negative, new byte[]{0}, 0)));
+        byte[] tooLong = {(byte) 0x80, 0x01}; // 128
+        assertFalse(new MessagePacketView().wrap(extendedFrame(MessagePacket.FLAG_EXTENSIONS, tooLong, new byte[]{0}, 16)));
+    }
+
+    @Test
+    public void malformedVarint_isRejected() {
+        // 続きのビットが立ったまま6バイト以上続く可変長整数
+        byte[] frame = {(byte) (MessagePacket.VERSION_MARKER | MessagePacket.VERSION_EXTENDED), 0, MessagePacket.TYPE_MSG,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+        assertFalse(new MessagePacketView().wrap(frame));
+        // チャンク番号が16ビットを超えるもの
+        frame = new byte[]{(byte) (MessagePacket.VERSION_MARKER | MessagePacket.VERSION_EXTENDED), 0, MessagePacket.TYPE_MSG,
+                1, (byte) 0x80, (byte) 0x80, 0x04, 1};
+        assertFalse(new MessagePacketView().wrap(frame));
+    }
+
+    @Test
+    public void unknownVersion_isRejected() {
+        byte[] frame = newPacket().toBytes(MessagePacket.VERSION_LEGACY);
+        frame[0] = (byte) (MessagePacket.VERSION_MARKER | 0x3F);
+        assertFalse(new MessagePacketView().wrap(frame));
+    }
+
+    /**
+     * 短縮IDのv2フレームを、長さのフィールドを直接指定して組み立てます。
+     *
+     * @param extensionsLength 拡張ヘッダーの長さとして書く可変長整数（nullなら書きません）
+     * @param payloadLength    ペイロード長として書く可変長整数
+     * @param trailing         最後に付け足すバイト数（拡張ヘッダーやペイロードの中身）
+     */
+    private static byte[] extendedFrame(int flags, byte[] extensionsLength, byte[] payloadLength, int trailing) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 + trailing);
+        buffer.put((byte) (MessagePacket.VERSION_MARKER | MessagePacket.VERSION_EXTENDED));
+        buffer.put((byte) flags);
+        buffer.put(MessagePacket.TYPE_MSG);
+        buffer.put(new byte[]{1, 0, 1}); // msgId, chunkIndex, totalChunks
+        buffer.put(new byte[MessagePacket.COMPACT_ID_SIZE * 2]);
+        buffer.put((byte) 3);
+        buffer.putLong(0);
+        if (extensionsLength != null) buffer.put(extensionsLength);
+        buffer.put(payloadLength);
+        buffer.put(new byte[trailing]);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
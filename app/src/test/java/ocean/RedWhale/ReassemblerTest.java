@@ -0,0 +1,304 @@
+package ocean.RedWhale;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reassembler のテストです。
+ * 順不同・重複したチャンクの組み立て、不正なチャンクの拒否、バイト数の上限と期限切れ、
+ * 順番に受け渡すメッセージの予算・同時数の上限・中断を確認します。
+ */
+public class ReassemblerTest {
+
+    private static final int CHUNK_SIZE = 4;
+    private static final byte[] SRC = new byte[MessagePacket.HASH_SIZE];
+    private static final byte[] DEST = new byte[MessagePacket.HASH_SIZE];
+
+    private final MessagePacketView view = new MessagePacketView();
+
+    /**
+     * message を CHUNK_SIZE ごとに分けた、index 番目のチャンクのフレームをビューに包みます。
+     */
+    private MessagePacketView chunk(int msgId, byte[] message, int index) {
+        int total = (message.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int start = index * CHUNK_SIZE;
+        byte[] payload = Arrays.copyOfRange(message, start, Math.min(message.length, start + CHUNK_SIZE));
+        return frame(msgId, index, total, payload);
+    }
+
+    private MessagePacketView frame(int msgId, int index, int total, byte[] payload) {
+        MessagePacket packet = new MessagePacket(MessagePacket.TYPE_MSG, msgId, (short) index, (short) total,
+                DEST, SRC, (byte) 3, 0, payload);
+        assertTrue(view.wrap(packet.toBytes(MessagePacket.VERSION_LEGACY)));
+        return view;
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) data[i] = (byte) (i + 1);
+        return data;
+    }
+
+    @Test
+    public void outOfOrderChunks_areReassembled() {
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 16, 1024, 60000);
+        byte[] message = bytes(14); // 4 + 4 + 4 + 2
+        int[] order = {3, 1, 0, 2};
+        Reassembler.Message done = null;
+        for (int i = 0; i < order.length; i++) {
+            done = reassembler.accept(1, chunk(7, message, order[i]), 0);
+            if (i < order.length - 1) assertNull(done);
+        }
+        assertNotNull(done);
+        assertEquals(7, done.getMsgId());
+        assertEquals(message.length, done.getLength());
+        assertArrayEquals(message, Arrays.copyOf(done.getData(), done.getLength()));
+        assertArrayEquals(SRC, done.getSrcHash());
+        // 完成したメッセージの分の予算は解放されます
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(0, reassembler.getReservedBytes());
+    }
+
+    @Test
+    public void duplicateChunks_areIgnored() {
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 16, 1024, 60000);
+        byte[] message = bytes(8);
+        assertNull(reassembler.accept(1, chunk(7, message, 0), 0));
+        assertTrue(reassembler.isPending(1));
+        assertNull(reassembler.accept(1, chunk(7, message, 0), 0));
+        assertNotNull(reassembler.accept(1, chunk(7, message, 1), 0));
+        assertFalse(reassembler.isPending(1));
+        // 完成後に遅れて届いた重複は、新しいメッセージとして組み立てを始めるだけで完成はしません
+        assertNull(reassembler.accept(1, chunk(7, message, 1), 0));
+    }
+
+    @Test
+    public void singleChunkMessage_completesImmediately() {
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 16, 1024, 60000);
+        Reassembler.Message done = reassembler.accept(1, chunk(7, bytes(3), 0), 0);
+        assertNotNull(done);
+        assertEquals(3, done.getLength());
+    }
+
+    @Test
+    public void malformedChunks_areRejected() {
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 16, 1024, 60000);
+        // 番号がチャンク数以上
+        assertNull(reassembler.accept(1, frame(7, 2, 2, bytes(2)), 0));
+        // チャンク数0
+        assertNull(reassembler.accept(1, frame(7, 0, 0, bytes(2)), 0));
+        // 最後以外のチャンクが満杯でない
+        assertNull(reassembler.accept(1, frame(7, 0, 2, bytes(3)), 0));
+        // 最後のチャンクがチャンクサイズより大きい
+        assertNull(reassembler.accept(1, frame(7, 1, 2, bytes(5)), 0));
+        // チャンク数の上限を超える
+        assertNull(reassembler.accept(1, frame(7, 0, 17, bytes(CHUNK_SIZE)), 0));
+        assertEquals(0, reassembler.getPendingCount());
+
+        // 同じメッセージでチャンク数が食い違うものは捨てます
+        assertNull(reassembler.accept(2, frame(8, 0, 3, bytes(CHUNK_SIZE)), 0));
+        assertNull(reassembler.accept(2, frame(8, 1, 2, bytes(1)), 0));
+        assertEquals(1, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void budget_limitsReservedBytes() {
+        // 4チャンク（16バイト）のメッセージ2つ分までしか確保できない
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 16, 32, 60000);
+        byte[] message = bytes(16);
+        assertNull(reassembler.accept(1, chunk(1, message, 0), 0));
+        assertNull(reassembler.accept(2, chunk(2, message, 0), 0));
+        assertEquals(32, reassembler.getReservedBytes());
+        assertNull(reassembler.accept(3, chunk(3, message, 0), 0));
+        assertEquals(2, reassembler.getPendingCount());
+
+        // 1つが完成すれば、その分を新しいメッセージに使えます
+        for (int i = 1; i < 4; i++) reassembler.accept(1, chunk(1, message, i), 0);
+        assertNull(reassembler.accept(3, chunk(3, message, 0), 0));
+        assertEquals(2, reassembler.getPendingCount());
+        assertEquals(32, reassembler.getReservedBytes());
+    }
+
+    @Test
+    public void staleMessages_expireAndFreeBudget() {
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 16, 16, 1000);
+        byte[] message = bytes(16);
+        assertNull(reassembler.accept(1, chunk(1, message, 0), 0));
+        // 予算がいっぱいでも、期限切れのメッセージを捨てて新しいメッセージを受け付けます
+        assertNull(reassembler.accept(2, chunk(2, message, 0), 1000));
+        assertEquals(1, reassembler.getPendingCount());
+        assertEquals(16, reassembler.getReservedBytes());
+
+        reassembler.expire(2000);
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(0, reassembler.getReservedBytes());
+    }
+
+    @Test
+    public void nextExpiry_isEarliestDeadline() {
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 16, 1024, 1000);
+        assertEquals(Long.MAX_VALUE, reassembler.nextExpiry());
+        byte[] message = bytes(12);
+        reassembler.accept(1, chunk(1, message, 0), 100);
+        reassembler.accept(2, chunk(2, message, 0), 300);
+        assertEquals(1100, reassembler.nextExpiry());
+        // チャンクが届くと、そのメッセージの期限は延びます
+        reassembler.accept(1, chunk(1, message, 1), 500);
+        assertEquals(1300, reassembler.nextExpiry());
+
+        reassembler.expire(1300);
+        assertEquals(1500, reassembler.nextExpiry());
+        reassembler.expire(1500);
+        assertEquals(Long.MAX_VALUE, reassembler.nextExpiry());
+    }
+
+    /**
+     * 受け渡されたチャンクと、中断・諦めたメッセージを記録する受け取り側です。
+     */
+    private static final class RecordingOpener implements Reassembler.StreamOpener {
+        final List<byte[]> chunks = new ArrayList<>();
+        final List<Long> abandoned = new ArrayList<>();
+        int opened;
+        int aborted;
+        boolean lastSeen;
+        boolean refuse;
+
+        @Override
+        public MessageRouter.ChunkSink open(byte[] srcHash, int totalChunks, byte firstByte) {
+            opened++;
+            return new MessageRouter.ChunkSink() {
+                @Override
+                public boolean onChunk(byte[] chunk, boolean last) {
+                    if (refuse) return false;
+                    chunks.add(chunk);
+                    lastSeen = last;
+                    return true;
+                }
+
+                @Override
+                public void onAbort() {
+                    aborted++;
+                }
+            };
+        }
+
+        @Override
+        public void onAbandoned(long key, long nowMillis) {
+            abandoned.add(key);
+        }
+
+        byte[] joined() {
+            int length = 0;
+            for (byte[] c : chunks) length += c.length;
+            byte[] out = new byte[length];
+            int offset = 0;
+            for (byte[] c : chunks) {
+                System.arraycopy(c, 0, out, offset, c.length);
+                offset += c.length;
+            }
+            return out;
+        }
+    }
+
+    @Test
+    public void streamedChunks_areDeliveredInOrder() {
+        RecordingOpener opener = new RecordingOpener();
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 4, 64, 4, 1024, 60000, opener);
+        byte[] message = bytes(14);
+        long overhead = Reassembler.streamOverhead(4);
+
+        assertNull(reassembler.accept(1, chunk(7, message, 0), 0));
+        assertEquals(1, opener.opened);
+        assertEquals(1, reassembler.getStreamCount());
+        assertEquals(overhead, reassembler.getReservedBytes());
+
+        // 先の番号のチャンクは、前のチャンクが届くまで保留して予算に数えます
+        assertNull(reassembler.accept(1, chunk(7, message, 2), 0));
+        assertNull(reassembler.accept(1, chunk(7, message, 3), 0));
+        assertEquals(1, opener.chunks.size());
+        assertEquals(overhead + CHUNK_SIZE + 2, reassembler.getReservedBytes());
+
+        Reassembler.Message done = reassembler.accept(1, chunk(7, message, 1), 0);
+        assertNotNull(done);
+        assertTrue(done.isStreamed());
+        assertNull(done.getData());
+        assertTrue(opener.lastSeen);
+        assertArrayEquals(message, opener.joined());
+        assertEquals(0, reassembler.getReservedBytes());
+        assertEquals(0, reassembler.getStreamCount());
+        assertEquals(0, opener.aborted);
+        assertTrue(opener.abandoned.isEmpty());
+    }
+
+    @Test
+    public void streamCount_isLimited() {
+        RecordingOpener opener = new RecordingOpener();
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 4, 64, 1, 1024, 60000, opener);
+        byte[] message = bytes(16);
+        assertNull(reassembler.accept(1, chunk(1, message, 0), 0));
+        // 上限に達している間は受け取り口を用意させず、従来どおり全体を組み立てます
+        assertNull(reassembler.accept(2, chunk(2, message, 0), 0));
+        assertEquals(1, opener.opened);
+        assertEquals(1, reassembler.getStreamCount());
+        assertEquals(2, reassembler.getPendingCount());
+        for (int i = 1; i < 4; i++) reassembler.accept(2, chunk(2, message, i), 0);
+        assertEquals(1, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void streamOverhead_countsAgainstBudget() {
+        RecordingOpener opener = new RecordingOpener();
+        // 64チャンクのメッセージのビットマップと保留用配列の分しか予算がない
+        long overhead = Reassembler.streamOverhead(64);
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 4, 64, 8, overhead, 60000, opener);
+        byte[] message = bytes(64 * CHUNK_SIZE);
+        assertNull(reassembler.accept(1, chunk(1, message, 0), 0));
+        assertEquals(overhead, reassembler.getReservedBytes());
+        // 2つ目は受け取り口を用意させる前に断ります
+        assertNull(reassembler.accept(2, chunk(2, message, 0), 0));
+        assertEquals(1, opener.opened);
+        // 保留するチャンクの分も残っていないので、先の番号のチャンクは捨てます
+        assertNull(reassembler.accept(1, chunk(1, message, 5), 0));
+        assertEquals(overhead, reassembler.getReservedBytes());
+    }
+
+    @Test
+    public void expiredStream_isAbortedAndAbandoned() {
+        RecordingOpener opener = new RecordingOpener();
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 4, 64, 4, 1024, 1000, opener);
+        byte[] message = bytes(16);
+        assertNull(reassembler.accept(9, chunk(1, message, 0), 0));
+        assertNull(reassembler.accept(9, chunk(1, message, 2), 0));
+
+        reassembler.expire(1000);
+        // 受け取り口に中断を知らせ、残りのチャンクを無視できるようにキーを知らせます
+        assertEquals(1, opener.aborted);
+        assertEquals(Arrays.asList(9L), opener.abandoned);
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(0, reassembler.getStreamCount());
+        assertEquals(0, reassembler.getReservedBytes());
+    }
+
+    @Test
+    public void refusedStream_isAbandonedWithoutAbort() {
+        RecordingOpener opener = new RecordingOpener();
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE, 4, 64, 4, 1024, 60000, opener);
+        byte[] message = bytes(16);
+        assertNull(reassembler.accept(9, chunk(1, message, 0), 0));
+        assertNull(reassembler.accept(9, chunk(1, message, 2), 0));
+        opener.refuse = true;
+        assertNull(reassembler.accept(9, chunk(1, message, 1), 0));
+
+        // 受け取り口が自分でやめた場合は onAbort を呼ばず、保留中のチャンクの予算も解放します
+        assertEquals(0, opener.aborted);
+        assertEquals(Arrays.asList(9L), opener.abandoned);
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(0, reassembler.getStreamCount());
+        assertEquals(0, reassembler.getReservedBytes());
+    }
+}
@@ -0,0 +1,54 @@
+package ocean.RedWhale;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * SearchText の変換のテストです。
+ * 本文の索引用の文字列と、検索する言葉の条件が同じ規則で2文字ずつに分かれることを確認します。
+ */
+public class SearchTextTest {
+
+    @Test
+    public void indexText_splitsUnsegmentedRunsIntoBigrams() {
+        assertEquals(" 東京 京で で 、 会議 議 ", SearchText.toIndexText("東京で、会議"));
+        // 英数字や記号はそのまま残し、漢字・かなの部分と混ざらないように区切ります
+        assertEquals(" 会議 議 10 時か から ら ", SearchText.toIndexText("会議10時から"));
+        assertEquals(" コー ーヒ ヒー ー ", SearchText.toIndexText("コーヒー"));
+        assertNull(SearchText.toIndexText("Meeting at 10:00"));
+        assertNull(SearchText.toIndexText(null));
+    }
+
+    @Test
+    public void indexText_keepsSurrogatePairsTogether() {
+        // 「𠮷」はUTF-16で2文字分ですが、1文字として扱います
+        assertEquals(" 𠮷野 野 ", SearchText.toIndexText("𠮷野"));
+        assertEquals("\"𠮷野\"", SearchText.toMatchQuery(Collections.singletonList("𠮷野")));
+    }
+
+    @Test
+    public void matchQuery_usesAdjacentBigramsAsPhrase() {
+        assertEquals("\"東京\" \"コー ーヒ ヒー\"", SearchText.toMatchQuery(Arrays.asList("東京", "コーヒー")));
+        // 1文字だけの場合は、その文字で始まる語を前方一致で探します
+        assertEquals("\"の*\"", SearchText.toMatchQuery(Collections.singletonList("の")));
+    }
+
+    @Test
+    public void matchQuery_followsIndexAcrossMixedScripts() {
+        // 漢字・かなの後ろに英数字が続く場合は、索引と同じく最後の1文字も並べます
+        assertEquals("\"会議 議 10 時*\"", SearchText.toMatchQuery(Collections.singletonList("会議10時")));
+        assertEquals("\"東京 京で で meet*\"", SearchText.toMatchQuery(Collections.singletonList("東京でmeet")));
+    }
+
+    @Test
+    public void matchQuery_dropsTermsWithoutSearchableCharacters() {
+        // 記号は索引でも区切りなので、検索の命令にも、何にでも一致する条件にもしません
+        assertEquals("\"東京\"", SearchText.toMatchQuery(Arrays.asList("東京", "%", "*")));
+        assertEquals("\"今日\"", SearchText.toMatchQuery(Collections.singletonList("今日_")));
+        assertEquals("", SearchText.toMatchQuery(Collections.singletonList("、。")));
+    }
+}
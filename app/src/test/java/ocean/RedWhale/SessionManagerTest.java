@@ -0,0 +1,211 @@
+package ocean.RedWhale;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * SessionManager のバイナリ形式の暗号文のテストです。
+ * 開始メッセージ・通常メッセージ・分割暗号化の往復と、再送・改ざん・途中で切れた暗号文の拒否を確認します。
+ */
+public class SessionManagerTest {
+
+    private static final byte[] MESSAGE = "こんにちは、RedWhaleです".getBytes();
+
+    private final byte[] senderId = new byte[MessagePacket.HASH_SIZE];
+    private final byte[] recipientId = new byte[MessagePacket.HASH_SIZE];
+    private KeyPair sender;
+    private KeyPair recipient;
+    private FriendKeyIndex.Entry dest;
+    private SessionManager senderSessions;
+    private SessionManager recipientSessions;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+        kpg.initialize(new ECGenParameterSpec("secp256r1"));
+        sender = kpg.generateKeyPair();
+        recipient = kpg.generateKeyPair();
+        Arrays.fill(senderId, (byte) 0x21);
+        Arrays.fill(recipientId, (byte) 0x42);
+        dest = new FriendKeyIndex.Entry("00:11:22:33:44:55", "recipient", recipientId, recipient.getPublic());
+        senderSessions = new SessionManager();
+        recipientSessions = new SessionManager();
+    }
+
+    private SessionManager.Decrypted decrypt(byte[] envelope) {
+        return decrypt(envelope, envelope.length);
+    }
+
+    private SessionManager.Decrypted decrypt(byte[] envelope, int length) {
+        return recipientSessions.decrypt(envelope, 0, length, senderId, recipientId, recipient.getPrivate(),
+                FriendKeyIndex.getInstance());
+    }
+
+    @Test
+    public void initAndSessionMessages_roundTrip() {
+        byte[] first = senderSessions.encrypt(MESSAGE, dest, sender.getPrivate());
+        assertEquals(SessionManager.ENVELOPE_INIT, first[0]);
+        assertTrue(SessionManager.isSessionEnvelope(first, 0, first.length));
+        SessionManager.Decrypted decrypted = decrypt(first);
+        assertNotNull(decrypted);
+        assertArrayEquals(MESSAGE, decrypted.message);
+        assertNull(decrypted.groupId);
+
+        // 受信確認が届くまでは開始メッセージを送り続け、受信側は既知のセッションとして復号します
+        byte[] second = senderSessions.encrypt(MESSAGE, dest, sender.getPrivate());
+        assertEquals(SessionManager.ENVELOPE_INIT, second[0]);
+        assertEquals(decrypted.sessionId, decrypt(second).sessionId);
+
+        // 受信確認の後は、セッションIDと番号だけの短い通常メッセージになります
+        assertTrue(senderSessions.onAcknowledged(Collections.singletonList(dest), decrypted.sessionId, decrypted.ackTag, 0));
+        byte[] third = senderSessions.encrypt(MESSAGE, dest, sender.getPrivate());
+        assertEquals(SessionManager.ENVELOPE_SESSION, third[0]);
+        assertTrue(third.length < first.length);
+        SessionManager.Decrypted short3 = decrypt(third);
+        assertNotNull(short3);
+        assertArrayEquals(MESSAGE, short3.message);
+    }
+
+    @Test
+    public void forgedAck_doesNotConfirmSession() {
+        SessionManager.Decrypted decrypted = decrypt(senderSessions.encrypt(MESSAGE, dest, sender.getPrivate()));
+        assertNotNull(decrypted.ackTag);
+
+        // セッションIDは開始メッセージで平文のまま流れるため、確認値のないACKや間違った確認値は受け付けません
+        byte[] forged = decrypted.ackTag.clone();
+        forged[0] ^= 1;
+        assertFalse(senderSessions.onAcknowledged(Collections.singletonList(dest), decrypted.sessionId, forged, 0));
+        assertFalse(senderSessions.onAcknowledged(Collections.singletonList(dest), decrypted.sessionId, null, 0));
+        // 他の相手から届いたACKでは、その相手のセッションしか確定しません
+        FriendKeyIndex.Entry other = new FriendKeyIndex.Entry("00:11:22:33:44:66", "other", senderId, sender.getPublic());
+        assertFalse(senderSessions.onAcknowledged(Collections.singletonList(other), decrypted.sessionId, decrypted.ackTag, 0));
+        assertEquals(SessionManager.ENVELOPE_INIT, senderSessions.encrypt(MESSAGE, dest, sender.getPrivate())[0]);
+
+        assertTrue(senderSessions.onAcknowledged(Collections.singletonList(dest), decrypted.sessionId, decrypted.ackTag, 0));
+        assertEquals(SessionManager.ENVELOPE_SESSION, senderSessions.encrypt(MESSAGE, dest, sender.getPrivate())[0]);
+    }
+
+    @Test
+    public void implicitIvEnvelope_isShorterAndRoundTrips() {
+        SessionManager.Decrypted decrypted = decrypt(senderSessions.encrypt(MESSAGE, dest, sender.getPrivate()));
+        assertTrue(senderSessions.onAcknowledged(Collections.singletonList(dest), decrypted.sessionId, decrypted.ackTag, 0));
+        byte[] withIv = senderSessions.encrypt(MESSAGE, dest, sender.getPrivate());
+        assertEquals(SessionManager.ENVELOPE_SESSION, withIv[0]);
+
+        // 対応していると知らせてきた相手には、メッセージ番号から作れるIVを送りません
+        assertTrue(senderSessions.onAcknowledged(Collections.singletonList(dest), decrypted.sessionId, decrypted.ackTag,
+                SessionManager.FEATURE_IMPLICIT_IV));
+        byte[] envelope = senderSessions.encrypt(MESSAGE, dest, sender.getPrivate());
+        assertEquals(SessionManager.ENVELOPE_SESSION_IMPLICIT_IV, envelope[0]);
+        assertEquals(withIv.length - 12, envelope.length);
+        assertTrue(SessionManager.isSessionEnvelope(envelope, 0, envelope.length));
+
+        // 番号を書き換えるとIVと追加データの両方が変わるため、認証に失敗します
+        byte[] tampered = envelope.clone();
+        tampered[1 + 8 + 3] ^= 1;
+        assertNull(decrypt(tampered));
+        assertArrayEquals(MESSAGE, decrypt(envelope).message);
+        assertArrayEquals(MESSAGE, decrypt(withIv).message);
+        assertNull(decrypt(envelope));
+    }
+
+    @Test
+    public void replayedEnvelope_isRejected() {
+        byte[] envelope = senderSessions.encrypt(MESSAGE, dest, sender.getPrivate());
+        assertNotNull(decrypt(envelope));
+        assertNull(decrypt(envelope));
+    }
+
+    @Test
+    public void tamperedEnvelope_isRejectedWithoutAdvancing() {
+        byte[] envelope = senderSessions.encrypt(MESSAGE, dest, sender.getPrivate());
+        byte[] tampered = envelope.clone();
+        tampered[tampered.length - 1] ^= 1;
+        assertNull(decrypt(tampered));
+        // 改ざんされたメッセージではラチェットを進めないため、本物は後からでも復号できます
+        assertNotNull(decrypt(envelope));
+    }
+
+    @Test
+    public void truncatedEnvelopes_areRejected() {
+        byte[] envelope = senderSessions.encrypt(MESSAGE, dest, sender.getPrivate());
+        for (int length = 1; length < envelope.length; length++) {
+            assertNull("length " + length, decrypt(envelope, length));
+        }
+        assertNotNull(decrypt(envelope));
+    }
+
+    @Test
+    public void unknownSession_isRejected() {
+        byte[] envelope = ByteBuffer.allocate(1 + 8 + 4 + 32)
+                .put(SessionManager.ENVELOPE_SESSION).putLong(12345).putInt(0).array();
+        assertNull(decrypt(envelope));
+    }
+
+    @Test
+    public void sessionOfAnotherPeer_isRejected() {
+        byte[] first = senderSessions.encrypt(MESSAGE, dest, sender.getPrivate());
+        SessionManager.Decrypted decrypted = decrypt(first);
+        senderSessions.onAcknowledged(Collections.singletonList(dest), decrypted.sessionId, decrypted.ackTag, 0);
+        byte[] envelope = senderSessions.encrypt(MESSAGE, dest, sender.getPrivate());
+
+        // 他の相手が同じセッションIDを名乗っても受け付けません
+        byte[] otherId = new byte[MessagePacket.HASH_SIZE];
+        Arrays.fill(otherId, (byte) 0x7E);
+        assertNull(recipientSessions.decrypt(envelope, 0, envelope.length, otherId, recipientId,
+                recipient.getPrivate(), FriendKeyIndex.getInstance()));
+        assertNotNull(decrypt(envelope));
+    }
+
+    @Test
+    public void largeMessage_isStreamedAndDecryptsPerChunk() {
+        byte[] message = new byte[MessageRouter.MAX_PAYLOAD_SIZE * 5 + 17];
+        for (int i = 0; i < message.length; i++) message[i] = (byte) i;
+        byte[] envelope = senderSessions.encrypt(message, dest, sender.getPrivate());
+        assertEquals(SessionManager.ENVELOPE_STREAM_INIT, envelope[0]);
+
+        // ルーターのチャンクと同じ大きさに分けて、届く度に復号します
+        SessionManager.InboundStream stream = recipientSessions.openStream(senderId, recipientId,
+                recipient.getPrivate(), FriendKeyIndex.getInstance());
+        for (int offset = 0; offset < envelope.length; offset += MessageRouter.MAX_PAYLOAD_SIZE) {
+            assertFalse(stream.isComplete());
+            assertTrue(stream.update(envelope, offset, Math.min(MessageRouter.MAX_PAYLOAD_SIZE, envelope.length - offset)));
+        }
+        assertTrue(stream.isComplete());
+        SessionManager.Decrypted decrypted = stream.finish();
+        assertNotNull(decrypted);
+        assertArrayEquals(message, decrypted.message);
+        assertNull(stream.finish());
+    }
+
+    @Test
+    public void streamedMessage_rejectsTamperedOrTruncatedSegments() {
+        byte[] message = new byte[MessageRouter.MAX_PAYLOAD_SIZE * 3];
+        byte[] envelope = senderSessions.encrypt(message, dest, sender.getPrivate());
+
+        byte[] tampered = envelope.clone();
+        tampered[MessageRouter.MAX_PAYLOAD_SIZE + 10] ^= 1;
+        assertNull(decrypt(tampered));
+
+        // 最後のセグメントが欠けたものは、完成しないため結果を返しません
+        SessionManager.InboundStream stream = recipientSessions.openStream(senderId, recipientId,
+                recipient.getPrivate(), FriendKeyIndex.getInstance());
+        assertTrue(stream.update(envelope, 0, envelope.length - MessageRouter.MAX_PAYLOAD_SIZE / 2));
+        assertFalse(stream.isComplete());
+        assertNull(stream.finish());
+
+        // 失敗したメッセージではラチェットを進めないため、本物は復号できます
+        SessionManager.Decrypted decrypted = decrypt(envelope);
+        assertNotNull(decrypted);
+        assertArrayEquals(message, decrypted.message);
+    }
+}
@@ -0,0 +1,47 @@
+package ocean.RedWhale;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * SipHash-2-4 の実装を、参照実装のテストベクター（鍵 00..0f、入力 00, 01, 02, ...）で確認します。
+ */
+public class SipHashTest {
+
+    private static final byte[] KEY = range(16);
+
+    private static byte[] range(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) data[i] = (byte) i;
+        return data;
+    }
+
+    private static long hash(byte[] data, int offset, int length) {
+        return SipHash.hash(SipHash.keyPart(KEY, 0), SipHash.keyPart(KEY, 8), data, offset, length);
+    }
+
+    @Test
+    public void matchesReferenceVectors() {
+        assertEquals(0x726fdb47dd0e0e31L, hash(range(0), 0, 0));
+        assertEquals(0x74f839c593dc67fdL, hash(range(1), 0, 1));
+        assertEquals(0xab0200f58b01d137L, hash(range(7), 0, 7));
+        assertEquals(0x93f5f5799a932462L, hash(range(8), 0, 8));
+        assertEquals(0xa129ca6149be45e5L, hash(range(15), 0, 15));
+        assertEquals(0x958a324ceb064572L, hash(range(63), 0, 63));
+    }
+
+    @Test
+    public void hashesOnlyTheGivenRange() {
+        // 配列の途中からでも、同じ内容なら同じ値になること
+        byte[] padded = new byte[3 + 15 + 5];
+        System.arraycopy(range(15), 0, padded, 3, 15);
+        assertEquals(0xa129ca6149be45e5L, hash(padded, 3, 15));
+    }
+
+    @Test
+    public void differentKeys_giveDifferentHashes() {
+        byte[] data = range(15);
+        assertNotEquals(hash(data, 0, 15), SipHash.hash(1, 2, data, 0, 15));
+    }
+}
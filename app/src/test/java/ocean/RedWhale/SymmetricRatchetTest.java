@@ -0,0 +1,150 @@
+package ocean.RedWhale;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * SymmetricRatchet のテストです。
+ * 送信側と受信側の鍵の一致、順不同の受信、再送（リプレイ）の拒否、飛ばせる数の上限を確認します。
+ */
+public class SymmetricRatchetTest {
+
+    private static byte[] chainKey() {
+        return SymmetricRatchet.initialChainKey(new byte[SymmetricRatchet.KEY_SIZE], 42);
+    }
+
+    /**
+     * 送信側で count 個のメッセージ鍵を作ります。
+     */
+    private static byte[][] senderKeys(int count) {
+        SymmetricRatchet.Sender sender = new SymmetricRatchet.Sender(chainKey());
+        byte[][] keys = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            keys[i] = new byte[SymmetricRatchet.KEY_SIZE];
+            assertEquals(i, sender.next(keys[i]));
+        }
+        return keys;
+    }
+
+    @Test
+    public void hkdf_matchesRfc5869TestCase1() {
+        byte[] ikm = new byte[22];
+        java.util.Arrays.fill(ikm, (byte) 0x0b);
+        byte[] salt = hex("000102030405060708090a0b0c");
+        byte[] info = hex("f0f1f2f3f4f5f6f7f8f9");
+        byte[] expected = hex("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865");
+        assertArrayEquals(expected, SymmetricRatchet.hkdf(salt, ikm, info, 42));
+    }
+
+    @Test
+    public void receiver_derivesSenderKeysInOrder() {
+        byte[][] keys = senderKeys(5);
+        SymmetricRatchet.Receiver receiver = new SymmetricRatchet.Receiver(chainKey());
+        for (int i = 0; i < keys.length; i++) {
+            assertArrayEquals(keys[i], receiver.lookup(i));
+            receiver.commit(i);
+        }
+        // 使ったメッセージ鍵はすべて別の値です
+        assertFalse(java.util.Arrays.equals(keys[0], keys[1]));
+    }
+
+    @Test
+    public void receiver_acceptsOutOfOrderMessages() {
+        byte[][] keys = senderKeys(4);
+        SymmetricRatchet.Receiver receiver = new SymmetricRatchet.Receiver(chainKey());
+        assertArrayEquals(keys[3], receiver.lookup(3));
+        receiver.commit(3);
+        // 飛ばした番号の鍵は保持されていて、遅れて届いても復号できます
+        assertArrayEquals(keys[1], receiver.lookup(1));
+        receiver.commit(1);
+        assertArrayEquals(keys[0], receiver.lookup(0));
+        receiver.commit(0);
+        assertArrayEquals(keys[2], receiver.lookup(2));
+        receiver.commit(2);
+    }
+
+    @Test
+    public void receiver_rejectsReplays() {
+        byte[][] keys = senderKeys(3);
+        SymmetricRatchet.Receiver receiver = new SymmetricRatchet.Receiver(chainKey());
+        receiver.commit(0);
+        assertNull(receiver.lookup(0));
+
+        receiver.commit(2);
+        assertArrayEquals(keys[1], receiver.lookup(1));
+        receiver.commit(1);
+        // 飛ばした鍵も、1度使えば取り出せなくなります
+        assertNull(receiver.lookup(1));
+        assertNull(receiver.lookup(2));
+    }
+
+    @Test
+    public void lookupWithoutCommit_doesNotAdvance() {
+        byte[][] keys = senderKeys(2);
+        SymmetricRatchet.Receiver receiver = new SymmetricRatchet.Receiver(chainKey());
+        // 復号に失敗した（偽物の）メッセージでは commit しないため、同じ番号を後から受け取れます
+        assertNotNull(receiver.lookup(1));
+        assertArrayEquals(keys[0], receiver.lookup(0));
+        assertArrayEquals(keys[1], receiver.lookup(1));
+    }
+
+    @Test
+    public void receiver_limitsSkipDistance() {
+        SymmetricRatchet.Receiver receiver = new SymmetricRatchet.Receiver(chainKey());
+        assertNotNull(receiver.lookup(SymmetricRatchet.MAX_SKIP));
+        assertNull(receiver.lookup(SymmetricRatchet.MAX_SKIP + 1));
+    }
+
+    @Test
+    public void receiver_boundsSkippedKeys() {
+        int skipped = SymmetricRatchet.MAX_SKIPPED_KEYS + 10;
+        byte[][] keys = senderKeys(skipped + 1);
+        SymmetricRatchet.Receiver receiver = new SymmetricRatchet.Receiver(chainKey());
+        receiver.commit(skipped);
+        // 保持するのは新しい方の MAX_SKIPPED_KEYS 個だけで、古いものは捨てられます
+        assertNull(receiver.lookup(0));
+        assertNull(receiver.lookup(9));
+        assertArrayEquals(keys[10], receiver.lookup(10));
+        assertArrayEquals(keys[skipped - 1], receiver.lookup(skipped - 1));
+    }
+
+    @Test
+    public void reserve_handsOutEachCounterOnce() {
+        byte[][] keys = senderKeys(3);
+        SymmetricRatchet.Receiver receiver = new SymmetricRatchet.Receiver(chainKey());
+        // 復号中の番号は、並列に届いた同じ番号のメッセージには渡しません
+        assertArrayEquals(keys[2], receiver.reserve(2));
+        assertNull(receiver.reserve(2));
+        // 失敗して予約を取り消せば、チェーンは進まず同じ番号をもう1度使えます
+        receiver.release(2);
+        assertArrayEquals(keys[2], receiver.reserve(2));
+        receiver.commit(2);
+        assertNull(receiver.reserve(2));
+
+        assertArrayEquals(keys[0], receiver.reserve(0));
+        assertNull(receiver.reserve(0));
+        receiver.commit(0);
+        assertNull(receiver.reserve(0));
+        assertArrayEquals(keys[1], receiver.reserve(1));
+    }
+
+    @Test
+    public void clearingLookedUpKey_doesNotCorruptSkippedKey() {
+        byte[][] keys = senderKeys(2);
+        SymmetricRatchet.Receiver receiver = new SymmetricRatchet.Receiver(chainKey());
+        receiver.commit(1);
+        // 復号に失敗した側が鍵を消去しても、保持している飛ばした鍵には影響しません
+        java.util.Arrays.fill(receiver.reserve(0), (byte) 0);
+        receiver.release(0);
+        assertArrayEquals(keys[0], receiver.reserve(0));
+    }
+
+    private static byte[] hex(String s) {
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return out;
+    }
+}